@@ -21,7 +21,15 @@ import net.wequick.gradle.aapt.Aapt
 import org.gradle.api.Project
 import org.gradle.api.tasks.Copy
 
+import groovy.io.FileType
+import java.security.MessageDigest
+
 class AssetPlugin extends BundlePlugin {
+
+    private static final String DIGEST_FILE_NAME = 'small.digest'
+    private static final String DIGEST_ALGORITHM = 'SHA-256'
+    private static final String METAS_FILE_NAME = 'small.metas'
+
     void apply(Project project) {
         super.apply(project)
     }
@@ -80,6 +88,10 @@ class AssetPlugin extends BundlePlugin {
                                     versionName: cf.versionName, versionCode: cf.versionCode,
                                     aaptExe: aaptExe, baseAsset: baseAsset.path]
             )
+
+            // Collect the bar items of the html pages, so that the native navigation bar
+            // can be set up before the page is loaded.
+            writeMetasFile(destDir, new File(destDir, METAS_FILE_NAME))
         }
 
         def sc = android.buildTypes.release.signingConfig
@@ -87,11 +99,23 @@ class AssetPlugin extends BundlePlugin {
             ext {
                 srcDir = project.prepareAsset.destDir
                 destFile = (sc == null) ? small.outputFile : small.unsignedFile
+                digestFile = new File(project.buildDir, "intermediates/small/$DIGEST_FILE_NAME")
             }
             inputs.dir srcDir
             outputs.file destFile
         } << {
-            project.ant.zip(baseDir: srcDir, destFile: destFile)
+            if (sc == null) {
+                project.ant.zip(baseDir: srcDir, destFile: destFile)
+                return
+            }
+
+            // Package the digest file to be signed, so that the bundle can be verified
+            // by one certificates check at runtime.
+            writeDigestFile(srcDir, digestFile)
+            project.ant.zip(destFile: destFile) {
+                fileset(dir: srcDir)
+                fileset(file: digestFile)
+            }
         }
         if (sc == null) {
             project.assembleRelease.dependsOn project.packageAsset
@@ -113,4 +137,86 @@ class AssetPlugin extends BundlePlugin {
         }
         project.assembleRelease.dependsOn project.signAsset
     }
+
+    /**
+     * Write the `*-bar-item' meta tags of each html file in `dir' to `metasFile',
+     * sorted by the page path:
+     * <pre>
+     * Small-Metas-Version: 1
+     *
+     * page/path.html\tright-bar-item\ttype=share,onclick=share()
+     * </pre>
+     */
+    private static void writeMetasFile(File dir, File metasFile) {
+        def base = dir.toURI()
+        def lines = []
+        dir.eachFileRecurse(FileType.FILES) { File f ->
+            if (!(f.name ==~ /(?i).+\.html?/)) return
+
+            def page = base.relativize(f.toURI()).path
+            def html = f.getText('UTF-8')
+            (html =~ /(?is)<meta\s[^>]*>/).each { String tag ->
+                def name = getHtmlAttribute(tag, 'name')
+                if (name == null || !name.endsWith('-bar-item')) return
+
+                def content = getHtmlAttribute(tag, 'content')
+                if (content == null) return
+
+                lines.add("$page\t$name\t${content.replaceAll(/[\t\r\n]/, ' ')}")
+            }
+        }
+        if (lines.isEmpty()) {
+            metasFile.delete()
+            return
+        }
+        lines.sort()
+
+        def sb = new StringBuilder()
+        sb.append("Small-Metas-Version: 1\n")
+        sb.append('\n')
+        lines.each { sb.append(it).append('\n') }
+        metasFile.write(sb.toString(), 'UTF-8')
+    }
+
+    private static String getHtmlAttribute(String tag, String name) {
+        def m = tag =~ /(?i)\s$name\s*=\s*(?:"([^"]*)"|'([^']*)'|([^\s>]+))/
+        if (!m.find()) return null
+
+        def value = m.group(1) ?: m.group(2) ?: m.group(3)
+        if (value == null) return ''
+        return value.replace('&quot;', '"').replace('&#39;', "'")
+                .replace('&lt;', '<').replace('&gt;', '>').replace('&amp;', '&')
+    }
+
+    /**
+     * Write the digest of each file in `dir' to `digestFile', sorted by the entry name:
+     * <pre>
+     * Small-Digest-Version: 1
+     * Digest-Algorithm: SHA-256
+     *
+     * hex(digest)  entry/name
+     * </pre>
+     */
+    private static void writeDigestFile(File dir, File digestFile) {
+        def base = dir.toURI()
+        def lines = []
+        dir.eachFileRecurse(FileType.FILES) { File f ->
+            def md = MessageDigest.getInstance(DIGEST_ALGORITHM)
+            f.eachByte(8192) { byte[] buffer, int len ->
+                md.update(buffer, 0, len)
+            }
+            def name = base.relativize(f.toURI()).path
+            lines.add("${md.digest().encodeHex()}  $name")
+        }
+        lines.sort()
+
+        def sb = new StringBuilder()
+        sb.append("Small-Digest-Version: 1\n")
+        sb.append("Digest-Algorithm: $DIGEST_ALGORITHM\n")
+        sb.append('\n')
+        lines.each { sb.append(it).append('\n') }
+
+        digestFile.parentFile.mkdirs()
+        digestFile.write(sb.toString(), 'UTF-8')
+    }
 }
@@ -36,24 +36,32 @@ import android.os.IBinder;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageInfo;
+import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
 import android.view.Window;
 
 import net.wequick.small.internal.InstrumentationInternal;
+import net.wequick.small.util.FileUtils;
 import net.wequick.small.util.ReflectAccelerator;
+import net.wequick.small.util.ZipArchive;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import dalvik.system.DexFile;
 
@@ -82,20 +90,28 @@ public class ApkBundleLauncher extends SoBundleLauncher {
     private static final String TAG = "ApkBundleLauncher";
     private static final String FD_STORAGE = "storage";
     private static final String FILE_DEX = "bundle.dex";
+    private static final String FILE_DEX_PREFIX = "bundle";
+    private static final String CLASSES_DEX = "classes.dex";
+    private static final String SECONDARY_DEX_PREFIX = "classes";
+    private static final String DEX_SUFFIX = ".dex";
+    private static final String ZIP_SUFFIX = ".zip";
 
     //LoadedApk类
     private static class LoadedApk {
+        public Bundle bundle;
         public String packageName;
         public File packagePath;
         public String applicationName;
         public String path;
-        public DexFile dexFile;
-        public File optDexFile;
+        public String[] dexPaths; /** the apk path and the secondary dex zips */
+        public DexFile[] dexFiles;
+        public File[] optDexFiles;
         public File libraryPath;
         public boolean nonResources; /** no resources.arsc */
     }
 
     private static ConcurrentHashMap<String, LoadedApk> sLoadedApks;
+    private static List<String> sMergedAssetPaths;
     private static ConcurrentHashMap<String, ActivityInfo> sLoadedActivities;
     private static ConcurrentHashMap<String, List<IntentFilter>> sLoadedIntentFilters;
 
@@ -121,11 +137,20 @@ public class ApkBundleLauncher extends SoBundleLauncher {
             Intent intent = ReflectAccelerator.getIntent(r);
             //使用unwrapIntent方法将插件的类名赋给targetClass
             String targetClass = unwrapIntent(intent);
+            if (Bundle.isRestorePending()) {
+                // The app was restarted by system to restore this activity, load its bundle
+                Bundle.loadBundlesForRestore(targetClass);
+            }
             if (targetClass == null) return false;
+            if (sLoadedActivities == null) return false;
 
             // 替换上插件类对应的activityInfo
             ActivityInfo targetInfo = sLoadedActivities.get(targetClass);
             ReflectAccelerator.setActivityInfo(r, targetInfo);
+            if (targetInfo != null) {
+                // Create the bundle application first if initialized lazily or in background
+                Bundle.ensureInitialized(targetInfo.packageName);
+            }
             return false;
         }
     }
@@ -518,45 +543,77 @@ public class ApkBundleLauncher extends SoBundleLauncher {
         super.postSetUp();
 
         if (sLoadedApks == null) {
-            Log.e(TAG, "Could not find any APK bundles!");
+            if (sMergedAssetPaths == null) {
+                Log.e(TAG, "Could not find any APK bundles!");
+            }
             return;
         }
 
-        Collection<LoadedApk> apks = sLoadedApks.values();
+        // Skip the bundles failed to load (dex, extraction, etc.)
+        List<LoadedApk> apks = new ArrayList<LoadedApk>(sLoadedApks.size());
+        for (LoadedApk apk : sLoadedApks.values()) {
+            if (!apk.bundle.isEnabled() || Arrays.asList(apk.dexFiles).contains(null)) {
+                Log.e(TAG, "Skipped the failed bundle " + apk.packageName);
+                continue;
+            }
+            apks.add(apk);
+        }
 
         // Merge all the resources in bundles and replace the host one
         final Application app = Small.getContext();
-        String[] paths = new String[apks.size() + 1];
-        paths[0] = app.getPackageResourcePath(); // add host asset path
-        int i = 1;
+        List<String> paths = new ArrayList<String>(apks.size());
         for (LoadedApk apk : apks) {
             if (apk.nonResources) continue; // ignores the empty entry to fix #62
-            paths[i++] = apk.path; // add plugin asset path
+            paths.add(apk.path); // add plugin asset path
         }
-        if (i != paths.length) {
-            paths = Arrays.copyOf(paths, i);
+        if (sMergedAssetPaths == null) {
+            sMergedAssetPaths = new ArrayList<String>(paths.size() + 1);
+            sMergedAssetPaths.add(app.getPackageResourcePath()); // add host asset path
+            sMergedAssetPaths.addAll(paths);
+            ReflectAccelerator.mergeResources(app, sMergedAssetPaths.toArray(
+                    new String[sMergedAssetPaths.size()]));
+        } else if (!paths.isEmpty()) {
+            // Some bundles have been merged (the restoring one), append the rest on the main
+            // thread, as the restored activity is inflating and drawing with the assets
+            final String[] appendingPaths = paths.toArray(new String[paths.size()]);
+            Runnable appendAssetPaths = new Runnable() {
+                @Override
+                public void run() {
+                    sMergedAssetPaths.addAll(Arrays.asList(appendingPaths));
+                    if (!ReflectAccelerator.appendAssetPaths(app, appendingPaths)) {
+                        ReflectAccelerator.mergeResources(app, sMergedAssetPaths.toArray(
+                                new String[sMergedAssetPaths.size()]));
+                    }
+                }
+            };
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                appendAssetPaths.run();
+            } else {
+                Bundle.postUI(appendAssetPaths);
+            }
         }
-        ReflectAccelerator.mergeResources(app, paths);
 
         // Merge all the dex into host's class loader
         //获取宿主类加载器
         ClassLoader cl = app.getClassLoader();
-        i = 0;
-        int N = apks.size();
-        String[] dexPaths = new String[N];
-        DexFile[] dexFiles = new DexFile[N];
+        List<String> dexPaths = new ArrayList<String>(apks.size());
+        List<DexFile> dexFiles = new ArrayList<DexFile>(apks.size());
         for (LoadedApk apk : apks) {
-            dexPaths[i] = apk.path;
-            dexFiles[i] = apk.dexFile;
+            // Keep the order of `classes.dex', `classes2.dex'...
+            dexPaths.addAll(Arrays.asList(apk.dexPaths));
+            dexFiles.addAll(Arrays.asList(apk.dexFiles));
             if (Small.getBundleUpgraded(apk.packageName)) {
                 // If upgraded, delete the opt dex file for recreating
-                if (apk.optDexFile.exists()) apk.optDexFile.delete();
+                for (File optDexFile : apk.optDexFiles) {
+                    if (optDexFile.exists()) optDexFile.delete();
+                }
                 Small.setBundleUpgraded(apk.packageName, false);
             }
-            i++;
         }
         //扩展DexPathList
-        ReflectAccelerator.expandDexPathList(cl, dexPaths, dexFiles);
+        ReflectAccelerator.expandDexPathList(cl,
+                dexPaths.toArray(new String[dexPaths.size()]),
+                dexFiles.toArray(new DexFile[dexFiles.size()]));
 
         // Expand the native library directories for host class loader if plugin has any JNIs. (#79)
         List<File> libPathList = new ArrayList<File>();
@@ -569,35 +626,96 @@ public class ApkBundleLauncher extends SoBundleLauncher {
             ReflectAccelerator.expandNativeLibraryDirectories(cl, libPathList);
         }
 
-        // Trigger all the bundle application `onCreate' event
+        // Trigger all the bundle application `onCreate' event, on main thread, in background
+        // or on first use as the `init' mode of the bundle
         for (final LoadedApk apk : apks) {
-            String bundleApplicationName = apk.applicationName;
+            final String bundleApplicationName = apk.applicationName;
             if (bundleApplicationName == null) continue;
 
-            try {
-                final Class applicationClass = Class.forName(bundleApplicationName);
-                Bundle.postUI(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            BundleApplicationContext appContext = new BundleApplicationContext(app, apk);
-                            Application bundleApplication = Instrumentation.newApplication(
-                                    applicationClass, appContext);
-                            sHostInstrumentation.callApplicationOnCreate(bundleApplication);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    }
-                });
-            } catch (Exception e) {
-                e.printStackTrace();
+            if (apk.bundle.getInitMode() == Bundle.INIT_ON_MAIN) {
+                // Load the class here to save time of the UI thread
+                try {
+                    Class.forName(bundleApplicationName);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    continue;
+                }
             }
+            apk.bundle.postInitializer(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Class applicationClass = Class.forName(bundleApplicationName);
+                        BundleApplicationContext appContext = new BundleApplicationContext(app, apk);
+                        Application bundleApplication = Instrumentation.newApplication(
+                                applicationClass, appContext);
+                        sHostInstrumentation.callApplicationOnCreate(bundleApplication);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
         }
 
         // Free temporary variables
         sLoadedApks = null;
     }
 
+    /**
+     * Extract the secondary dex entry to a zip as its `classes.dex', which can be loaded
+     * by {@link DexFile#loadDex} on all the platforms. The entry is stored without
+     * compression so that it can be written in one pass.
+     * Do nothing if the zip is up to date.
+     */
+    private static void extractSecondaryDex(ZipArchive archive, int index, File zipFile)
+            throws IOException {
+        long crc = archive.getCrc(index);
+        long size = archive.getSize(index);
+        if (zipFile.exists()) {
+            ZipFile zip = null;
+            try {
+                zip = new ZipFile(zipFile);
+                ZipEntry entry = zip.getEntry(CLASSES_DEX);
+                if (entry != null && entry.getCrc() == crc && entry.getSize() == size) {
+                    return; // up to date
+                }
+            } catch (IOException ignored) {
+                // Broken, re-extract
+            } finally {
+                if (zip != null) zip.close();
+            }
+        }
+
+        File tempFile = FileUtils.getTempFile(zipFile);
+        FileOutputStream out = new FileOutputStream(tempFile);
+        InputStream in = null;
+        try {
+            ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(out));
+            ZipEntry entry = new ZipEntry(CLASSES_DEX);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setCrc(crc);
+            entry.setSize(size);
+            entry.setCompressedSize(size);
+            zos.putNextEntry(entry);
+            in = archive.getInputStream(index);
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                zos.write(buffer, 0, len);
+            }
+            zos.closeEntry();
+            zos.finish();
+            zos.flush();
+            if (!FileUtils.commitTempFile(out, tempFile, zipFile)) {
+                throw new IOException("Failed to rename " + tempFile + " to " + zipFile);
+            }
+        } finally {
+            if (in != null) in.close();
+            out.close();
+            tempFile.delete();
+        }
+    }
+
     @Override
     protected String[] getSupportingTypes() {
         return new String[] {"app", "lib"};
@@ -636,6 +754,7 @@ public class ApkBundleLauncher extends SoBundleLauncher {
         LoadedApk apk = sLoadedApks.get(packageName);
         if (apk == null) {
             apk = new LoadedApk();
+            apk.bundle = bundle;
             //包名
             apk.packageName = packageName;
             apk.path = apkPath;
@@ -645,23 +764,79 @@ public class ApkBundleLauncher extends SoBundleLauncher {
             }
             //data/data/宿主包名/files/storage/插件包名
             apk.packagePath = bundle.getExtractPath();
+
+            // Collect the secondary dex `classes2.dex', `classes3.dex'... (if any).
+            // On ART, all the `classesN.dex' in the apk are loaded with the primary one.
+            List<Integer> secondaryDexEntries = new ArrayList<Integer>();
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                try {
+                    ZipArchive archive = parser.getArchive();
+                    for (int n = 2; ; n++) {
+                        int index = archive.indexOf(SECONDARY_DEX_PREFIX + n + DEX_SUFFIX);
+                        if (index < 0) break;
+                        secondaryDexEntries.add(index);
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to read " + apkPath, e);
+                }
+            }
+
+            int N = secondaryDexEntries.size() + 1;
+            apk.dexPaths = new String[N];
+            apk.dexFiles = new DexFile[N];
+            apk.optDexFiles = new File[N];
+            apk.dexPaths[0] = apkPath;
             //data/data/宿主包名/files/storage/插件包名/bundle.dex
-            apk.optDexFile = new File(apk.packagePath, FILE_DEX);
+            apk.optDexFiles[0] = new File(apk.packagePath, FILE_DEX);
+            for (int i = 1; i < N; i++) {
+                //data/data/宿主包名/files/storage/插件包名/classesN.zip
+                apk.dexPaths[i] = new File(apk.packagePath,
+                        SECONDARY_DEX_PREFIX + (i + 1) + ZIP_SUFFIX).getPath();
+                //data/data/宿主包名/files/storage/插件包名/bundleN.dex
+                apk.optDexFiles[i] = new File(apk.packagePath,
+                        FILE_DEX_PREFIX + (i + 1) + DEX_SUFFIX);
+            }
 
-            // Load dex
-            final LoadedApk fApk = apk;
-            Bundle.postIO(new Runnable() {
+            // Delete the secondary dex files left by the older bundle with more dex
+            final File packagePath = apk.packagePath;
+            final int firstStaleIndex = N + 1;
+            Bundle.postIO(bundle, new Runnable() {
                 @Override
                 public void run() {
-                    try {
-                        //从so文件load dex文件
-                        fApk.dexFile = DexFile.loadDex(fApk.path, fApk.optDexFile.getPath(), 0);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
+                    for (int n = firstStaleIndex; ; n++) {
+                        File zipFile = new File(packagePath, SECONDARY_DEX_PREFIX + n + ZIP_SUFFIX);
+                        File optDexFile = new File(packagePath, FILE_DEX_PREFIX + n + DEX_SUFFIX);
+                        boolean deleted = zipFile.delete();
+                        deleted |= optDexFile.delete();
+                        if (!deleted) break;
                     }
                 }
             });
 
+            // Load (and optimize) each dex in parallel
+            for (int i = 0; i < N; i++) {
+                final LoadedApk fApk = apk;
+                final int dexIndex = i;
+                final int entryIndex = (i == 0) ? -1 : secondaryDexEntries.get(i - 1);
+                final BundleParser fParser = parser;
+                Bundle.postIO(bundle, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (entryIndex >= 0) {
+                                extractSecondaryDex(fParser.getArchive(), entryIndex,
+                                        new File(fApk.dexPaths[dexIndex]));
+                            }
+                            //从so文件load dex文件
+                            fApk.dexFiles[dexIndex] = DexFile.loadDex(fApk.dexPaths[dexIndex],
+                                    fApk.optDexFiles[dexIndex].getPath(), 0);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+            }
+
             // Extract native libraries with specify ABI
             String libDir = parser.getLibraryDirectory();
             if (libDir != null) {
@@ -99,21 +99,45 @@ public abstract class AssetBundleLauncher extends SoBundleLauncher {
         Intent intent = bundle.getIntent();
         if (intent == null) {
             intent = new Intent(Small.getContext(), getActivityClass());
-            intent.putExtra("url", bundle.getURL().toString());
-            // Intent extras - params
-            String query = bundle.getQuery();
-            if (query != null) {
-                intent.putExtra(Small.KEY_QUERY, '?'+query);
-            }
             bundle.setIntent(intent);
         }
+        // The intent is reused by each launch, which may route to another page
+        intent.putExtra("url", getPageUrl(bundle));
+        // Intent extras - params
+        String query = bundle.getQuery();
+        if (query != null) {
+            intent.putExtra(Small.KEY_QUERY, '?'+query);
+        } else {
+            intent.removeExtra(Small.KEY_QUERY);
+        }
+    }
+
+    /**
+     * Get the url of the page routed by the bundle rules, e.g. `detail.html' for
+     * `about/detail', or the index url if no page is specified
+     */
+    protected String getPageUrl(Bundle bundle) {
+        URL url = bundle.getURL();
+        String path = bundle.getPath();
+        if (path == null || path.length() == 0) return url.toString();
+
+        try {
+            String uri = new URL(url, path).toString();
+            if (bundle.getQuery() != null && uri.indexOf('?') < 0) {
+                uri += "?" + bundle.getQuery();
+            }
+            return uri;
+        } catch (MalformedURLException e) {
+            Log.e(TAG, "Failed to resolve " + path + " for bundle " + bundle.getPackageName());
+            return url.toString();
+        }
     }
 
     @Override
     public void launchBundle(Bundle bundle, Context context) {
         prelaunchBundle(bundle);
         Intent intent = bundle.getIntent();
-        intent.putExtra("url", bundle.getURL().toString());
+        intent.putExtra("url", getPageUrl(bundle));
         // Intent extras - params
         String query = bundle.getQuery();
         if (query != null) {
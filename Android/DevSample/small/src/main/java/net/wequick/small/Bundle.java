@@ -18,12 +18,15 @@ package net.wequick.small;
 
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
 
 import net.wequick.small.util.FileUtils;
+import net.wequick.small.webkit.WebActivity;
+import net.wequick.small.webkit.WebCache;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -31,19 +34,34 @@ import org.json.JSONObject;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
+import java.io.InputStreamReader;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class consists exclusively of methods that operate on apk plugin.
@@ -71,21 +89,39 @@ import java.util.concurrent.TimeUnit;
 public class Bundle {
     //______________________________________________________________________________
     // Fields
+    private static final String TAG = "Bundle";
     private static final String BUNDLE_MANIFEST_NAME = "bundle.json";
+    private static final String PENDING_MANIFEST_SUFFIX = ".pending";
+    private static final String DELTA_MANIFEST_SUFFIX = ".delta";
     private static final String VERSION_KEY = "version";
     private static final String BUNDLES_KEY = "bundles";
+    private static final String PREFETCH_KEY = "prefetch";
+    private static final String PACKAGE_KEY = "pkg";
+    private static final String DELTA_ADD_KEY = "add";
+    private static final String DELTA_REMOVE_KEY = "remove";
+    private static final String DELTA_REPLACE_KEY = "replace";
     private static final String HOST_PACKAGE = "main";
+    private static final String LIBRARY_TYPE = "lib";
+    private static final String INIT_MODE_KEY = "init";
+    private static final String INIT_IN_BACKGROUND_VALUE = "background";
+    private static final String INIT_ON_FIRST_USE_VALUE = "lazy";
+
+    protected static final int INIT_ON_MAIN = 0;
+    protected static final int INIT_IN_BACKGROUND = 1;
+    protected static final int INIT_ON_FIRST_USE = 2;
 
     //Manifest类
     private static final class Manifest {
         String version;
         List<Bundle> bundles;
+        List<String> prefetchUrls;
     }
 
     private static List<BundleLauncher> sBundleLaunchers = null;
-    private static List<Bundle> sPreloadBundles = null;
-    private static List<Bundle> sUpdatingBundles = null;
+    private static volatile List<Bundle> sPreloadBundles = null;
+    private static volatile List<Bundle> sUpdatingBundles = null;
     private static File sPatchManifestFile = null;
+    private static ExecutorService sManifestWriter = null;
     private static String sUserBundlesPath = null;
     private static boolean sIs64bit = false;
 
@@ -93,17 +129,30 @@ public class Bundle {
     private static final int MSG_COMPLETE = 1;
     private static LoadBundleHandler sHandler;
     private static LoadBundleThread sThread;
-    private static boolean sLoading;
+    private static CountDownLatch sLoadingLatch;
+    private static volatile boolean sUIBlocking;
+    private static volatile boolean sRestorePending;
+
+    /** The route settings of a bundle, replaced as a whole while updating the manifest */
+    private static final class Route {
+        final String uriString;
+        final Uri uri;
+        final HashMap<String, String> rules;
+
+        Route(String uriString, HashMap<String, String> rules) {
+            this.uriString = uriString;
+            this.uri = (uriString == null) ? null : Uri.parse(uriString);
+            this.rules = rules;
+        }
+    }
 
     private String mPackageName;
-    private String uriString;
-    private Uri uri;
+    private volatile Route mRoute;
     private URL url; // for WebBundleLauncher
     private Intent mIntent;
     private String type;
     private String path;
     private String query;
-    private HashMap<String, String> rules;
     private int versionCode;
     private String versionName;
 
@@ -121,6 +170,13 @@ public class Bundle {
 
     private BundleParser parser;
 
+    private int mInitMode = INIT_ON_MAIN;
+    /** The initializer not run on the main thread, either in background or on first use */
+    private FutureTask<Void> mInitializer;
+
+    private long mLoadingTime;
+    private volatile Throwable mLoadingError;
+
     //______________________________________________________________________________
     // Class methods
 
@@ -150,88 +206,340 @@ public class Bundle {
     }
 
     /**
-     * Update bundle.json and apply settings
+     * Update bundle.json and apply settings, waiting until the manifest has been saved
      * @param data the manifest JSON object
      * @param force <tt>true</tt> if force to update current bundles
      * @return <tt>true</tt> if successfully updated
+     * @see #updateManifestAsync(JSONObject, boolean)
      */
     //更新bundle.json
     public static boolean updateManifest(JSONObject data, boolean force) {
-        if (data == null) return false;
+        try {
+            return updateManifestAsync(data, force).get();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return false;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Update bundle.json and apply settings, the manifest is saved on a background writer
+     * @param data the manifest JSON object
+     * @param force <tt>true</tt> if force to update current bundles, otherwise the manifest
+     *              will be applied at next launch
+     * @return the future to be completed with <tt>true</tt> if successfully saved
+     */
+    public static Future<Boolean> updateManifestAsync(JSONObject data, boolean force) {
+        if (data == null) return completedFuture(false);
 
         //利用data生成Manifest类对象
         Manifest manifest = parseManifest(data);
-        if (manifest == null) return false;
+        if (manifest == null) return completedFuture(false);
 
         //data转化为String
-        String manifestJson;
+        final String manifestJson = data.toString();
+
+        if (force) {
+            // Update bundles
+            //更新manifest对象的bundles
+            updateRoutes(manifest.bundles);
+            // Save to file, and drop the pending one which is older than this
+            //写入"/data/data/包名/files/bundle.json"
+            return postWriteManifest(manifestJson, getPatchManifestFile(),
+                    getPendingManifestFile(), getDeltaManifestFile());
+        } else {
+            // Temporary add bundle
+            addUpdatingBundles(manifest.bundles);
+            // Save as pending, which will be applied at next launch
+            return postWriteManifest(manifestJson, getPendingManifestFile(),
+                    getDeltaManifestFile());
+        }
+    }
+
+    /**
+     * Update part of bundle.json and apply the route settings immediately
+     *
+     * <p>The <tt>delta</tt> is in format:
+     * <pre>
+     * {
+     *   "remove": ["net.wequick.example.small.app.about"],
+     *   "replace": [{"uri": "main", "pkg": "net.wequick.example.small.app.main"}],
+     *   "add": [{"uri": "detail", "pkg": "net.wequick.example.small.app.detail"}]
+     * }
+     * </pre>
+     * The bundles in <tt>add</tt> and <tt>replace</tt> are keyed by <tt>pkg</tt>, adding an
+     * existing bundle replaces it while replacing a missing one adds it. A new bundle can be
+     * found by {@link Small#getBundle} at once but will not be loaded until next launch.
+     *
+     * <p>Only the <tt>delta</tt> is appended to the saved manifest, which will be merged into
+     * the manifest at next launch.
+     *
+     * @param delta the manifest delta JSON object
+     * @return the future to be completed with <tt>true</tt> if successfully saved
+     */
+    public static Future<Boolean> updateManifestDelta(JSONObject delta) {
+        if (delta == null) return completedFuture(false);
+
+        ManifestDelta changes;
+        List<Bundle> updates;
         try {
-            manifestJson = data.toString(2);
+            changes = parseManifestDelta(delta);
+            updates = new ArrayList<Bundle>(changes.updates.size());
+            for (JSONObject desc : changes.updates) {
+                updates.add(new Bundle(desc));
+            }
         } catch (JSONException e) {
             e.printStackTrace();
-            return false;
+            return completedFuture(false);
         }
 
-        if (force) {
-            // Save to file
-            //从"/data/data/包名/files/"获取bundle.json文件
-            File manifestFile = getPatchManifestFile();
-            //将data转化为的字符串写入bundle.json文件中
-            try {
-                PrintWriter pw = new PrintWriter(new FileOutputStream(manifestFile));
-                pw.print(manifestJson);
-                pw.flush();
-                pw.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-                return false;
+        applyManifestDelta(changes.removes, updates);
+        return postAppendManifestDelta(delta.toString(), getDeltaManifestFile());
+    }
+
+    /** A parsed manifest delta, the <tt>add</tt> and <tt>replace</tt> are both updates */
+    private static final class ManifestDelta {
+        List<String> removes = new ArrayList<String>();
+        List<JSONObject> updates = new ArrayList<JSONObject>();
+    }
+
+    private static ManifestDelta parseManifestDelta(JSONObject delta) throws JSONException {
+        ManifestDelta changes = new ManifestDelta();
+        JSONArray removes = delta.optJSONArray(DELTA_REMOVE_KEY);
+        if (removes != null) {
+            for (int i = 0; i < removes.length(); i++) {
+                changes.removes.add(removes.getString(i));
             }
-            // Update bundles
-            //更新manifest对象的bundles
-            for (Bundle bundle : manifest.bundles) {
-                Bundle preloadBundle = findBundle(bundle.getPackageName(), sPreloadBundles);
-                //如果sPreloadBundles的Bundle中存在，则更新
-                if (preloadBundle != null) {
-                    // Update bundle
-                    preloadBundle.uriString = bundle.uriString;
-                    preloadBundle.uri = bundle.uri;
-                    preloadBundle.rules = bundle.rules;
-                }
+        }
+        collectDeltaUpdates(delta.optJSONArray(DELTA_REPLACE_KEY), changes.updates);
+        collectDeltaUpdates(delta.optJSONArray(DELTA_ADD_KEY), changes.updates);
+        return changes;
+    }
+
+    private static void collectDeltaUpdates(JSONArray descs, List<JSONObject> outUpdates)
+            throws JSONException {
+        if (descs == null) return;
+        for (int i = 0; i < descs.length(); i++) {
+            JSONObject desc = descs.getJSONObject(i);
+            if (!desc.has(PACKAGE_KEY)) {
+                throw new JSONException("Missing `" + PACKAGE_KEY + "' in " + desc);
             }
-        } else {
+            outUpdates.add(desc);
+        }
+    }
+
+    /*
+     * The writers of the route table are serialized by the class lock. Both bundle lists are
+     * copied and published by a single reference swap, and the route of an existing bundle
+     * is replaced as a whole, so that readers never lock.
+     */
+
+    /** Replace the routes of the preload bundles by the ones of the <tt>updates</tt> */
+    private static synchronized void updateRoutes(List<Bundle> updates) {
+        List<Bundle> bundles = sPreloadBundles;
+        for (Bundle update : updates) {
+            Bundle bundle = findBundle(update.getPackageName(), bundles);
+            //如果sPreloadBundles的Bundle中存在，则更新
+            if (bundle != null) {
+                bundle.mRoute = update.mRoute;
+            }
+        }
+    }
+
+    /** Add the <tt>updates</tt> missing in the preload bundles to the updating bundles */
+    private static synchronized void addUpdatingBundles(List<Bundle> updates) {
+        List<Bundle> updatingBundles = (sUpdatingBundles == null)
+                ? new ArrayList<Bundle>() : new ArrayList<Bundle>(sUpdatingBundles);
+        for (Bundle update : updates) {
+            //如果sPreloadBundles中的Bundle没有，将新的bundle放到sUpdatingBundles中
+            if (findBundle(update.getPackageName(), sPreloadBundles) == null) {
+                updatingBundles.add(update);
+            }
+        }
+        sUpdatingBundles = updatingBundles;
+    }
+
+    /** Apply the changes to the route table */
+    private static synchronized void applyManifestDelta(List<String> removes,
+                                                        List<Bundle> updates) {
+        List<Bundle> bundles = (sPreloadBundles == null)
+                ? new ArrayList<Bundle>() : new ArrayList<Bundle>(sPreloadBundles);
+        List<Bundle> updatingBundles = (sUpdatingBundles == null)
+                ? new ArrayList<Bundle>() : new ArrayList<Bundle>(sUpdatingBundles);
+        for (String pkg : removes) {
+            Bundle bundle = findBundle(pkg, bundles);
+            if (bundle != null) bundles.remove(bundle);
+            bundle = findBundle(pkg, updatingBundles);
+            if (bundle != null) updatingBundles.remove(bundle);
+        }
+        for (Bundle update : updates) {
+            Bundle bundle = findBundle(update.getPackageName(), bundles);
+            if (bundle != null) {
+                bundle.mRoute = update.mRoute;
+                continue;
+            }
+
             // Temporary add bundle
-            for (Bundle bundle : manifest.bundles) {
-                Bundle preloadBundle = findBundle(bundle.getPackageName(), sPreloadBundles);
-                //如果sPreloadBundles中的Bundle没有，将新的bundle放到sUpdatingBundles中
-                if (preloadBundle == null) {
-                    if (sUpdatingBundles == null) {
-                        sUpdatingBundles = new ArrayList<Bundle>();
+            bundle = findBundle(update.getPackageName(), updatingBundles);
+            if (bundle != null) updatingBundles.remove(bundle);
+            updatingBundles.add(update);
+        }
+        sUpdatingBundles = updatingBundles;
+        sPreloadBundles = bundles;
+    }
+
+    /** Merge the delta into the <tt>bundles</tt> of the manifest JSON object */
+    private static void mergeManifestDelta(JSONObject manifest, JSONObject delta)
+            throws JSONException {
+        ManifestDelta changes = parseManifestDelta(delta);
+        Map<String, JSONObject> updates = new LinkedHashMap<String, JSONObject>();
+        for (JSONObject desc : changes.updates) {
+            updates.put(desc.getString(PACKAGE_KEY), desc);
+        }
+
+        JSONArray bundles = manifest.getJSONArray(BUNDLES_KEY);
+        JSONArray merged = new JSONArray();
+        for (int i = 0; i < bundles.length(); i++) {
+            JSONObject desc = bundles.getJSONObject(i);
+            String pkg = desc.optString(PACKAGE_KEY, null);
+            if (pkg != null && changes.removes.contains(pkg)) continue;
+
+            JSONObject update = (pkg == null) ? null : updates.remove(pkg);
+            merged.put(update != null ? update : desc);
+        }
+        for (JSONObject desc : updates.values()) {
+            merged.put(desc);
+        }
+        manifest.put(BUNDLES_KEY, merged);
+    }
+
+    /**
+     * Merge the saved deltas (one JSON object per line) into the manifest, the broken
+     * lines which may be left by an interrupted appending are skipped.
+     *
+     * @return <tt>true</tt> if any delta merged
+     */
+    private static boolean mergeManifestDeltas(JSONObject manifest, File deltaFile)
+            throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(
+                new FileInputStream(deltaFile), "UTF-8"));
+        boolean merged = false;
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.length() == 0) continue;
+                try {
+                    mergeManifestDelta(manifest, new JSONObject(line));
+                    merged = true;
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            br.close();
+        }
+        return merged;
+    }
+
+    private static synchronized Future<Boolean> postAppendManifestDelta(final String json,
+                                                                        final File file) {
+        return getManifestWriter().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                FileOutputStream out = null;
+                try {
+                    out = new FileOutputStream(file, true);
+                    // Start with a line break to separate from a broken line if any
+                    out.write(("\n" + json + "\n").getBytes("UTF-8"));
+                    out.flush();
+                    out.getFD().sync();
+                    return true;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return false;
+                } finally {
+                    if (out != null) {
+                        try {
+                            out.close();
+                        } catch (IOException ignored) {
+                            // Ignored
+                        }
                     }
-                    sUpdatingBundles.add(bundle);
                 }
             }
-            // Save to `SharedPreference'
-            //将新的JSONObject字符串存储到SharedPreferences中
-            setCacheManifest(manifestJson);
+        });
+    }
+
+    private static ExecutorService getManifestWriter() {
+        if (sManifestWriter == null) {
+            sManifestWriter = Executors.newSingleThreadExecutor();
+        }
+        return sManifestWriter;
+    }
+
+    private static synchronized Future<Boolean> postWriteManifest(final String json,
+                                                                  final File file,
+                                                                  final File... obsoleteFiles) {
+        return getManifestWriter().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                if (!writeManifest(json, file)) return false;
+
+                for (File obsoleteFile : obsoleteFiles) {
+                    obsoleteFile.delete();
+                }
+                return true;
+            }
+        });
+    }
+
+    /** Write the manifest to a temporary file and rename it to <tt>file</tt> atomically */
+    private static boolean writeManifest(String json, File file) {
+        File tempFile = FileUtils.getTempFile(file);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tempFile);
+            out.write(json.getBytes("UTF-8"));
+            boolean committed = FileUtils.commitTempFile(out, tempFile, file);
+            out = null;
+            return committed;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                    // Ignored
+                }
+                tempFile.delete();
+            }
         }
-        return true;
+    }
+
+    private static <T> Future<T> completedFuture(T result) {
+        FutureTask<T> future = new FutureTask<T>(new Runnable() {
+            @Override
+            public void run() {
+                // Nothing to do
+            }
+        }, result);
+        future.run();
+        return future;
     }
 
     //获取SharedPreferences中存储的Manifest字符串
+    // Only for upgrading, the pending manifest is saved as `bundle.json.pending' now
     private static String getCacheManifest() {
         return Small.getSharedPreferences().getString(BUNDLE_MANIFEST_NAME, null);
     }
 
-    //将字符串text存储到SharedPreferences中
-    private static void setCacheManifest(String text) {
-        SharedPreferences small = Small.getSharedPreferences();
-        SharedPreferences.Editor editor = small.edit();
-        if (text == null) {
-            editor.remove(BUNDLE_MANIFEST_NAME);
-        } else {
-            editor.putString(BUNDLE_MANIFEST_NAME, text);
-        }
-        editor.apply();
+    private static void clearCacheManifest() {
+        Small.getSharedPreferences().edit().remove(BUNDLE_MANIFEST_NAME).apply();
     }
 
     public static boolean is64bit() {
@@ -246,36 +554,171 @@ public class Bundle {
     protected static void loadLaunchableBundles(Small.OnCompleteListener listener) {
 //      解析bundle.json，并加载bundle
         Context context = Small.getContext();
+        sRestorePending = false;
 
         boolean synchronous = (listener == null);
-        if (synchronous) {
-            sLoading = true;
-        }
 
         // Asynchronous
         if (sThread == null) {
-            sThread = new LoadBundleThread(context);
-            sHandler = new LoadBundleHandler(listener);
-            sThread.start();
+            sUIBlocking = synchronous;
+            startLoadBundleThread(new LoadBundleThread(context, null), listener);
+        } else if (listener != null) {
+            sHandler.addListener(listener);
         }
 
         if (synchronous) {
-            while (sLoading) {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            awaitLoadBundleThread();
+        }
+    }
+
+    /**
+     * Called by {@link Small#preSetUp} if the app is restarted by system to restore an activity,
+     * the bundles will be loaded while the activity is launching.
+     *
+     * @see #loadBundlesForRestore(String)
+     */
+    protected static void setRestorePending() {
+        sRestorePending = true;
+    }
+
+    protected static boolean isRestorePending() {
+        return sRestorePending;
+    }
+
+    /**
+     * Load the bundle who owns the restoring <tt>activityClass</tt> and all the <i>lib</i>
+     * bundles synchronously, so that the activity can be created at once.
+     * The rest bundles are loaded in background.
+     *
+     * @param activityClass the restoring activity class, <tt>null</tt> if not in bundle
+     *                      which leads to load all the bundles synchronously
+     */
+    protected static void loadBundlesForRestore(String activityClass) {
+        if (!sRestorePending) return;
+        sRestorePending = false;
+
+        Manifest manifest = loadManifest(Small.getContext());
+        if (manifest == null) return;
+
+        List<Bundle> bundles = manifest.bundles;
+        Bundle owner = (activityClass == null) ? null : findOwnerBundle(activityClass, bundles);
+        List<Bundle> restBundles = new ArrayList<Bundle>();
+        List<Bundle> restoringBundles;
+        if (owner == null) {
+            restoringBundles = bundles;
+        } else {
+            restoringBundles = new ArrayList<Bundle>();
+            for (Bundle bundle : bundles) {
+                if (bundle == owner || bundle.isLibrary()) {
+                    restoringBundles.add(bundle);
+                } else {
+                    restBundles.add(bundle);
                 }
             }
-            if (sUIActions != null) {
-                for (Runnable action : sUIActions) {
-                    action.run();
-                }
-                sUIActions = null;
+        }
+
+        sPreloadBundles = bundles;
+        sUIBlocking = true;
+        try {
+            setUpBundles(restoringBundles);
+        } finally {
+            sUIBlocking = false;
+        }
+        runUIActions();
+        prefetch(manifest);
+
+        if (!restBundles.isEmpty() && sThread == null) {
+            startLoadBundleThread(new LoadBundleThread(Small.getContext(), restBundles), null);
+        }
+    }
+
+    /**
+     * Wait for the loading bundles, or start loading if the restoring activity is not
+     * launched yet.
+     *
+     * @param listener the callback when finished, <tt>null</tt> to wait synchronously
+     */
+    protected static void awaitLaunchableBundles(Small.OnCompleteListener listener) {
+        if (sRestorePending) {
+            loadLaunchableBundles(listener);
+            return;
+        }
+
+        if (sThread != null) {
+            if (listener == null) {
+                awaitLoadBundleThread();
+            } else {
+                sHandler.addListener(listener);
             }
+            return;
+        }
+
+        if (listener != null) {
+            listener.onComplete();
         }
     }
 
+    private static void startLoadBundleThread(LoadBundleThread thread,
+                                              Small.OnCompleteListener listener) {
+        sLoadingLatch = new CountDownLatch(1);
+        sHandler = new LoadBundleHandler(listener);
+        sThread = thread;
+        thread.start();
+    }
+
+    private static void awaitLoadBundleThread() {
+        CountDownLatch latch = sLoadingLatch;
+        if (latch != null) {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        sUIBlocking = false;
+        runUIActions();
+    }
+
+    private static void runUIActions() {
+        if (sUIActions != null) {
+            List<Runnable> actions = sUIActions;
+            sUIActions = null;
+            for (Runnable action : actions) {
+                action.run();
+            }
+        }
+    }
+
+    /** Find the bundle whose package name is the longest prefix of <tt>className</tt> */
+    private static Bundle findOwnerBundle(String className, List<Bundle> bundles) {
+        Bundle owner = null;
+        int ownerLength = 0;
+        for (Bundle bundle : bundles) {
+            String pkg = bundle.mPackageName;
+            if (pkg == null || pkg.length() <= ownerLength) continue;
+            if (className.startsWith(pkg) && className.length() > pkg.length()
+                    && className.charAt(pkg.length()) == '.') {
+                owner = bundle;
+                ownerLength = pkg.length();
+            }
+        }
+        return owner;
+    }
+
+    /**
+     * @return <tt>true</tt> if the bundle is a <i>lib</i> one, which is specified by
+     * <tt>type</tt> or package name like <i>com.example.lib.any</i>, <i>com.example.libany</i>
+     */
+    private boolean isLibrary() {
+        if (type != null) return type.equals(LIBRARY_TYPE);
+        if (mPackageName == null) return false;
+
+        String[] pkgs = mPackageName.split("\\.");
+        int N = pkgs.length;
+        return (N > 1 && pkgs[N - 2].equals(LIBRARY_TYPE))
+                || pkgs[N - 1].startsWith(LIBRARY_TYPE);
+    }
+
     //获取/data/data/包名/files/bundle.json文件
     private static File getPatchManifestFile() {
         if (sPatchManifestFile == null) {
@@ -283,9 +726,52 @@ public class Bundle {
         }
         return sPatchManifestFile;
     }
+
+    //获取/data/data/包名/files/bundle.json.delta文件
+    private static File getDeltaManifestFile() {
+        return new File(Small.getContext().getFilesDir(),
+                BUNDLE_MANIFEST_NAME + DELTA_MANIFEST_SUFFIX);
+    }
+
+    //获取/data/data/包名/files/bundle.json.pending文件
+    private static File getPendingManifestFile() {
+        return new File(Small.getContext().getFilesDir(),
+                BUNDLE_MANIFEST_NAME + PENDING_MANIFEST_SUFFIX);
+    }
+
+    private static String readManifest(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[(int) file.length()];
+            int offset = 0;
+            int len;
+            while (offset < buffer.length
+                    && (len = in.read(buffer, offset, buffer.length - offset)) != -1) {
+                offset += len;
+            }
+            return new String(buffer, 0, offset, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
     //真正加载解析插件的各类信息并存入Bundle对象
-    //解析文件的过程比较简单，读取文件，解析为json
     private static void loadBundles(Context context) {
+        Manifest manifest = loadManifest(context);
+        if (manifest == null) return;
+
+        loadBundles(manifest.bundles);
+        prefetch(manifest);
+    }
+
+    private static void prefetch(Manifest manifest) {
+        if (manifest.prefetchUrls == null || manifest.prefetchUrls.isEmpty()) return;
+
+        // Indexed and downloaded in background
+        WebCache.getInstance().prefetch(manifest.prefetchUrls);
+    }
+
+    //解析文件的过程比较简单，读取文件，解析为json
+    private static Manifest loadManifest(Context context) {
         //bundle.json字符串转化为JSONObject对象manifestData
         JSONObject manifestData;
         try {
@@ -293,37 +779,32 @@ public class Bundle {
             //从"/data/data/包名/files/"获取bundle.json文件
             File patchManifestFile = getPatchManifestFile();
 
+            File pendingManifestFile = getPendingManifestFile();
+
+            // Upgrade the legacy manifest cached in `SharedPreferences'
             //获取sharepreference中存储的manifestJson
-            ////获取SharedPreferences中存储的Manifest字符串
             String manifestJson = getCacheManifest();
-
-            //sharepreference中manifestJson存在
             if (manifestJson != null) {
-                // Load from cache and save as patch
-                //如果bundle.json文件不存在，则新建bundle.json文件
-                if (!patchManifestFile.exists()) patchManifestFile.createNewFile();
-                //将manifestJson写入bundle.json文件
-                PrintWriter pw = new PrintWriter(new FileOutputStream(patchManifestFile));
-                pw.print(manifestJson);
-                pw.flush();
-                pw.close();
+                if (!pendingManifestFile.exists()) {
+                    writeManifest(manifestJson, pendingManifestFile);
+                }
                 // Clear cache
-                //将SharedPreferences中存储的Manifest字符串清空
-                setCacheManifest(null);
+                clearCacheManifest();
+            }
 
-                //sharepreference中manifestJson不存在
-                //如果patch路径bundle.json文件存在
-            } else if (patchManifestFile.exists()) {
-                // Load from patch从patch路径下加载bundle.json
-                BufferedReader br = new BufferedReader(new FileReader(patchManifestFile));
-                StringBuilder sb = new StringBuilder();
-                String line;
-                while ((line = br.readLine()) != null) {
-                    sb.append(line);
+            //如果存在待更新的bundle.json，则替换patch路径下的bundle.json
+            if (pendingManifestFile.exists()) {
+                // Apply the pending manifest
+                if (!pendingManifestFile.renameTo(patchManifestFile)) {
+                    patchManifestFile.delete();
+                    pendingManifestFile.renameTo(patchManifestFile);
                 }
+            }
 
-                br.close();
-                manifestJson = sb.toString();
+            //如果patch路径bundle.json文件存在
+            if (patchManifestFile.exists()) {
+                // Load from patch从patch路径下加载bundle.json
+                manifestJson = readManifest(patchManifestFile);
             } else {
                 // Load from built-in `assets/bundle.json'
                 // 从宿主的assets目录下加载bundle.json
@@ -338,15 +819,24 @@ public class Bundle {
             // Parse manifest file
             // 解析manifestjson文件
             manifestData = new JSONObject(manifestJson);
+
+            // Merge the deltas and save as patch
+            File deltaManifestFile = getDeltaManifestFile();
+            if (deltaManifestFile.exists()) {
+                if (mergeManifestDeltas(manifestData, deltaManifestFile)) {
+                    if (writeManifest(manifestData.toString(), patchManifestFile)) {
+                        deltaManifestFile.delete();
+                    }
+                } else {
+                    deltaManifestFile.delete();
+                }
+            }
         } catch (Exception e) {
             e.printStackTrace();
-            return;
+            return null;
         }
         //将manifestjson字符串解析转化为Manifest对象
-        Manifest manifest = parseManifest(manifestData);
-        if (manifest == null) return;
-
-        loadBundles(manifest.bundles);
+        return parseManifest(manifestData);
     }
 
     protected static Boolean isLoadingAsync() {
@@ -384,6 +874,18 @@ public class Bundle {
                 Manifest manifest = new Manifest();
                 manifest.version = version;
                 manifest.bundles = bundles;
+
+                // The web pages to be cached for the downgraded uris
+                JSONArray prefetch = data.optJSONArray(PREFETCH_KEY);
+                if (prefetch != null) {
+                    int M = prefetch.length();
+                    List<String> urls = new ArrayList<String>(M);
+                    for (int i = 0; i < M; i++) {
+                        String url = prefetch.optString(i, null);
+                        if (url != null) urls.add(url);
+                    }
+                    manifest.prefetchUrls = urls;
+                }
                 return manifest;
             } catch (JSONException e) {
                 e.printStackTrace();
@@ -420,6 +922,7 @@ public class Bundle {
             for (Bundle bundle : sPreloadBundles) {
                 if (bundle.matchesRule(uri)) {
                     if (!bundle.enabled) return null; // Illegal bundle (invalid signature, etc.)
+                    bundle.ensureInitialized();
                     return bundle;
                 }
             }
@@ -437,6 +940,10 @@ public class Bundle {
             bundle.setQuery(uri.getEncodedQuery()); // Fix issue #6 from Spring-Xu.
             bundle.mApplicableLauncher = new WebBundleLauncher();
             bundle.mApplicableLauncher.prelaunchBundle(bundle);
+            if (bundle.mIntent != null) {
+                // Serve the page from the disk cache with revalidation
+                bundle.mIntent.putExtra(WebActivity.EXTRA_USE_CACHE, true);
+            }
             return bundle;
         }
         return null;
@@ -451,10 +958,13 @@ public class Bundle {
          *  output
          *      - target => AbcController
          */
+        Route route = mRoute;
+        if (route == null || route.uriString == null) return false;
+
         String uriString = uri.toString();
-        if (this.uriString == null || !uriString.startsWith(this.uriString)) return false;
+        if (!uriString.startsWith(route.uriString)) return false;
 
-        String srcPath = uriString.substring(this.uriString.length());
+        String srcPath = uriString.substring(route.uriString.length());
         String srcQuery = uri.getEncodedQuery();
         if (srcQuery != null) {
             srcPath = srcPath.substring(0, srcPath.length() - srcQuery.length() - 1);
@@ -465,9 +975,9 @@ public class Bundle {
         if (srcPath.equals("")) {
             dstPath = srcPath;
         } else {
-            for (String key : this.rules.keySet()) {
+            for (String key : route.rules.keySet()) {
                 // TODO: regex match and replace
-                if (key.equals(srcPath)) dstPath = this.rules.get(key);
+                if (key.equals(srcPath)) dstPath = route.rules.get(key);
                 if (dstPath != null) break;
             }
             if (dstPath == null) return false;
@@ -532,34 +1042,43 @@ public class Bundle {
             }
         }
 
+        String uriString = null;
         if (map.has("uri")) {
-            String uri = map.getString("uri");
-            if (!uri.startsWith("http") && Small.getBaseUri() != null) {
-                uri = Small.getBaseUri() + uri;
+            uriString = map.getString("uri");
+            if (!uriString.startsWith("http") && Small.getBaseUri() != null) {
+                uriString = Small.getBaseUri() + uriString;
             }
-            this.uriString = uri;
-            this.uri = Uri.parse(uriString);
         }
 
         if (map.has("type")) {
             this.type = map.getString("type");
         }
 
-        this.rules = new HashMap<String, String>();
+        if (map.has(INIT_MODE_KEY)) {
+            String init = map.getString(INIT_MODE_KEY);
+            if (INIT_IN_BACKGROUND_VALUE.equals(init)) {
+                mInitMode = INIT_IN_BACKGROUND;
+            } else if (INIT_ON_FIRST_USE_VALUE.equals(init)) {
+                mInitMode = INIT_ON_FIRST_USE;
+            }
+        }
+
+        HashMap<String, String> rules = new HashMap<String, String>();
         // Default rules to visit entrance page of bundle
-        this.rules.put("", "");
-        this.rules.put(".html", "");
-        this.rules.put("/index", "");
-        this.rules.put("/index.html", "");
+        rules.put("", "");
+        rules.put(".html", "");
+        rules.put("/index", "");
+        rules.put("/index.html", "");
         if (map.has("rules")) {
             // User rules to visit other page of bundle
             JSONObject rulesObj = map.getJSONObject("rules");
             Iterator<String> it = rulesObj.keys();
             while (it.hasNext()) {
                 String key = it.next();
-                this.rules.put("/" + key, rulesObj.getString(key));
+                rules.put("/" + key, rulesObj.getString(key));
             }
         }
+        mRoute = new Route(uriString, rules);
     }
 
     protected void prepareForLaunch() {
@@ -600,7 +1119,8 @@ public class Bundle {
     }
 
     protected Uri getUri() {
-        return uri;
+        Route route = mRoute;
+        return (route == null) ? null : route.uri;
     }
 
     protected void setURL(URL url) {
@@ -708,6 +1228,7 @@ public class Bundle {
             prepareForLaunch();
         }
         if (mApplicableLauncher == null) return null;
+        ensureInitialized();
         return mApplicableLauncher.createObject(this, context, type);
     }
 
@@ -715,6 +1236,159 @@ public class Bundle {
         return enabled;
     }
 
+    protected int getInitMode() {
+        return mInitMode;
+    }
+
+    /**
+     * Post the <tt>initializer</tt> of the bundle (e.g. to create the bundle application),
+     * which runs as the <tt>init</tt> mode specified in <tt>bundle.json</tt>:
+     * <ul>
+     * <li><i>main</i> - (default) on the UI thread after loaded</li>
+     * <li><i>background</i> - in background after loaded, in parallel with the other bundles.
+     * The <i>lib</i> bundles are initialized before the <i>app</i> ones.</li>
+     * <li><i>lazy</i> - on the first time the route or object of the bundle is requested</li>
+     * </ul>
+     */
+    protected void postInitializer(Runnable initializer) {
+        if (mInitMode == INIT_ON_MAIN) {
+            postUI(initializer);
+            return;
+        }
+
+        // Kept to be run or waited for by `ensureInitialized'
+        FutureTask<Void> task = new FutureTask<Void>(initializer, null) {
+            @Override
+            protected void done() {
+                try {
+                    if (!isCancelled()) get();
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Failed to initialize bundle " + mPackageName, e.getCause());
+                } catch (InterruptedException ignored) {
+                    // Never happens as done
+                }
+            }
+        };
+        synchronized (this) {
+            mInitializer = task;
+        }
+        if (mInitMode == INIT_IN_BACKGROUND) {
+            synchronized (Bundle.class) {
+                if (isLibrary()) {
+                    if (sLibraryInitializers == null) {
+                        sLibraryInitializers = new ArrayList<Runnable>();
+                    }
+                    sLibraryInitializers.add(task);
+                } else {
+                    if (sAppInitializers == null) {
+                        sAppInitializers = new ArrayList<Runnable>();
+                    }
+                    sAppInitializers.add(task);
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the initializer inline if it has not started, or wait for it if it is running in
+     * background, so that the bundle is ready before its route or component is used
+     */
+    private void ensureInitialized() {
+        FutureTask<Void> task;
+        synchronized (this) {
+            task = mInitializer;
+        }
+        if (task == null) return;
+
+        List<Bundle> bundles = sPreloadBundles;
+        if (mInitMode == INIT_IN_BACKGROUND && !isLibrary() && bundles != null) {
+            // Keep the libraries initialized before the apps
+            for (Bundle bundle : bundles) {
+                if (bundle.isLibrary() && bundle.mInitMode == INIT_IN_BACKGROUND) {
+                    bundle.ensureInitialized();
+                }
+            }
+        }
+        task.run(); // No effect if started
+        try {
+            task.get();
+        } catch (ExecutionException ignored) {
+            // Logged by the task
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        synchronized (this) {
+            if (mInitializer == task) mInitializer = null;
+        }
+    }
+
+    /**
+     * Initialize the bundle <tt>packageName</tt> before its activity is created, e.g. restored
+     * by the system or started by an explicit intent
+     */
+    protected static void ensureInitialized(String packageName) {
+        Bundle bundle = findByName(packageName);
+        if (bundle != null) {
+            bundle.ensureInitialized();
+        }
+    }
+
+    /** Run the background initializers posted while loading, the <i>lib</i> ones first */
+    private static synchronized void runBackgroundInitializers() {
+        if (sLibraryInitializers == null && sAppInitializers == null) return;
+
+        final List<Runnable> libraryInitializers = sLibraryInitializers;
+        final List<Runnable> appInitializers = sAppInitializers;
+        sLibraryInitializers = null;
+        sAppInitializers = null;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runInParallel(libraryInitializers);
+                runInParallel(appInitializers);
+            }
+        }, "small-init").start();
+    }
+
+    private static void runInParallel(List<Runnable> actions) {
+        if (actions == null) return;
+
+        int N = actions.size();
+        if (N == 1) {
+            actions.get(0).run();
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(N, Runtime.getRuntime().availableProcessors()));
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(N);
+        for (Runnable action : actions) {
+            tasks.add(Executors.callable(action));
+        }
+        try {
+            executor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /** @return the time in milliseconds spent on the I/O actions while loading the bundle */
+    public long getLoadingTime() {
+        return mLoadingTime;
+    }
+
+    /** @return the error which disabled the bundle while loading, <tt>null</tt> if none */
+    public Throwable getLoadingError() {
+        return mLoadingError;
+    }
+
+    private synchronized void addLoadingTime(long time) {
+        mLoadingTime += time;
+    }
+
     protected void setEnabled(boolean enabled) {
         this.enabled = enabled;
     }
@@ -741,62 +1415,102 @@ public class Bundle {
     private static class LoadBundleThread extends Thread {
 
         Context mContext;
+        List<Bundle> mBundles;
+        CountDownLatch mLatch;
+        LoadBundleHandler mHandler;
 
-        public LoadBundleThread(Context context) {
+        /**
+         * @param bundles the bundles to load, <tt>null</tt> to load all the bundles
+         *                from manifest
+         */
+        public LoadBundleThread(Context context, List<Bundle> bundles) {
             mContext = context;
+            mBundles = bundles;
+        }
+
+        @Override
+        public synchronized void start() {
+            mLatch = sLoadingLatch;
+            mHandler = sHandler;
+            super.start();
         }
 
         @Override
         public void run() {
-            // Instantiate bundle
-            loadBundles(mContext);
-            sLoading = false;
-            sHandler.obtainMessage(MSG_COMPLETE).sendToTarget();
+            try {
+                // Instantiate bundle
+                if (mBundles == null) {
+                    loadBundles(mContext);
+                } else {
+                    setUpBundles(mBundles);
+                }
+            } finally {
+                mLatch.countDown();
+                mHandler.obtainMessage(MSG_COMPLETE).sendToTarget();
+            }
         }
     }
 
-    private static final int LOADING_TIMEOUT_MINUTES = 5;
+    private static final int IO_ACTION_TIMEOUT_SECONDS = 30;
+    private static final int BUNDLE_LOADING_TIMEOUT_SECONDS = 60;
+    private static final long IO_ACTION_POLL_MILLIS = 100;
+    private static final int IO_THREAD_COUNT_MAX = 8;
 
     //载入bundles
     private static void loadBundles(List<Bundle> bundles) {
         sPreloadBundles = bundles;
+        setUpBundles(bundles);
+    }
 
-        // Prepare bundle准备插件
-        for (Bundle bundle : bundles) {
-            bundle.prepareForLaunch();
+    /**
+     * Prepare the <tt>bundles</tt> and notify `postSetUp' to all launchers. This may be
+     * called more than once for different bundles, the launchers merge them incrementally.
+     */
+    private static void setUpBundles(List<Bundle> bundles) {
+        // Only one process loads the bundles at a time, the others reuse its results
+        ProcessLock processLock = ProcessLock.getInstance(Small.getContext());
+        StateJournal journal = Small.getStateJournal();
+        if (processLock.acquire()) {
+            journal.reload();
+            CrcStore.releaseInstance();
         }
 
-        // Handle I/O
-        if (sIOActions != null) {
-            /*
-            * 接口 java.util.concurrent.ExecutorService 表述了异步执行的机制，
-            * 并且可以让任务在后台执行。壹個 ExecutorService 实例因此特别像壹個线程池。
-            * 事实上，在 java.util.concurrent 包中的 ExecutorService 的实现就是壹個线程池的实现。
-             */
-            ExecutorService executor = Executors.newFixedThreadPool(sIOActions.size());
-            for (Runnable action : sIOActions) {
-                executor.execute(action);
-            }
-            /*
-            * 调用 shutdown() 方法,ExecutorService 并不会马上关闭，而是不再接收新的任务，
-            * 壹但所有的线程结束执行当前任务，ExecutorServie 才会真的关闭。
-            * 所有在调用 shutdown() 方法之前提交到 ExecutorService 的任务都会执行。
-             */
-            executor.shutdown();
-            try {
-                if (!executor.awaitTermination(LOADING_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
-                    throw new RuntimeException("Failed to load bundles! (TIMEOUT > "
-                            + LOADING_TIMEOUT_MINUTES + "minutes)");
+        // Collect all the bundle states changed while loading and write them at once
+        journal.beginBatch();
+        try {
+            // Prepare bundle准备插件
+            for (Bundle bundle : bundles) {
+                bundle.prepareForLaunch();
+            }
+
+            // Handle I/O
+            if (sIOActions != null) {
+                List<IOAction> actions = sIOActions;
+                sIOActions = null;
+                runIOActions(actions);
+            }
+
+            // Report the loading time and failure of each bundle
+            for (Bundle bundle : bundles) {
+                if (bundle.mLoadingError != null) {
+                    Log.e(TAG, "Disabled bundle " + bundle.mPackageName + " after "
+                            + bundle.mLoadingTime + "ms", bundle.mLoadingError);
+                } else if (bundle.mLoadingTime > 0) {
+                    Log.d(TAG, "Loaded bundle " + bundle.mPackageName + " in "
+                            + bundle.mLoadingTime + "ms");
                 }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
             }
-            sIOActions = null;
-        }
 
-        // Notify `postSetUp' to all launchers
-        for (BundleLauncher launcher : sBundleLaunchers) {
-            launcher.postSetUp();
+            // Notify `postSetUp' to all launchers
+            for (BundleLauncher launcher : sBundleLaunchers) {
+                launcher.postSetUp();
+            }
+            runBackgroundInitializers();
+        } finally {
+            // Let the other processes reload the states and reopen the crcs if modified
+            boolean modified = journal.endBatch();
+            modified |= CrcStore.takeModified();
+            processLock.release(modified);
         }
 
         // Free all unused temporary variables
@@ -810,18 +1524,171 @@ public class Bundle {
         }
     }
 
-    private static List<Runnable> sIOActions;
+    private static List<IOAction> sIOActions;
+    private static ThreadPoolExecutor sIOExecutor;
+    private static List<Runnable> sLibraryInitializers;
+    private static List<Runnable> sAppInitializers;
     private static List<Runnable> sUIActions;
 
     protected static void postIO(Runnable action) {
+        postIO(null, action);
+    }
+
+    /**
+     * Post an I/O action for the <tt>bundle</tt>, if the action fails or times out,
+     * the bundle will be disabled while the others go on.
+     */
+    protected static void postIO(Bundle bundle, Runnable action) {
         if (sIOActions == null) {
-            sIOActions = new ArrayList<Runnable>();
+            sIOActions = new ArrayList<IOAction>();
+        }
+        sIOActions.add(new IOAction(bundle, action));
+    }
+
+    /**
+     * Run the actions in parallel and wait for them. Each action should finish in
+     * {@link #IO_ACTION_TIMEOUT_SECONDS} since it started, and the actions of a bundle should
+     * finish in {@link #BUNDLE_LOADING_TIMEOUT_SECONDS} since its first action started,
+     * otherwise the action is cancelled and the bundle is disabled. The time an action waits
+     * in the queue behind the other bundles is not counted.
+     */
+    private static void runIOActions(List<IOAction> actions) {
+        int N = actions.size();
+        /*
+        * 接口 java.util.concurrent.ExecutorService 表述了异步执行的机制，
+        * 并且可以让任务在后台执行。壹個 ExecutorService 实例因此特别像壹個线程池。
+        * 事实上，在 java.util.concurrent 包中的 ExecutorService 的实现就是壹個线程池的实现。
+         */
+        ExecutorService executor = getIOExecutor();
+        // The time each bundle's first action started at
+        ConcurrentHashMap<Bundle, Long> bundleStartTimes = new ConcurrentHashMap<Bundle, Long>();
+        List<Future<?>> futures = new ArrayList<Future<?>>(N);
+        for (IOAction action : actions) {
+            action.bundleStartTimes = bundleStartTimes;
+            futures.add(executor.submit(action));
+        }
+
+        long actionTimeout = TimeUnit.SECONDS.toMillis(IO_ACTION_TIMEOUT_SECONDS);
+        long bundleTimeout = TimeUnit.SECONDS.toMillis(BUNDLE_LOADING_TIMEOUT_SECONDS);
+        outer:
+        for (int i = 0; i < N; i++) {
+            IOAction action = actions.get(i);
+            Future<?> future = futures.get(i);
+            while (true) {
+                if (action.bundle != null && action.bundle.mLoadingError != null) {
+                    // The bundle has been failed, drop the rest actions
+                    future.cancel(true);
+                    break;
+                }
+
+                // Only count the time of the action and its own bundle
+                long deadline = Long.MAX_VALUE;
+                long startTime = action.startTime;
+                if (startTime != 0) deadline = startTime + actionTimeout;
+                Long bundleStartTime = (action.bundle == null) ? null
+                        : bundleStartTimes.get(action.bundle);
+                if (bundleStartTime != null) {
+                    deadline = Math.min(deadline, bundleStartTime + bundleTimeout);
+                }
+
+                long now = SystemClock.elapsedRealtime();
+                try {
+                    // Poll while queued, as the deadline is unknown till it starts
+                    future.get(Math.max(Math.min(deadline - now, IO_ACTION_POLL_MILLIS), 0),
+                            TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    if (SystemClock.elapsedRealtime() < deadline) continue;
+
+                    future.cancel(true);
+                    onIOActionFailed(action, e);
+                    break;
+                } catch (ExecutionException e) {
+                    onIOActionFailed(action, e.getCause());
+                    break;
+                } catch (CancellationException ignored) {
+                    // Cancelled by us
+                    break;
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    break outer;
+                }
+            }
+        }
+
+        // Interrupt the actions left behind, the loading does not wait for them anymore
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Get the executor shared by the I/O actions of loading bundles, e.g. extracting and
+     * verifying the entries. The threads are bounded and exit after idle for a while.
+     *
+     * <p>A task running on this executor should not block on the tasks it submits, as they may
+     * be queued behind it.
+     */
+    protected static synchronized ExecutorService getIOExecutor() {
+        if (sIOExecutor == null) {
+            int N = Math.max(2, Math.min(IO_THREAD_COUNT_MAX,
+                    Runtime.getRuntime().availableProcessors() * 2));
+            sIOExecutor = new ThreadPoolExecutor(N, N, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "small-io-" + mCount.incrementAndGet());
+                }
+            });
+            sIOExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sIOExecutor;
+    }
+
+    private static void onIOActionFailed(IOAction action, Throwable error) {
+        Bundle bundle = action.bundle;
+        if (bundle == null) {
+            Log.e(TAG, "Failed to run I/O action", error);
+            return;
+        }
+
+        if (bundle.mLoadingError == null) {
+            bundle.mLoadingError = error;
+        }
+        bundle.setEnabled(false);
+    }
+
+    private static final class IOAction implements Runnable {
+        final Bundle bundle;
+        final Runnable action;
+        volatile long startTime;
+        ConcurrentHashMap<Bundle, Long> bundleStartTimes;
+
+        IOAction(Bundle bundle, Runnable action) {
+            this.bundle = bundle;
+            this.action = action;
+        }
+
+        @Override
+        public void run() {
+            startTime = SystemClock.elapsedRealtime();
+            if (bundle != null && bundleStartTimes != null) {
+                bundleStartTimes.putIfAbsent(bundle, startTime);
+            }
+            try {
+                action.run();
+            } finally {
+                if (bundle != null) {
+                    bundle.addLoadingTime(SystemClock.elapsedRealtime() - startTime);
+                }
+            }
         }
-        sIOActions.add(action);
     }
 
     protected static void postUI(Runnable action) {
-        if (sHandler.mListener == null) {
+        if (sUIBlocking || sHandler == null) {
             // The UI thread is block, records the actions for lazy run.
             if (sUIActions == null) {
                 sUIActions = new ArrayList<Runnable>();
@@ -834,22 +1701,30 @@ public class Bundle {
     }
 
     private static class LoadBundleHandler extends Handler {
-        private Small.OnCompleteListener mListener;
+        private List<Small.OnCompleteListener> mListeners =
+                new ArrayList<Small.OnCompleteListener>();
 
         public LoadBundleHandler(Small.OnCompleteListener listener) {
-            mListener = listener;
+            if (listener != null) {
+                mListeners.add(listener);
+            }
+        }
+
+        void addListener(Small.OnCompleteListener listener) {
+            mListeners.add(listener);
         }
 
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_COMPLETE:
-                    if (mListener != null) {
-                        mListener.onComplete();
-                    }
-                    mListener = null;
                     sThread = null;
                     sHandler = null;
+                    sLoadingLatch = null;
+                    for (Small.OnCompleteListener listener : mListeners) {
+                        listener.onComplete();
+                    }
+                    mListeners.clear();
                     break;
             }
         }
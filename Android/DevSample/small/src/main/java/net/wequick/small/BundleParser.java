@@ -12,32 +12,49 @@ import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.os.Build;
 import android.os.PatternMatcher;
-import android.util.AttributeSet;
 import android.util.Log;
-import android.util.SparseIntArray;
 import android.util.TypedValue;
 
+import net.wequick.small.util.AXmlParser;
+import net.wequick.small.util.FileUtils;
 import net.wequick.small.util.JNIUtils;
 import net.wequick.small.util.ReflectAccelerator;
+import net.wequick.small.util.ZipArchive;
+import net.wequick.small.util.ZipUtils;
 
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.io.InputStreamReader;
 import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.zip.ZipFile;
 
 /**
  * This class consists exclusively of methods that operate on external bundle.
@@ -57,6 +74,10 @@ public class BundleParser {
 
     private static final String TAG = "BundleParser";
 
+    /** The signed digest file generated by gradle-small for the asset bundles */
+    private static final String DIGEST_ENTRY_NAME = "small.digest";
+    private static final String DIGEST_ALGORITHM_KEY = "Digest-Algorithm";
+
     /* com.android.internal.R.styleable.* on
      * https://github.com/android/platform_frameworks_base/blob/gingerbread-release/core%2Fres%2Fres%2Fvalues%2Fpublic.xml
      * xref: /frameworks/base/core/res/res/values/public.xml
@@ -88,6 +109,9 @@ public class BundleParser {
             public static int AndroidManifestActivity_screenOrientation = 5;
             public static int AndroidManifestActivity_windowSoftInputMode = 6;
             public static int AndroidManifestActivity_hardwareAccelerated = 7;
+            // action and category (for intent-filter)
+            public static int[] AndroidManifestAction = {0x01010003};
+            public static int AndroidManifestAction_name = 0;
             // data (for intent-filter)
             public static int[] AndroidManifestData = {
                     0x01010026, 0x01010027, 0x01010028, 0x01010029,
@@ -104,19 +128,19 @@ public class BundleParser {
     }
 
     private String mArchiveSourcePath;
+    private ZipArchive mArchive;
     private String mPackageName;
     private WeakReference<byte[]> mReadBuffer;
     private PackageInfo mPackageInfo;
-    private XmlResourceParser parser;
-    private Resources res;
+    private ManifestReader mManifestReader;
     private ConcurrentHashMap<String, List<IntentFilter>> mIntentFilters;
     private boolean mNonResources;
     private boolean mUsesHardwareAccelerated;
     private String mLibDir;
     private String mLauncherActivityName;
+    private boolean mActivitiesCollected;
 
     private Context mContext;
-    private ZipFile mZipFile;
 
     public BundleParser(File sourceFile, String packageName) {
         mArchiveSourcePath = sourceFile.getPath();
@@ -128,14 +152,43 @@ public class BundleParser {
         if (sourceFile == null || !sourceFile.exists()) return null;
 
         BundleParser bp = new BundleParser(sourceFile, packageName);
-        if (!bp.parsePackage()) return null;
+        if (!bp.parsePackage()) {
+            bp.close();
+            return null;
+        }
 
         return bp;
     }
 
     //解析包信息
     public boolean parsePackage() {
+        // Read the binary manifest directly first, which needs no asset manager
+        try {
+            AXmlParser parser = AXmlParser.open(getArchive(), "AndroidManifest.xml");
+            ManifestReader reader = new BinaryManifestReader(parser);
+            if (parseManifest(reader)) {
+                parseActivities(reader);
+                return true;
+            }
+        } catch (UnresolvedValueException e) {
+            Log.d(TAG, "Resolve " + e.getMessage() + " of " + mArchiveSourcePath
+                    + " with resources");
+        } catch (XmlPullParserException e) {
+            Log.w(TAG, "Unable to read AndroidManifest.xml of "
+                    + mArchiveSourcePath, e);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read AndroidManifest.xml of "
+                    + mArchiveSourcePath, e);
+        }
+        // Drop the partial results
+        mPackageInfo = null;
+        mLibDir = null;
+        mIntentFilters = null;
+        mLauncherActivityName = null;
+        mActivitiesCollected = false;
+
         AssetManager assmgr = null;
+        XmlResourceParser parser = null;
         boolean assetError = true;
         try {
             assmgr = ReflectAccelerator.newAssetManager();
@@ -160,234 +213,569 @@ public class BundleParser {
         }
 
         //Resources对象，有了这个Resources对象之后，我们就可以通过资源ID来访问那些被编译过的应用程序资源了。
-        res = new Resources(assmgr, mContext.getResources().getDisplayMetrics(), null);
-        return parsePackage(res, parser);
+        Resources res = new Resources(assmgr, mContext.getResources().getDisplayMetrics(), null);
+        // The activities are collected later by `collectActivities'
+        mManifestReader = new ResourcesManifestReader(res, parser);
+        try {
+            return parseManifest(mManifestReader);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return false;
     }
 
     //解析AndroidManifest
-    private boolean parsePackage(Resources res, XmlResourceParser parser) {
-        //AttributeSet用来接收xml属性信息,用于获得一系列基本的属性值
-        AttributeSet attrs = parser;
-        mPackageInfo = new PackageInfo();
-
-        try {
-            int type;
-            //如果在xml文件的起始标签或者文件结尾就等待
-            while ((type=parser.next()) != XmlResourceParser.START_TAG
-                    && type != XmlResourceParser.END_DOCUMENT) ;
-
-            // <manifest ...
-            //读取AndroidManifest.xml中的package
-            mPackageInfo.packageName = parser.getAttributeValue(null, "package").intern();
-
-            // After gradle-small 0.9.0, we roll out
-            // `The Small exclusive flags`
-            //  F    F    F    F    F    F    F    F
-            // 1111 1111 1111 1111 1111 1111 1111 1111
-            // ^^^^ ^^^^ ^^^^ ^^^^ ^^^^
-            //       ABI Flags (20)
-            //                          ^
-            //                 nonResources Flag (1)
-            //                           ^^^ ^^^^ ^^^^
-            //                     platformBuildVersionCode (11) => MAX=0x7FF=4095
-            int flags = parser.getAttributeIntValue(null, "platformBuildVersionCode", 0);
-            int abiFlags = (flags & 0xFFFFF000) >> 12;
-            mNonResources = (flags & 0x800) != 0;
-
-            //获取versionCode和versionName放入到TypedArray中
-            TypedArray sa = res.obtainAttributes(attrs,
-                    R.styleable.AndroidManifest);
-            //获取versionCode
-            mPackageInfo.versionCode = sa.getInteger(
-                    R.styleable.AndroidManifest_versionCode, 0);
-            //获取versionName
-            String versionName = sa.getString(
-                    R.styleable.AndroidManifest_versionName);
-            if (versionName != null) {
-                mPackageInfo.versionName = versionName.intern();
-            }
-
-            // <application ...
-            while ((type=parser.next()) != XmlResourceParser.END_DOCUMENT) {
-                if (type == XmlResourceParser.TEXT) {
-                    continue;
-                }
+    private boolean parseManifest(ManifestReader parser)
+            throws XmlPullParserException, IOException, UnresolvedValueException {
+        int type;
+        //如果在xml文件的起始标签或者文件结尾就等待
+        while ((type=parser.next()) != XmlResourceParser.START_TAG
+                && type != XmlResourceParser.END_DOCUMENT) ;
+        if (type != XmlResourceParser.START_TAG) return false;
+
+        // <manifest ...
+        //读取AndroidManifest.xml中的package
+        PackageInfo packageInfo = new PackageInfo();
+        String packageName = parser.getAttributeValue("package");
+        if (packageName == null) return false;
+        packageInfo.packageName = packageName.intern();
+
+        // After gradle-small 0.9.0, we roll out
+        // `The Small exclusive flags`
+        //  F    F    F    F    F    F    F    F
+        // 1111 1111 1111 1111 1111 1111 1111 1111
+        // ^^^^ ^^^^ ^^^^ ^^^^ ^^^^
+        //       ABI Flags (20)
+        //                          ^
+        //                 nonResources Flag (1)
+        //                           ^^^ ^^^^ ^^^^
+        //                     platformBuildVersionCode (11) => MAX=0x7FF=4095
+        int flags = parser.getAttributeIntValue("platformBuildVersionCode", 0);
+        int abiFlags = (flags & 0xFFFFF000) >> 12;
+        mNonResources = (flags & 0x800) != 0;
+
+        //获取versionCode和versionName
+        parser.obtainAttributes(R.styleable.AndroidManifest);
+        packageInfo.versionCode = parser.getInteger(
+                R.styleable.AndroidManifest_versionCode, 0);
+        String versionName = parser.getString(
+                R.styleable.AndroidManifest_versionName);
+        if (versionName != null) {
+            packageInfo.versionName = versionName.intern();
+        }
 
-                String tagName = parser.getName();
-                //application
-                if (tagName.equals("application")) {
-                    ApplicationInfo host = mContext.getApplicationInfo();
-                    ApplicationInfo app = new ApplicationInfo(host);
+        // <application ...
+        while ((type=parser.next()) != XmlResourceParser.END_DOCUMENT) {
+            if (type != XmlResourceParser.START_TAG
+                    || !parser.getName().equals("application")) {
+                continue;
+            }
 
-                    sa = res.obtainAttributes(attrs,
-                            R.styleable.AndroidManifestApplication);
+            ApplicationInfo host = mContext.getApplicationInfo();
+            ApplicationInfo app = new ApplicationInfo(host);
 
-                    //获取android:name
-                    String name = sa.getString(
-                            R.styleable.AndroidManifestApplication_name);
-                    if (name != null) {
-                        app.className = name.intern();
-                    } else {
-                        app.className = null;
-                    }
+            parser.obtainAttributes(R.styleable.AndroidManifestApplication);
 
-                    // Get the label value which used as ABI flags.
-                    // This is depreciated, we read it from the `platformBuildVersionCode` instead.
-                    // TODO: Remove this if the gradle-small 0.9.0 or above being widely used.
-                    if (abiFlags == 0) {
-                        TypedValue label = new TypedValue();
-                        //android:label
-                        if (sa.getValue(R.styleable.AndroidManifestApplication_label, label)) {
-                            if (label.type == TypedValue.TYPE_STRING) {
-                                abiFlags = Integer.parseInt(label.string.toString());
-                            } else {
-                                abiFlags = label.data;
-                            }
-                        }
-                        if (abiFlags != 0) {
-                            throw new RuntimeException("Please recompile " + mPackageName
-                                    + " use gradle-small 0.9.0 or above");
-                        }
-                    }
+            //获取android:name
+            String name = parser.getString(R.styleable.AndroidManifestApplication_name);
+            app.className = (name != null) ? name.intern() : null;
 
-                    //android:theme
-                    app.theme = sa.getResourceId(
-                            R.styleable.AndroidManifestApplication_theme, 0);
+            // Get the label value which used as ABI flags.
+            // This is depreciated, we read it from the `platformBuildVersionCode` instead.
+            // TODO: Remove this if the gradle-small 0.9.0 or above being widely used.
+            if (abiFlags == 0) {
+                //android:label
+                abiFlags = parser.getIntegerOrString(
+                        R.styleable.AndroidManifestApplication_label, 0);
+                if (abiFlags != 0) {
+                    throw new RuntimeException("Please recompile " + mPackageName
+                            + " use gradle-small 0.9.0 or above");
+                }
+            }
 
-                    //android:hardwareAccelerated
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-                        mUsesHardwareAccelerated = sa.getBoolean(
-                                R.styleable.AndroidManifestApplication_hardwareAccelerated,
-                                host.targetSdkVersion >= Build.VERSION_CODES.ICE_CREAM_SANDWICH);
-                    }
+            //android:theme
+            app.theme = parser.getResourceId(R.styleable.AndroidManifestApplication_theme);
 
-                    mPackageInfo.applicationInfo = app;
-                    break;
-                }
+            //android:hardwareAccelerated
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                mUsesHardwareAccelerated = parser.getBoolean(
+                        R.styleable.AndroidManifestApplication_hardwareAccelerated,
+                        host.targetSdkVersion >= Build.VERSION_CODES.ICE_CREAM_SANDWICH);
             }
 
-            if (abiFlags != 0) {
-                String abi = JNIUtils.getExtractABI(abiFlags, Bundle.is64bit());
-                if (abi != null) {
-                    mLibDir = "lib/" + abi + "/";
-                }
+            packageInfo.applicationInfo = app;
+            break;
+        }
+        parser.recycle();
+
+        if (abiFlags != 0) {
+            String abi = JNIUtils.getExtractABI(abiFlags, Bundle.is64bit());
+            if (abi != null) {
+                mLibDir = "lib/" + abi + "/";
             }
+        }
+        mPackageInfo = packageInfo;
+        return true;
+    }
 
-            sa.recycle();
+    //解析Activity配置信息
+    public boolean collectActivities() {
+        if (mActivitiesCollected) return true;
+        if (mPackageInfo == null || mPackageInfo.applicationInfo == null) return false;
+        if (mManifestReader == null) return false;
+
+        try {
+            parseActivities(mManifestReader);
             return true;
-        } catch (XmlPullParserException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
+        } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            mManifestReader = null;
         }
         return false;
     }
 
-    //解析Activity配置信息
-    public boolean collectActivities() {
-        if (mPackageInfo == null || mPackageInfo.applicationInfo == null) return false;
-        AttributeSet attrs = parser;
+    private void parseActivities(ManifestReader parser)
+            throws XmlPullParserException, IOException, UnresolvedValueException {
+        if (mPackageInfo.applicationInfo == null) {
+            mActivitiesCollected = true;
+            return;
+        }
 
         int type;
-        try {
-            List<ActivityInfo> activities = new ArrayList<ActivityInfo>();
-            while ((type = parser.next()) != XmlResourceParser.END_DOCUMENT) {
+        List<ActivityInfo> activities = new ArrayList<ActivityInfo>();
+        while ((type = parser.next()) != XmlResourceParser.END_DOCUMENT) {
+            if (type != XmlResourceParser.START_TAG) {
+                continue;
+            }
+
+            String tagName = parser.getName();
+            if (!tagName.equals("activity")) continue;
+
+            // <activity ...
+            ActivityInfo ai = new ActivityInfo();
+            ai.applicationInfo = mPackageInfo.applicationInfo;
+            ai.packageName = ai.applicationInfo.packageName;
+
+            parser.obtainAttributes(R.styleable.AndroidManifestActivity);
+            //android:name
+            String name = parser.getString(R.styleable.AndroidManifestActivity_name);
+            if (name != null) {
+                ai.name = ai.targetActivity = buildClassName(mPackageName, name);
+            }
+            //android:label
+            ai.labelRes = parser.getResourceId(R.styleable.AndroidManifestActivity_label);
+            //android:icon
+            ai.icon = parser.getResourceId(R.styleable.AndroidManifestActivity_icon);
+            //android:theme
+            ai.theme = parser.getResourceId(R.styleable.AndroidManifestActivity_theme);
+            //android:launchMode
+            ai.launchMode = parser.getInteger(R.styleable.AndroidManifestActivity_launchMode, 0);
+            //noinspection ResourceType
+            ai.screenOrientation = parser.getInteger(
+                    R.styleable.AndroidManifestActivity_screenOrientation,
+                    ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED);
+            ai.softInputMode = parser.getInteger(
+                    R.styleable.AndroidManifestActivity_windowSoftInputMode, 0);
+
+            //android:hardwareAccelerated
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                boolean hardwareAccelerated = parser.getBoolean(
+                        R.styleable.AndroidManifestActivity_hardwareAccelerated,
+                        mUsesHardwareAccelerated);
+                if (hardwareAccelerated) {
+                    ai.flags |= ActivityInfo.FLAG_HARDWARE_ACCELERATED;
+                }
+            }
+
+            activities.add(ai);
+
+            parser.recycle();
+
+            // <intent-filter ...
+            List<IntentFilter> intents = new ArrayList<IntentFilter>();
+            int outerDepth = parser.getDepth();
+            while ((type=parser.next()) != XmlResourceParser.END_DOCUMENT
+                    && (type != XmlResourceParser.END_TAG
+                    || parser.getDepth() > outerDepth)) {
                 if (type != XmlResourceParser.START_TAG) {
                     continue;
                 }
 
-                String tagName = parser.getName();
-                if (!tagName.equals("activity")) continue;
+                if (parser.getName().equals("intent-filter")) {
+                    IntentFilter intent = new IntentFilter();
 
-                // <activity ...
-                ActivityInfo ai = new ActivityInfo();
-                ai.applicationInfo = mPackageInfo.applicationInfo;
-                ai.packageName = ai.applicationInfo.packageName;
+                    parseIntent(parser, true, intent);
 
-                TypedArray sa = res.obtainAttributes(attrs,
-                        R.styleable.AndroidManifestActivity);
-                //android:name
-                String name = sa.getString(R.styleable.AndroidManifestActivity_name);
-                if (name != null) {
-                    ai.name = ai.targetActivity = buildClassName(mPackageName, name);
-                }
-                //android:label
-                ai.labelRes = sa.getResourceId(R.styleable.AndroidManifestActivity_label, 0);
-                //android:icon
-                ai.icon = sa.getResourceId(R.styleable.AndroidManifestActivity_icon, 0);
-                //android:theme
-                ai.theme = sa.getResourceId(R.styleable.AndroidManifestActivity_theme, 0);
-                //android:launchMode
-                ai.launchMode = sa.getInteger(R.styleable.AndroidManifestActivity_launchMode, 0);
-                //noinspection ResourceType
-                ai.screenOrientation = sa.getInt(
-                        R.styleable.AndroidManifestActivity_screenOrientation,
-                        ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED);
-                ai.softInputMode = sa.getInteger(
-                        R.styleable.AndroidManifestActivity_windowSoftInputMode, 0);
-
-                //android:hardwareAccelerated
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-                    boolean hardwareAccelerated = sa.getBoolean(
-                            R.styleable.AndroidManifestActivity_hardwareAccelerated,
-                            mUsesHardwareAccelerated);
-                    if (hardwareAccelerated) {
-                        ai.flags |= ActivityInfo.FLAG_HARDWARE_ACCELERATED;
+                    if (intent.countActions() == 0) {
+                        Log.w(TAG, "No actions in intent filter at "
+                                + mArchiveSourcePath + " activity " + ai.name);
+                    } else {
+                        intents.add(intent);
+                        if (intent.hasCategory(Intent.CATEGORY_LAUNCHER)) {
+                            mLauncherActivityName = ai.name;
+                        }
                     }
                 }
+            }
 
-                activities.add(ai);
+            if (intents.size() > 0) {
+                if (mIntentFilters == null) {
+                    mIntentFilters = new ConcurrentHashMap<String, List<IntentFilter>>();
+                }
+                mIntentFilters.put(ai.name, intents);
+            }
+        }
 
-                sa.recycle();
+        int N = activities.size();
+        if (N > 0) {
+            mPackageInfo.activities = new ActivityInfo[N];
+            mPackageInfo.activities = activities.toArray(mPackageInfo.activities);
+        }
+        mActivitiesCollected = true;
+    }
 
-                // <intent-filter ...
-                List<IntentFilter> intents = new ArrayList<IntentFilter>();
-                int outerDepth = parser.getDepth();
-                while ((type=parser.next()) != XmlResourceParser.END_DOCUMENT
-                        && (type != XmlResourceParser.END_TAG
-                        || parser.getDepth() > outerDepth)) {
-                    if (type == XmlResourceParser.END_TAG || type == XmlResourceParser.TEXT) {
-                        continue;
-                    }
+    //解析intent-filter
+    private boolean parseIntent(ManifestReader parser, boolean allowGlobs, IntentFilter outInfo)
+            throws XmlPullParserException, IOException, UnresolvedValueException {
+        int outerDepth = parser.getDepth();
+        int type;
+        while ((type = parser.next()) != XmlResourceParser.END_DOCUMENT
+                && (type != XmlResourceParser.END_TAG || parser.getDepth() > outerDepth)) {
+            if (type != XmlResourceParser.START_TAG) {
+                continue;
+            }
+
+            //<action or <category
+            String nodeName = parser.getName();
+            if (nodeName.equals("action") || nodeName.equals("category")) {
+                parser.obtainAttributes(R.styleable.AndroidManifestAction);
+                String value = parser.getString(R.styleable.AndroidManifestAction_name);
+                parser.recycle();
+                if (value == null || value.length() == 0) {
+                    return false;
+                }
+                skipCurrentTag(parser);
+
+                if (nodeName.equals("action")) {
+                    outInfo.addAction(value);
+                } else {
+                    outInfo.addCategory(value);
+                }
 
-                    if (parser.getName().equals("intent-filter")) {
-                        IntentFilter intent = new IntentFilter();
-                        
-                        parseIntent(res, parser, attrs, true, true, intent);
-
-                        if (intent.countActions() == 0) {
-                            Log.w(TAG, "No actions in intent filter at "
-                                    + mArchiveSourcePath + " "
-                                    + parser.getPositionDescription());
-                        } else {
-                            intents.add(intent);
-                            if (intent.hasCategory(Intent.CATEGORY_LAUNCHER)) {
-                                mLauncherActivityName = ai.name;
-                            }
+            //<data
+            } else if (nodeName.equals("data")) {
+                parser.obtainAttributes(R.styleable.AndroidManifestData);
+                try {
+                    //<android:mimetype
+                    String str = parser.getString(R.styleable.AndroidManifestData_mimeType);
+                    if (str != null) {
+                        try {
+                            outInfo.addDataType(str);
+                        } catch (IntentFilter.MalformedMimeTypeException e) {
+                            return false;
                         }
                     }
-                }
 
-                if (intents.size() > 0) {
-                    if (mIntentFilters == null) {
-                        mIntentFilters = new ConcurrentHashMap<String, List<IntentFilter>>();
+                    //<android:scheme
+                    str = parser.getString(R.styleable.AndroidManifestData_scheme);
+                    if (str != null) {
+                        outInfo.addDataScheme(str);
+                    }
+
+                    //<android:host
+                    String host = parser.getString(R.styleable.AndroidManifestData_host);
+                    //<android:port
+                    String port = parser.getString(R.styleable.AndroidManifestData_port);
+                    if (host != null) {
+                        outInfo.addDataAuthority(host, port);
+                    }
+
+                    //<android:path
+                    str = parser.getString(R.styleable.AndroidManifestData_path);
+                    if (str != null) {
+                        outInfo.addDataPath(str, PatternMatcher.PATTERN_LITERAL);
+                    }
+
+                    //<android:pathPrefix
+                    str = parser.getString(R.styleable.AndroidManifestData_pathPrefix);
+                    if (str != null) {
+                        outInfo.addDataPath(str, PatternMatcher.PATTERN_PREFIX);
                     }
-                    mIntentFilters.put(ai.name, intents);
+
+                    //<android:pathPattern
+                    str = parser.getString(R.styleable.AndroidManifestData_pathPattern);
+                    if (str != null) {
+                        if (!allowGlobs) {
+                            return false;
+                        }
+                        outInfo.addDataPath(str, PatternMatcher.PATTERN_SIMPLE_GLOB);
+                    }
+                } finally {
+                    parser.recycle();
                 }
+
+                skipCurrentTag(parser);
+            } else {
+                return false;
             }
+        }
 
-            int N = activities.size();
-            if (N > 0) {
-                mPackageInfo.activities = new ActivityInfo[N];
-                mPackageInfo.activities = activities.toArray(mPackageInfo.activities);
+        return true;
+    }
+
+    private static void skipCurrentTag(ManifestReader parser)
+            throws XmlPullParserException, IOException {
+        int outerDepth = parser.getDepth();
+        int type;
+        while ((type=parser.next()) != XmlResourceParser.END_DOCUMENT
+                && (type != XmlResourceParser.END_TAG
+                || parser.getDepth() > outerDepth)) {
+        }
+    }
+
+    /** Thrown if an attribute value can only be resolved by resources */
+    private static final class UnresolvedValueException extends Exception {
+        UnresolvedValueException(String attributeName) {
+            super(attributeName);
+        }
+    }
+
+    /**
+     * The manifest source for {@link #parseManifest} and {@link #parseActivities}, it walks
+     * the tags as a pull parser and reads the android attributes of current tag by the indexes
+     * of the styleable passed to {@link #obtainAttributes(int[])}, like a TypedArray.
+     */
+    private interface ManifestReader {
+        /** The event types are the same as {@link XmlResourceParser} */
+        int next() throws XmlPullParserException, IOException;
+        int getDepth();
+        String getName();
+
+        /** Get the attribute without namespace, e.g. `package' */
+        String getAttributeValue(String name);
+        int getAttributeIntValue(String name, int defValue);
+
+        void obtainAttributes(int[] attrs);
+        String getString(int index) throws UnresolvedValueException;
+        int getInteger(int index, int defValue) throws UnresolvedValueException;
+        boolean getBoolean(int index, boolean defValue) throws UnresolvedValueException;
+        int getResourceId(int index) throws UnresolvedValueException;
+        /** Get the integer value, or the integer in a string value */
+        int getIntegerOrString(int index, int defValue) throws UnresolvedValueException;
+        void recycle();
+    }
+
+    /**
+     * Read the binary manifest by {@link AXmlParser}. The raw attribute values are returned,
+     * a value which should be resolved by resources throws {@link UnresolvedValueException}.
+     */
+    private static final class BinaryManifestReader implements ManifestReader {
+
+        private final AXmlParser mParser;
+        private int[] mAttrs;
+
+        BinaryManifestReader(AXmlParser parser) {
+            mParser = parser;
+        }
+
+        @Override
+        public int next() throws IOException {
+            return mParser.next();
+        }
+
+        @Override
+        public int getDepth() {
+            return mParser.getDepth();
+        }
+
+        @Override
+        public String getName() {
+            return mParser.getName();
+        }
+
+        @Override
+        public String getAttributeValue(String name) {
+            int index = mParser.indexOfAttribute(name);
+            return (index < 0) ? null : mParser.getAttributeValue(index);
+        }
+
+        @Override
+        public int getAttributeIntValue(String name, int defValue) {
+            int index = mParser.indexOfAttribute(name);
+            if (index < 0) return defValue;
+
+            int type = mParser.getAttributeValueType(index);
+            if (type >= AXmlParser.TYPE_FIRST_INT && type <= AXmlParser.TYPE_LAST_INT) {
+                return mParser.getAttributeValueData(index);
+            }
+            return defValue;
+        }
+
+        @Override
+        public void obtainAttributes(int[] attrs) {
+            mAttrs = attrs;
+        }
+
+        @Override
+        public String getString(int index) throws UnresolvedValueException {
+            int i = mParser.indexOfAttribute(mAttrs[index]);
+            if (i < 0) return null;
+
+            int type = mParser.getAttributeValueType(i);
+            if (type == AXmlParser.TYPE_STRING) {
+                return mParser.getAttributeValue(i);
+            } else if (type == AXmlParser.TYPE_NULL) {
+                return null;
+            } else if (type == AXmlParser.TYPE_INT_BOOLEAN) {
+                return mParser.getAttributeValueData(i) != 0 ? "true" : "false";
+            } else if (type >= AXmlParser.TYPE_FIRST_INT && type <= AXmlParser.TYPE_LAST_INT) {
+                return String.valueOf(mParser.getAttributeValueData(i));
+            }
+            throw new UnresolvedValueException(mParser.getAttributeName(i));
+        }
+
+        @Override
+        public int getInteger(int index, int defValue) throws UnresolvedValueException {
+            int i = mParser.indexOfAttribute(mAttrs[index]);
+            if (i < 0) return defValue;
+
+            int type = mParser.getAttributeValueType(i);
+            if (type == AXmlParser.TYPE_NULL) {
+                return defValue;
+            } else if (type >= AXmlParser.TYPE_FIRST_INT && type <= AXmlParser.TYPE_LAST_INT) {
+                return mParser.getAttributeValueData(i);
+            }
+            throw new UnresolvedValueException(mParser.getAttributeName(i));
+        }
+
+        @Override
+        public boolean getBoolean(int index, boolean defValue) throws UnresolvedValueException {
+            int i = mParser.indexOfAttribute(mAttrs[index]);
+            if (i < 0) return defValue;
+
+            int type = mParser.getAttributeValueType(i);
+            if (type == AXmlParser.TYPE_NULL) {
+                return defValue;
+            } else if (type >= AXmlParser.TYPE_FIRST_INT && type <= AXmlParser.TYPE_LAST_INT) {
+                return mParser.getAttributeValueData(i) != 0;
+            }
+            throw new UnresolvedValueException(mParser.getAttributeName(i));
+        }
+
+        @Override
+        public int getResourceId(int index) throws UnresolvedValueException {
+            int i = mParser.indexOfAttribute(mAttrs[index]);
+            if (i < 0) return 0;
+
+            int type = mParser.getAttributeValueType(i);
+            if (type == AXmlParser.TYPE_REFERENCE) {
+                return mParser.getAttributeValueData(i);
+            } else if (type == AXmlParser.TYPE_ATTRIBUTE) {
+                throw new UnresolvedValueException(mParser.getAttributeName(i));
+            }
+            return 0;
+        }
+
+        @Override
+        public int getIntegerOrString(int index, int defValue) throws UnresolvedValueException {
+            int i = mParser.indexOfAttribute(mAttrs[index]);
+            if (i < 0) return defValue;
+
+            int type = mParser.getAttributeValueType(i);
+            if (type == AXmlParser.TYPE_STRING) {
+                return Integer.parseInt(mParser.getAttributeValue(i));
+            }
+            return getInteger(index, defValue);
+        }
+
+        @Override
+        public void recycle() {
+            mAttrs = null;
+        }
+    }
+
+    /** Read the manifest by the asset manager, the values are resolved by resources */
+    private static final class ResourcesManifestReader implements ManifestReader {
+
+        private final Resources mRes;
+        private final XmlResourceParser mParser;
+        private TypedArray mAttrs;
+
+        ResourcesManifestReader(Resources res, XmlResourceParser parser) {
+            mRes = res;
+            mParser = parser;
+        }
+
+        @Override
+        public int next() throws XmlPullParserException, IOException {
+            return mParser.next();
+        }
+
+        @Override
+        public int getDepth() {
+            return mParser.getDepth();
+        }
+
+        @Override
+        public String getName() {
+            return mParser.getName();
+        }
+
+        @Override
+        public String getAttributeValue(String name) {
+            return mParser.getAttributeValue(null, name);
+        }
+
+        @Override
+        public int getAttributeIntValue(String name, int defValue) {
+            return mParser.getAttributeIntValue(null, name, defValue);
+        }
+
+        @Override
+        public void obtainAttributes(int[] attrs) {
+            recycle();
+            mAttrs = mRes.obtainAttributes(mParser, attrs);
+        }
+
+        @Override
+        public String getString(int index) {
+            return mAttrs.getString(index);
+        }
+
+        @Override
+        public int getInteger(int index, int defValue) {
+            return mAttrs.getInt(index, defValue);
+        }
+
+        @Override
+        public boolean getBoolean(int index, boolean defValue) {
+            return mAttrs.getBoolean(index, defValue);
+        }
+
+        @Override
+        public int getResourceId(int index) {
+            return mAttrs.getResourceId(index, 0);
+        }
+
+        @Override
+        public int getIntegerOrString(int index, int defValue) {
+            TypedValue value = new TypedValue();
+            if (!mAttrs.getValue(index, value)) return defValue;
+
+            if (value.type == TypedValue.TYPE_STRING) {
+                return Integer.parseInt(value.string.toString());
+            }
+            return value.data;
+        }
+
+        @Override
+        public void recycle() {
+            if (mAttrs != null) {
+                mAttrs.recycle();
+                mAttrs = null;
             }
-            return true;
-        } catch (XmlPullParserException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        return false;
     }
 
     public boolean verifyAndExtract(Bundle bundle, BundleExtractor extractor) {
@@ -406,18 +794,38 @@ public class BundleParser {
         }
 
         byte[][] hostCerts = Small.getHostCertificates();
-        CrcVerifier crcVerifier = new CrcVerifier(mContext, bundle.getPackageName(), hostCerts);
+        CrcStore crcStore = CrcStore.getInstance(mContext);
+        if (crcStore == null) return false;
+        CrcStore.Session crcVerifier = crcStore.openSession(bundle.getPackageName(), hostCerts);
 
+        ExtractIndex extractIndex = null;
+        if (bundle.getExtractPath() != null) {
+            extractIndex = new ExtractIndex(mContext, bundle.getPackageName());
+        }
+
+        List<Integer> extractEntries = null;
+        List<File> extractFiles = null;
+        List<Integer> digestEntries = null;
+        JarFile jarFile = null;
         try {
-            JarFile jarFile = new JarFile(mArchiveSourcePath);
+            ZipArchive archive = getArchive();
+
+            // If the bundle contains a signed digest file, verify the certificates only once
+            // and check the digest of each changed entry instead.
+            Digests digests = null;
+            if (archive.indexOf(DIGEST_ENTRY_NAME) >= 0) {
+                jarFile = new JarFile(mArchiveSourcePath);
+                digests = loadDigests(jarFile, jarFile.getJarEntry(DIGEST_ENTRY_NAME),
+                        hostCerts, readBuffer);
+                if (digests == null) return false;
+            }
 
-            Enumeration entries = jarFile.entries();
-            while (entries.hasMoreElements()) {
-                JarEntry je = (JarEntry)entries.nextElement();
-                if (je.isDirectory()) continue;
+            for (int index = 0, N = archive.size(); index < N; index++) {
+                if (archive.isDirectory(index)) continue;
 
-                String name = je.getName();
+                String name = archive.getName(index);
                 if (name.startsWith("META-INF/")) continue;
+                if (name.equals(DIGEST_ENTRY_NAME)) continue;
 
                 if (mLibDir != null && name.startsWith("lib/") && !name.startsWith(mLibDir)) {
                     // Ignore unused ABIs
@@ -425,60 +833,82 @@ public class BundleParser {
                 }
 
                 // Verify CRC first
-                int hash = name.hashCode();
-                int crc = crcVerifier.getObscuredCrc(je.getCrc());
-                if (crcVerifier.verifyCrc(hash, crc)) {
+                int crc = crcVerifier.getObscuredCrc(archive.getCrc(index));
+                boolean verified = crcVerifier.verifyCrc(name, crc);
+
+                // Check if the extracted file is up to date
+                File extractFile = extractor.getExtractFile(bundle, name);
+                boolean upToDate = verified;
+                if (extractFile != null && extractIndex != null) {
+                    upToDate = extractIndex.retain(name, archive.getCrc(index),
+                            archive.getSize(index), extractFile);
+                }
+                if (verified && upToDate) {
                     continue;
                 }
 
-                // Verify certificates
-                Certificate[] localCerts = loadCertificates(jarFile, je,
-                        readBuffer);
-
-                if (localCerts == null) {
-                    Log.e(TAG, "Package " + mPackageName
-                            + " has no certificates at entry "
-                            + name + "; ignoring!");
-                    crcVerifier.close();
-                    jarFile.close();
-                    return false;
-                } else {
-                    // Ensure all certificates match.
-                    for (int i=0; i<hostCerts.length; i++) {
-                        boolean found = false;
-                        for (int j=0; j<localCerts.length; j++) {
-                            if (hostCerts[i] != null &&
-                                    Arrays.equals(hostCerts[i], localCerts[j].getEncoded())) {
-                                found = true;
-                                break;
-                            }
-                        }
-                        if (!found || hostCerts.length != localCerts.length) {
+                if (!verified) {
+                    if (digests != null) {
+                        // Check the digest later, in parallel
+                        if (!digests.values.containsKey(name)) {
                             Log.e(TAG, "Package " + mPackageName
-                                    + " has mismatched certificates at entry "
+                                    + " has no digest for entry "
                                     + name + "; ignoring!");
-                            crcVerifier.close();
-                            jarFile.close();
+                            return false;
+                        }
+                        if (digestEntries == null) {
+                            digestEntries = new ArrayList<Integer>();
+                        }
+                        digestEntries.add(index);
+                    } else {
+                        // Verify certificates
+                        if (jarFile == null) {
+                            jarFile = new JarFile(mArchiveSourcePath);
+                        }
+                        Certificate[] localCerts = loadCertificates(jarFile,
+                                jarFile.getJarEntry(name), readBuffer);
+                        if (!verifyCertificates(name, localCerts, hostCerts)) {
                             return false;
                         }
                     }
                 }
 
                 // Extract file if needed
-                File extractFile = extractor.getExtractFile(bundle, name);
-                if (extractFile != null) {
-                    if (mZipFile == null) {
-                        mZipFile = new ZipFile(mArchiveSourcePath);
+                if (extractFile != null && !upToDate) {
+                    if (extractEntries == null) {
+                        extractEntries = new ArrayList<Integer>();
+                        extractFiles = new ArrayList<File>();
                     }
-                    postExtractFile(mZipFile, je, extractFile);
+                    extractEntries.add(index);
+                    extractFiles.add(extractFile);
                 }
 
                 // Record the new crc
-                crcVerifier.recordCrc(hash, crc);
+                crcVerifier.recordCrc(crc);
             }
 
-            postSaveCrcs(crcVerifier);
-            jarFile.close();
+            if (digestEntries != null && !verifyDigests(digestEntries, digests)) {
+                return false;
+            }
+
+            if (extractIndex != null) {
+                // Delete the files that are no longer in the bundle
+                List<String> staleNames = extractIndex.removeStaleEntries();
+                if (staleNames != null) {
+                    List<File> staleFiles = new ArrayList<File>(staleNames.size());
+                    for (String staleName : staleNames) {
+                        File staleFile = extractor.getExtractFile(bundle, staleName);
+                        if (staleFile != null) staleFiles.add(staleFile);
+                    }
+                    postDeleteFiles(bundle, staleFiles);
+                }
+            }
+            if (extractEntries != null) {
+                postExtractFiles(bundle, extractEntries, extractFiles, extractIndex);
+            } else if (extractIndex != null) {
+                postSaveExtractIndex(bundle, extractIndex);
+            }
+            postSaveCrcs(bundle, crcVerifier);
 
             synchronized (this.getClass()) {
                 mReadBuffer = readBufferRef;
@@ -492,170 +922,312 @@ public class BundleParser {
         } catch (RuntimeException e) {
             Log.w(TAG, "Exception reading " + mArchiveSourcePath, e);
             return false;
+        } finally {
+            if (jarFile != null) {
+                try {
+                    jarFile.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
         return true;
     }
 
-    private void postSaveCrcs(final CrcVerifier crcVerifier) {
-        Bundle.postIO(new Runnable() {
+    private void postSaveCrcs(Bundle bundle, final CrcStore.Session crcVerifier) {
+        Bundle.postIO(bundle, new Runnable() {
             @Override
             public void run() {
-                crcVerifier.saveCrcs();
+                crcVerifier.commit();
             }
         });
     }
 
-    private void postExtractFile(final ZipFile zipFile, final JarEntry je, final File extractFile) {
-        Bundle.postIO(new Runnable() {
+    private void postSaveExtractIndex(Bundle bundle, final ExtractIndex extractIndex) {
+        if (!extractIndex.isModified()) return;
+
+        Bundle.postIO(bundle, new Runnable() {
             @Override
             public void run() {
-                RandomAccessFile out = null;
-                try {
-                    File dir = extractFile.getParentFile();
-                    if (!dir.exists()) {
-                        dir.mkdirs();
-                    }
-                    if (!extractFile.exists()) {
-                        if (!extractFile.createNewFile()) {
-                            throw new RuntimeException("Failed to create file: " + extractFile);
-                        }
-                    }
-                    InputStream is = zipFile.getInputStream(je);
-                    out = new RandomAccessFile(extractFile, "rw");
-                    byte[] buffer = new byte[8192];
-                    int len;
-                    while ((len = is.read(buffer, 0, buffer.length)) != -1) {
-                        out.write(buffer, 0, len);
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                } finally {
-                    if (out != null) {
-                        try {
-                            out.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
+                extractIndex.save();
             }
         });
     }
 
+    private void postDeleteFiles(Bundle bundle, final List<File> files) {
+        if (files.isEmpty()) return;
 
-    private static final String ANDROID_RESOURCES
-            = "http://schemas.android.com/apk/res/android";
-
-    //解析intent-filter
-    private boolean parseIntent(Resources res, XmlResourceParser parser, AttributeSet attrs,
-                                boolean allowGlobs, boolean allowAutoVerify, IntentFilter outInfo)
-            throws XmlPullParserException, IOException {
-        TypedArray sa;
-        int outerDepth = parser.getDepth();
-        int type;
-        while ((type = parser.next()) != XmlResourceParser.END_DOCUMENT
-                && (type != XmlResourceParser.END_TAG || parser.getDepth() > outerDepth)) {
-            if (type == XmlResourceParser.END_TAG || type == XmlResourceParser.TEXT) {
-                continue;
+        Bundle.postIO(bundle, new Runnable() {
+            @Override
+            public void run() {
+                for (File file : files) {
+                    file.delete();
+                }
             }
+        });
+    }
 
-            //<action
-            String nodeName = parser.getName();
-            if (nodeName.equals("action")) {
-                String value = attrs.getAttributeValue(
-                        ANDROID_RESOURCES, "name");
-                if (value == null || value.length() == 0) {
-                    return false;
+    /**
+     * Extract the entries in parallel. The entries are split into groups with
+     * balanced sizes, each group is extracted on an I/O thread from the shared archive.
+     * The <tt>extractIndex</tt> (if any) is saved after all the groups are done.
+     */
+    private void postExtractFiles(Bundle bundle, List<Integer> entries, List<File> files,
+                                  final ExtractIndex extractIndex) {
+        List<List<Integer>> groups = splitGroups(entries);
+        final AtomicInteger pendingGroups = new AtomicInteger(groups.size());
+        for (final List<Integer> group : groups) {
+            final int[] indexes = new int[group.size()];
+            final File[] outFiles = new File[group.size()];
+            for (int i = 0; i < indexes.length; i++) {
+                int k = group.get(i);
+                indexes[i] = entries.get(k);
+                outFiles[i] = files.get(k);
+            }
+            Bundle.postIO(bundle, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        extractGroup(indexes, outFiles, extractIndex);
+                    } finally {
+                        if (pendingGroups.decrementAndGet() == 0 && extractIndex != null) {
+                            extractIndex.save();
+                        }
+                    }
                 }
-                skipCurrentTag(parser);
+            });
+        }
+    }
 
-                outInfo.addAction(value);
-            //<category
-            } else if (nodeName.equals("category")) {
-                String value = attrs.getAttributeValue(
-                        ANDROID_RESOURCES, "name");
-                if (value == null || value.length() == 0) {
-                    return false;
+    /**
+     * Split the entries into groups with balanced sizes, at most one group per core.
+     *
+     * @param entries the entry indexes in the archive
+     * @return the groups of positions in <tt>entries</tt>
+     */
+    private List<List<Integer>> splitGroups(List<Integer> entries) {
+        int N = entries.size();
+        int groupCount = Math.min(N, ZipUtils.getParallelism());
+        List<List<Integer>> groups = new ArrayList<List<Integer>>(groupCount);
+        long[] groupSizes = new long[groupCount];
+        for (int i = 0; i < groupCount; i++) {
+            groups.add(new ArrayList<Integer>());
+        }
+        for (int i = 0; i < N; i++) {
+            // Put the entry to the lightest group
+            int lightest = 0;
+            for (int j = 1; j < groupCount; j++) {
+                if (groupSizes[j] < groupSizes[lightest]) lightest = j;
+            }
+            groups.get(lightest).add(i);
+            groupSizes[lightest] += mArchive.getCompressedSize(entries.get(i));
+        }
+        return groups;
+    }
+
+    /**
+     * Read the digest file and verify its certificates.
+     * The digest file is generated by gradle-small before signing the bundle:
+     * <pre>
+     * Small-Digest-Version: 1
+     * Digest-Algorithm: SHA-256
+     *
+     * hex(digest)  entry/name
+     * ...
+     * </pre>
+     *
+     * @return the entry digests, or <tt>null</tt> if the certificates mismatched or the
+     * algorithm is missing or unsupported
+     */
+    private Digests loadDigests(JarFile jarFile, JarEntry je, byte[][] hostCerts,
+                                            byte[] readBuffer)
+            throws IOException, CertificateEncodingException {
+        // We must read the stream for the JarEntry to retrieve its certificates.
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        InputStream is = jarFile.getInputStream(je);
+        try {
+            int len;
+            while ((len = is.read(readBuffer, 0, readBuffer.length)) != -1) {
+                content.write(readBuffer, 0, len);
+            }
+        } finally {
+            is.close();
+        }
+        if (!verifyCertificates(je.getName(), je.getCertificates(), hostCerts)) {
+            return null;
+        }
+
+        Digests digests = new Digests();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(content.toByteArray()), "UTF-8"));
+        String line;
+        boolean inHeader = true;
+        while ((line = reader.readLine()) != null) {
+            if (inHeader) {
+                if (line.length() == 0) {
+                    inHeader = false;
+                } else if (line.startsWith(DIGEST_ALGORITHM_KEY + ":")) {
+                    digests.algorithm = line.substring(DIGEST_ALGORITHM_KEY.length() + 1).trim();
                 }
-                skipCurrentTag(parser);
+                continue;
+            }
+            int sep = line.indexOf("  ");
+            if (sep <= 0) continue;
+            digests.values.put(line.substring(sep + 2), decodeHex(line.substring(0, sep)));
+        }
 
-                outInfo.addCategory(value);
+        if (digests.algorithm == null) {
+            Log.e(TAG, "Package " + mPackageName
+                    + " has no digest algorithm at entry " + je.getName() + "; ignoring!");
+            return null;
+        }
+        try {
+            MessageDigest.getInstance(digests.algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "Package " + mPackageName
+                    + " has unsupported digest algorithm " + digests.algorithm + "; ignoring!");
+            return null;
+        }
+        return digests;
+    }
 
-            //<data
-            } else if (nodeName.equals("data")) {
-                sa = res.obtainAttributes(attrs,
-                        R.styleable.AndroidManifestData);
+    /** The content of the digest file */
+    private static final class Digests {
+        String algorithm;
+        final Map<String, byte[]> values = new HashMap<String, byte[]>();
+    }
 
-                //<android:mimetype
-                String str = sa.getString(
-                        R.styleable.AndroidManifestData_mimeType);
-                if (str != null) {
-                    try {
-                        outInfo.addDataType(str);
-                    } catch (IntentFilter.MalformedMimeTypeException e) {
-                        sa.recycle();
-                        return false;
-                    }
-                }
+    private boolean verifyCertificates(String entryName, Certificate[] localCerts,
+                                       byte[][] hostCerts) throws CertificateEncodingException {
+        if (localCerts == null) {
+            Log.e(TAG, "Package " + mPackageName
+                    + " has no certificates at entry "
+                    + entryName + "; ignoring!");
+            return false;
+        }
 
-                //<android:scheme
-                str = sa.getString(
-                        R.styleable.AndroidManifestData_scheme);
-                if (str != null) {
-                    outInfo.addDataScheme(str);
-                }
+        // Encode the local certificates once
+        int N = localCerts.length;
+        byte[][] localEncodings = new byte[N][];
+        for (int j = 0; j < N; j++) {
+            localEncodings[j] = localCerts[j].getEncoded();
+        }
 
-                //<android:host
-                String host = sa.getString(
-                        R.styleable.AndroidManifestData_host);
-                //<android:port
-                String port = sa.getString(
-                        R.styleable.AndroidManifestData_port);
-                if (host != null) {
-                    outInfo.addDataAuthority(host, port);
+        // Ensure all certificates match.
+        for (int i=0; i<hostCerts.length; i++) {
+            boolean found = false;
+            for (int j=0; j<N; j++) {
+                if (hostCerts[i] != null &&
+                        Arrays.equals(hostCerts[i], localEncodings[j])) {
+                    found = true;
+                    break;
                 }
+            }
+            if (!found || hostCerts.length != N) {
+                Log.e(TAG, "Package " + mPackageName
+                        + " has mismatched certificates at entry "
+                        + entryName + "; ignoring!");
+                return false;
+            }
+        }
+        return true;
+    }
 
-                //<android:path
-                str = sa.getString(
-                        R.styleable.AndroidManifestData_path);
-                if (str != null) {
-                    outInfo.addDataPath(str, PatternMatcher.PATTERN_LITERAL);
+    /**
+     * Hash the entries with the digest algorithm in parallel and compare with the signed
+     * <tt>digests</tt>. Each group of entries is hashed on the shared I/O executor from the
+     * shared archive, the calling thread runs the groups not started yet instead of blocking.
+     */
+    private boolean verifyDigests(List<Integer> entries, final Digests digests) {
+        List<List<Integer>> groups = splitGroups(entries);
+        List<FutureTask<Boolean>> tasks = new ArrayList<FutureTask<Boolean>>(groups.size());
+        for (List<Integer> group : groups) {
+            final int[] indexes = new int[group.size()];
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = entries.get(group.get(i));
+            }
+            tasks.add(new FutureTask<Boolean>(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return verifyDigestGroup(indexes, digests);
                 }
+            }));
+        }
 
-                //<android:pathPrefix
-                str = sa.getString(
-                        R.styleable.AndroidManifestData_pathPrefix);
-                if (str != null) {
-                    outInfo.addDataPath(str, PatternMatcher.PATTERN_PREFIX);
+        // Leave the first group to the calling thread
+        Executor executor = Bundle.getIOExecutor();
+        for (int i = 1; i < tasks.size(); i++) {
+            executor.execute(tasks.get(i));
+        }
+        boolean verified = true;
+        try {
+            for (FutureTask<Boolean> task : tasks) {
+                task.run(); // No effect if started by the executor
+                if (!task.get()) {
+                    verified = false;
+                    break;
                 }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Exception verifying " + mArchiveSourcePath, e);
+            verified = false;
+        }
+        if (!verified) {
+            for (FutureTask<Boolean> task : tasks) {
+                task.cancel(true);
+            }
+        }
+        return verified;
+    }
 
-                //<android:pathPattern
-                str = sa.getString(
-                        R.styleable.AndroidManifestData_pathPattern);
-                if (str != null) {
-                    if (!allowGlobs) {
-                        return false;
+    private boolean verifyDigestGroup(int[] indexes, Digests digests)
+            throws IOException, NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance(digests.algorithm);
+        byte[] buffer = ZipUtils.obtainBuffer();
+        try {
+            for (int index : indexes) {
+                String name = mArchive.getName(index);
+                InputStream is = mArchive.getInputStream(index);
+                try {
+                    int len;
+                    while ((len = is.read(buffer, 0, buffer.length)) != -1) {
+                        md.update(buffer, 0, len);
                     }
-                    outInfo.addDataPath(str, PatternMatcher.PATTERN_SIMPLE_GLOB);
+                } finally {
+                    is.close();
+                }
+                if (!MessageDigest.isEqual(md.digest(), digests.values.get(name))) {
+                    Log.e(TAG, "Package " + mPackageName
+                            + " has mismatched digest at entry "
+                            + name + "; ignoring!");
+                    return false;
                 }
-
-                sa.recycle();
-                skipCurrentTag(parser);
-            } else {
-                return false;
             }
+        } finally {
+            ZipUtils.recycleBuffer(buffer);
         }
-
         return true;
     }
 
-    private static void skipCurrentTag(XmlResourceParser parser)
-            throws XmlPullParserException, IOException {
-        int outerDepth = parser.getDepth();
-        int type;
-        while ((type=parser.next()) != XmlResourceParser.END_DOCUMENT
-                && (type != XmlResourceParser.END_TAG
-                || parser.getDepth() > outerDepth)) {
+    private static byte[] decodeHex(String hex) {
+        int N = hex.length() / 2;
+        byte[] bytes = new byte[N];
+        for (int i = 0; i < N; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private void extractGroup(int[] indexes, File[] outFiles, ExtractIndex extractIndex) {
+        ZipArchive archive = mArchive;
+        if (archive == null) return; // closed
+
+        for (int i = 0; i < indexes.length; i++) {
+            int index = indexes[i];
+            if (ZipUtils.extractEntry(archive, index, outFiles[i]) && extractIndex != null) {
+                extractIndex.record(archive.getName(index), archive.getCrc(index),
+                        archive.getSize(index));
+            }
         }
     }
 
@@ -732,187 +1304,188 @@ public class BundleParser {
         return mNonResources;
     }
 
-    protected void close() {
-        if (mZipFile != null) {
-            try {
-                mZipFile.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Get the shared archive of the bundle file, which parses the central directory only once
+     * for parsing, verifying, extracting and reading assets.
+     */
+    public ZipArchive getArchive() throws IOException {
+        synchronized (this) {
+            if (mArchive == null) {
+                mArchive = new ZipArchive(new File(mArchiveSourcePath));
             }
+            return mArchive;
         }
+    }
+
+    protected void close() {
         mReadBuffer = null;
+        synchronized (this) {
+            if (mArchive != null) {
+                try {
+                    mArchive.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                mArchive = null;
+            }
+        }
     }
 
     /**
-     * Class to verify and save the crc of each bundle entry.
-     * The SCRC (Small CRC) file format:
+     * Class to record the crc and size of each extracted file, so that only the changed
+     * entries are re-extracted on upgrade and the files removed from bundle can be deleted.
+     * The SIDX (Small Index) file format:
      * +--------------+
-     * | Magic Number | 5343 5243
+     * | Magic Number | 5349 4458
      * | Entry Count  |
-     * | Entry #1     | each entry follows hash(int) and crc(int)
+     * | Entry #1     | each entry follows name(utf), crc(int) and size(long)
      * | Entry ...    |
      * | Entry #N     |
      * +--------------+
      */
-    private static final class CrcVerifier {
-
-        private static final String CRC_EXTENSION = ".scrc";
-        private static final byte[] MAGIC_NUMBER = new byte[]{ 0x53, 0x43, 0x52, 0x43 }; // SCRC
-        private static final int HEADER_SIZE = 8;
-        private static final int ENTRY_SIZE = 8;
-        private static final int CRC_OFFSET = 4;
-
-        private RandomAccessFile mCrcFile;
-        private int mSavedCrcCount;
-        private SparseIntArray mSavedCrcs;
-        private SparseIntArray mSavedCrcIndexes;
-        private SparseIntArray mVerifiedCrcs;
-        private SparseIntArray mUpdatedCrcs;
-        private SparseIntArray mInsertedCrcs;
-        private SparseIntArray mDeletedCrcIndexes;
-        private int mObscureOffset;
-
-        CrcVerifier(Context context, String packageName, byte[][] certs) {
-            try {
-                //路径/data/data/net.wequick.example.small/files/.scrc
-                File crcPath = context.getFileStreamPath(CRC_EXTENSION);
-                if (!crcPath.exists()) {
-                    crcPath.mkdir();
-                }
-                //路径/data/data/net.wequick.example.small/files/插件包名.scrc
-                File crcFile = new File(crcPath, packageName + CRC_EXTENSION);
-                boolean exists = crcFile.exists();
-                if (!exists) {
-                    crcFile.createNewFile();
-                }
+    private static final class ExtractIndex {
 
-                // Initialize certs
-                mObscureOffset = Arrays.hashCode(certs[0]);
+        private static final String INDEX_EXTENSION = ".sidx";
+        private static final byte[] MAGIC_NUMBER = new byte[]{ 0x53, 0x49, 0x44, 0x58 }; // SIDX
 
-                // Parse the file
-                mCrcFile = new RandomAccessFile(crcFile, "rw");
-                if (exists) {
-                    byte[] magic = new byte[MAGIC_NUMBER.length];
-                    mCrcFile.read(magic);
-                    if (!Arrays.equals(magic, MAGIC_NUMBER)) {
-                        return;
-                    }
+        private static final class Record {
+            int crc;
+            long size;
+            boolean retained;
+        }
 
-                    mSavedCrcCount = mCrcFile.readInt();
-                    if (mSavedCrcCount == 0) return;
-
-                    mSavedCrcs = new SparseIntArray(mSavedCrcCount);
-                    mSavedCrcIndexes = new SparseIntArray(mSavedCrcCount);
-                    mDeletedCrcIndexes = new SparseIntArray(mSavedCrcCount);
-                    for (int i = 0; i < mSavedCrcCount; i++) {
-                        int hash = mCrcFile.readInt();
-                        int crc = mCrcFile.readInt();
-                        mSavedCrcs.put(hash, crc);
-                        mSavedCrcIndexes.put(hash, i);
-                        mDeletedCrcIndexes.put(hash, i);
-                    }
+        private File mIndexFile;
+        private HashMap<String, Record> mRecords;
+        private boolean mModified;
+
+        ExtractIndex(Context context, String packageName) {
+            File indexPath = context.getFileStreamPath(INDEX_EXTENSION);
+            if (!indexPath.exists()) {
+                indexPath.mkdir();
+            }
+            mIndexFile = new File(indexPath, packageName + INDEX_EXTENSION);
+            mRecords = new HashMap<String, Record>();
+            if (!mIndexFile.exists()) return;
+
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(mIndexFile)));
+                byte[] magic = new byte[MAGIC_NUMBER.length];
+                in.readFully(magic);
+                if (!Arrays.equals(magic, MAGIC_NUMBER)) {
+                    return;
+                }
+
+                int N = in.readInt();
+                for (int i = 0; i < N; i++) {
+                    String name = in.readUTF();
+                    Record record = new Record();
+                    record.crc = in.readInt();
+                    record.size = in.readLong();
+                    mRecords.put(name, record);
                 }
             } catch (IOException e) {
+                // Treat as nothing extracted
+                mRecords.clear();
                 e.printStackTrace();
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
             }
         }
 
-        private boolean verifyCrc(int hash, int crc) {
-            int savedCrc = (mSavedCrcs == null) ? 0 : mSavedCrcs.get(hash);
-            // Record the current crc
-            if (mVerifiedCrcs == null) {
-                mVerifiedCrcs = new SparseIntArray();
-            }
-            mVerifiedCrcs.put(hash, crc);
-            return (savedCrc == crc);
+        /**
+         * Mark the entry as still in the bundle.
+         *
+         * @return <tt>true</tt> if the file was extracted with the same crc and size
+         */
+        private synchronized boolean retain(String name, long crc, long size, File file) {
+            Record record = mRecords.get(name);
+            if (record == null) return false;
+
+            record.retained = true;
+            return record.crc == (int) crc && record.size == size && file.length() == size;
         }
 
-        private void recordCrc(int hash, int crc) {
-            int savedIndex = -1;
-            if (mSavedCrcIndexes != null) {
-                savedIndex = mSavedCrcIndexes.get(hash, -1);
+        private synchronized void record(String name, long crc, long size) {
+            Record record = mRecords.get(name);
+            if (record == null) {
+                record = new Record();
+                mRecords.put(name, record);
             }
-            if (savedIndex >= 0) {
-                // If we had saved, update it
-                if (mUpdatedCrcs == null) {
-                    mUpdatedCrcs = new SparseIntArray();
-                }
-                mUpdatedCrcs.put(savedIndex, crc);
-            } else {
-                // Otherwise, insert a new one
-                if (mInsertedCrcs == null) {
-                    mInsertedCrcs = new SparseIntArray();
+            record.crc = (int) crc;
+            record.size = size;
+            record.retained = true;
+            mModified = true;
+        }
+
+        /**
+         * Remove the records which were not retained.
+         *
+         * @return the removed entry names, or <tt>null</tt> if nothing removed
+         */
+        private synchronized List<String> removeStaleEntries() {
+            List<String> staleNames = null;
+            Iterator<Map.Entry<String, Record>> it = mRecords.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Record> entry = it.next();
+                if (entry.getValue().retained) continue;
+
+                if (staleNames == null) {
+                    staleNames = new ArrayList<String>();
                 }
-                mInsertedCrcs.put(hash, crc);
+                staleNames.add(entry.getKey());
+                it.remove();
+            }
+            if (staleNames != null) {
+                mModified = true;
             }
+            return staleNames;
         }
 
-        private void saveCrcs() {
-            if (mVerifiedCrcs == null) return;
+        private synchronized boolean isModified() {
+            return mModified;
+        }
+
+        private synchronized void save() {
+            if (!mModified) return;
 
+            File tempFile = FileUtils.getTempFile(mIndexFile);
+            FileOutputStream fos = null;
             try {
-                int i;
-                int N = mVerifiedCrcs.size();
-                if (mSavedCrcs == null || mSavedCrcs.size() > N) {
-                    // If first created or something deleted, we should rewrite all the data
-                    if (mSavedCrcs == null) {
-                        mCrcFile.seek(0);
-                        mCrcFile.write(MAGIC_NUMBER);
-                    } else {
-                        mCrcFile.seek(MAGIC_NUMBER.length);
-                    }
-                    mCrcFile.writeInt(N);
-                    for (i = 0; i < N; i++) {
-                        mCrcFile.writeInt(mVerifiedCrcs.keyAt(i));
-                        mCrcFile.writeInt(mVerifiedCrcs.valueAt(i));
-                    }
-                    mCrcFile.setLength(HEADER_SIZE + N * ENTRY_SIZE);
-                } else {
-                    // Otherwise, we can update the crc in specify offset faster
-                    if (mUpdatedCrcs != null) {
-                        N = mUpdatedCrcs.size();
-                        for (i = 0; i < N; i++) {
-                            int offset = mUpdatedCrcs.keyAt(i);
-                            int crc = mUpdatedCrcs.valueAt(i);
-                            mCrcFile.seek(HEADER_SIZE + offset * ENTRY_SIZE + CRC_OFFSET);
-                            mCrcFile.writeInt(crc);
-                        }
-                    }
-                    if (mInsertedCrcs != null) {
-                        N = mInsertedCrcs.size();
-                        mCrcFile.seek(MAGIC_NUMBER.length);
-                        mCrcFile.writeInt(mSavedCrcCount + N); // update the entry size
-
-                        long len = mCrcFile.length();
-                        mCrcFile.seek(len);
-                        long addedSize = 0;
-                        for (i = 0; i < N; i++) {
-                            mCrcFile.writeInt(mInsertedCrcs.keyAt(i));
-                            mCrcFile.writeInt(mInsertedCrcs.valueAt(i));
-                            addedSize += ENTRY_SIZE;
-                        }
-                        mCrcFile.setLength(len + addedSize);
-                    }
+                fos = new FileOutputStream(tempFile);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                out.write(MAGIC_NUMBER);
+                out.writeInt(mRecords.size());
+                for (Map.Entry<String, Record> entry : mRecords.entrySet()) {
+                    Record record = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(record.crc);
+                    out.writeLong(record.size);
                 }
-
-                mCrcFile.close();
+                out.flush();
+                if (FileUtils.commitTempFile(fos, tempFile, mIndexFile)) {
+                    mModified = false;
+                }
+                fos = null;
             } catch (IOException e) {
                 e.printStackTrace();
-            }
-        }
-
-        private void close() {
-            if (mCrcFile != null) {
-                try {
-                    mCrcFile.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+            } finally {
+                if (fos != null) {
+                    try {
+                        fos.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    tempFile.delete();
                 }
             }
         }
-
-        private int getObscuredCrc(long crc) {
-            return (int)((crc & 0xFFFFFFFFL) + mObscureOffset);
-        }
     }
 }
@@ -0,0 +1,446 @@
+/*
+ * Copyright 2015-present wequick.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package net.wequick.small;
+
+import android.content.Context;
+import android.util.Log;
+
+import net.wequick.small.util.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Class to store the verified crc of all the bundle entries in one memory-mapped file.
+ *
+ * <p>The entries are keyed by the 64-bit FNV-1a hash of `package/entryName' together with
+ * its length, and placed in an open-addressing table with linear probing.
+ * The updates of a bundle are collected by a {@link Session} and written in one batch.
+ *
+ * <p>The file may be mapped by other processes, so it is never truncated: a new table is
+ * built in a temporary file and renamed to replace the old one, while the processes mapping
+ * the old one keep reading it until they reopen the store.
+ *
+ * The SCRS (Small CRC Store) file format:
+ * +--------------+
+ * | Magic Number | 5343 5253
+ * | Version      |
+ * | Capacity     | power of 2
+ * | Entry Count  |
+ * | Slot #1      | each slot follows key(long), length(int), owner(int) and crc(int)
+ * | Slot ...     | an empty slot has zero length
+ * | Slot #N      |
+ * +--------------+
+ */
+final class CrcStore {
+
+    private static final String TAG = "CrcStore";
+    private static final String STORE_FILE_NAME = "small.crcs";
+    private static final String LEGACY_CRC_DIR_NAME = ".scrc";
+
+    private static final int MAGIC_NUMBER = 0x53435253; // SCRS
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 20;
+    private static final int KEY_OFFSET = 0;
+    private static final int LENGTH_OFFSET = 8;
+    private static final int OWNER_OFFSET = 12;
+    private static final int CRC_OFFSET = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static CrcStore sInstance;
+
+    private File mStoreFile;
+    private RandomAccessFile mFile;
+    private MappedByteBuffer mBuffer;
+    private int mCapacity;
+    private int mCount;
+    private boolean mModified;
+
+    static synchronized CrcStore getInstance(Context context) {
+        if (sInstance == null) {
+            CrcStore store = new CrcStore();
+            if (store.open(context)) {
+                sInstance = store;
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Close the store so that it will be reopened on next access, as it may have been
+     * modified (even grown) by other process.
+     */
+    static synchronized void releaseInstance() {
+        if (sInstance == null) return;
+
+        try {
+            sInstance.mFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        sInstance = null;
+    }
+
+    /**
+     * @return <tt>true</tt> if the store was modified since last called, the other
+     * processes should reopen it
+     */
+    static synchronized boolean takeModified() {
+        if (sInstance == null) return false;
+
+        synchronized (sInstance) {
+            boolean modified = sInstance.mModified;
+            sInstance.mModified = false;
+            return modified;
+        }
+    }
+
+    private CrcStore() { }
+
+    /** Begin a verification session for the bundle with <tt>packageName</tt> */
+    Session openSession(String packageName, byte[][] certs) {
+        return new Session(packageName, certs);
+    }
+
+    //______________________________________________________________________________________________
+    // Store
+
+    private boolean open(Context context) {
+        // Drop the legacy per-bundle `.scrc' files
+        File legacyDir = context.getFileStreamPath(LEGACY_CRC_DIR_NAME);
+        File[] legacyFiles = legacyDir.listFiles();
+        if (legacyFiles != null) {
+            for (File legacyFile : legacyFiles) {
+                legacyFile.delete();
+            }
+            legacyDir.delete();
+        }
+
+        File file = context.getFileStreamPath(STORE_FILE_NAME);
+        mStoreFile = file;
+        try {
+            mFile = new RandomAccessFile(file, "rw");
+            boolean valid = false;
+            if (mFile.length() >= HEADER_SIZE) {
+                mBuffer = map(mFile, mFile.length());
+                int capacity = mBuffer.getInt(8);
+                valid = mBuffer.getInt(0) == MAGIC_NUMBER
+                        && mBuffer.getInt(4) == VERSION
+                        && capacity > 0 && (capacity & (capacity - 1)) == 0
+                        && mFile.length() == HEADER_SIZE + (long) capacity * SLOT_SIZE;
+                if (valid) {
+                    // Count the slots in case of the header was not updated
+                    mCapacity = capacity;
+                    for (int slot = 0; slot < capacity; slot++) {
+                        if (mBuffer.getInt(slotOffset(slot) + LENGTH_OFFSET) != 0) mCount++;
+                    }
+                }
+            }
+            if (!valid) {
+                reset(INITIAL_CAPACITY);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open " + file, e);
+            if (mFile != null) {
+                try {
+                    mFile.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return false;
+        }
+    }
+
+    private static MappedByteBuffer map(RandomAccessFile file, long size) throws IOException {
+        MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        return buffer;
+    }
+
+    /** Create an empty table with <tt>capacity</tt> slots in a new file to replace the store */
+    private void reset(int capacity) throws IOException {
+        long size = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+        File tempFile = FileUtils.getTempFile(mStoreFile);
+        tempFile.delete();
+        RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+        MappedByteBuffer buffer;
+        try {
+            file.setLength(size);
+            buffer = map(file, size);
+            buffer.putInt(0, MAGIC_NUMBER);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, capacity);
+            buffer.putInt(12, 0);
+            buffer.force();
+            if (!tempFile.renameTo(mStoreFile)) {
+                throw new IOException("Failed to rename " + tempFile + " to " + mStoreFile);
+            }
+        } catch (IOException e) {
+            file.close();
+            tempFile.delete();
+            throw e;
+        }
+
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mFile = file;
+        mBuffer = buffer;
+        mCapacity = capacity;
+        mCount = 0;
+        mModified = true;
+    }
+
+    private static long hash(String packageName, String entryName) {
+        long h = FNV_OFFSET_BASIS;
+        h = hash(h, packageName);
+        h = (h ^ '/') * FNV_PRIME;
+        h = hash(h, entryName);
+        return h;
+    }
+
+    private static long hash(long h, String s) {
+        for (int i = 0, N = s.length(); i < N; i++) {
+            char c = s.charAt(i);
+            h = (h ^ (c & 0xFF)) * FNV_PRIME;
+            h = (h ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static int owner(String packageName) {
+        return (int) hash(FNV_OFFSET_BASIS, packageName);
+    }
+
+    private int home(long key) {
+        return (int) (key ^ (key >>> 32)) & (mCapacity - 1);
+    }
+
+    private int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /** @return the slot of the key, or the empty slot to insert it as <tt>-(slot + 1)</tt> */
+    private int find(long key, int length) {
+        int mask = mCapacity - 1;
+        int slot = home(key);
+        while (true) {
+            int offset = slotOffset(slot);
+            int slotLength = mBuffer.getInt(offset + LENGTH_OFFSET);
+            if (slotLength == 0) return -(slot + 1);
+            if (slotLength == length && mBuffer.getLong(offset + KEY_OFFSET) == key) return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private synchronized boolean contains(long key, int length, int crc) {
+        int slot = find(key, length);
+        return slot >= 0 && mBuffer.getInt(slotOffset(slot) + CRC_OFFSET) == crc;
+    }
+
+    private void put(long key, int length, int owner, int crc) throws IOException {
+        int slot = find(key, length);
+        if (slot < 0) {
+            if ((mCount + 1) * 2 > mCapacity) {
+                grow();
+                slot = find(key, length);
+            }
+            slot = -(slot + 1);
+            int offset = slotOffset(slot);
+            mBuffer.putLong(offset + KEY_OFFSET, key);
+            mBuffer.putInt(offset + LENGTH_OFFSET, length);
+            mCount++;
+        }
+        int offset = slotOffset(slot);
+        mBuffer.putInt(offset + OWNER_OFFSET, owner);
+        mBuffer.putInt(offset + CRC_OFFSET, crc);
+    }
+
+    /** Remove the slot and shift back the following slots of the same probe sequence */
+    private void remove(int slot) {
+        int mask = mCapacity - 1;
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            int offset = slotOffset(next);
+            if (mBuffer.getInt(offset + LENGTH_OFFSET) == 0) break;
+
+            int home = home(mBuffer.getLong(offset + KEY_OFFSET));
+            boolean movable = (hole <= next)
+                    ? (home <= hole || home > next)
+                    : (home <= hole && home > next);
+            if (movable) {
+                copySlot(next, hole);
+                hole = next;
+            }
+        }
+        clearSlot(hole);
+        mCount--;
+    }
+
+    private void copySlot(int from, int to) {
+        int src = slotOffset(from);
+        int dst = slotOffset(to);
+        mBuffer.putLong(dst + KEY_OFFSET, mBuffer.getLong(src + KEY_OFFSET));
+        mBuffer.putInt(dst + LENGTH_OFFSET, mBuffer.getInt(src + LENGTH_OFFSET));
+        mBuffer.putInt(dst + OWNER_OFFSET, mBuffer.getInt(src + OWNER_OFFSET));
+        mBuffer.putInt(dst + CRC_OFFSET, mBuffer.getInt(src + CRC_OFFSET));
+    }
+
+    private void clearSlot(int slot) {
+        int offset = slotOffset(slot);
+        mBuffer.putLong(offset + KEY_OFFSET, 0);
+        mBuffer.putInt(offset + LENGTH_OFFSET, 0);
+        mBuffer.putInt(offset + OWNER_OFFSET, 0);
+        mBuffer.putInt(offset + CRC_OFFSET, 0);
+    }
+
+    private void grow() throws IOException {
+        // Take out all the entries and rehash them into a table twice large
+        int N = mCount;
+        long[] keys = new long[N];
+        int[] lengths = new int[N];
+        int[] owners = new int[N];
+        int[] crcs = new int[N];
+        int n = 0;
+        for (int slot = 0; slot < mCapacity && n < N; slot++) {
+            int offset = slotOffset(slot);
+            int length = mBuffer.getInt(offset + LENGTH_OFFSET);
+            if (length == 0) continue;
+
+            keys[n] = mBuffer.getLong(offset + KEY_OFFSET);
+            lengths[n] = length;
+            owners[n] = mBuffer.getInt(offset + OWNER_OFFSET);
+            crcs[n] = mBuffer.getInt(offset + CRC_OFFSET);
+            n++;
+        }
+
+        reset(mCapacity * 2);
+        for (int i = 0; i < n; i++) {
+            put(keys[i], lengths[i], owners[i], crcs[i]);
+        }
+    }
+
+    /**
+     * Write the verified crcs of a bundle in one batch, and remove the entries of the bundle
+     * which were not verified in this session (deleted from the bundle).
+     */
+    private synchronized void commit(int owner, long[] keys, int[] lengths, int[] crcs, int N,
+                                     long[] verifiedKeys) {
+        try {
+            if (N > 0) mModified = true;
+            for (int i = 0; i < N; i++) {
+                put(keys[i], lengths[i], owner, crcs[i]);
+            }
+
+            Arrays.sort(verifiedKeys);
+            int slot = 0;
+            while (slot < mCapacity) {
+                int offset = slotOffset(slot);
+                if (mBuffer.getInt(offset + LENGTH_OFFSET) != 0
+                        && mBuffer.getInt(offset + OWNER_OFFSET) == owner
+                        && Arrays.binarySearch(verifiedKeys,
+                                mBuffer.getLong(offset + KEY_OFFSET)) < 0) {
+                    remove(slot);
+                    mModified = true;
+                    continue; // check the slot shifted back
+                }
+                slot++;
+            }
+
+            mBuffer.putInt(12, mCount);
+            mBuffer.force();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Class to verify the crcs of one bundle and record the new ones.
+     * The recorded crcs are kept in memory until {@link #commit}.
+     */
+    final class Session {
+
+        private final String mPackageName;
+        private final int mOwner;
+        private final int mObscureOffset;
+
+        private long[] mVerifiedKeys = new long[64];
+        private int mVerifiedCount;
+
+        private long[] mKeys = new long[16];
+        private int[] mLengths = new int[16];
+        private int[] mCrcs = new int[16];
+        private int mRecordedCount;
+
+        private long mKey;
+        private int mLength;
+
+        private Session(String packageName, byte[][] certs) {
+            mPackageName = packageName;
+            mOwner = owner(packageName);
+            mObscureOffset = Arrays.hashCode(certs[0]);
+        }
+
+        int getObscuredCrc(long crc) {
+            return (int)((crc & 0xFFFFFFFFL) + mObscureOffset);
+        }
+
+        /** @return <tt>true</tt> if the <tt>crc</tt> of the entry was verified before */
+        boolean verifyCrc(String entryName, int crc) {
+            mKey = hash(mPackageName, entryName);
+            mLength = mPackageName.length() + 1 + entryName.length();
+            if (mVerifiedCount == mVerifiedKeys.length) {
+                mVerifiedKeys = Arrays.copyOf(mVerifiedKeys, mVerifiedCount * 2);
+            }
+            mVerifiedKeys[mVerifiedCount++] = mKey;
+            return contains(mKey, mLength, crc);
+        }
+
+        /** Record the <tt>crc</tt> of the entry last passed to {@link #verifyCrc} */
+        void recordCrc(int crc) {
+            if (mRecordedCount == mKeys.length) {
+                int capacity = mRecordedCount * 2;
+                mKeys = Arrays.copyOf(mKeys, capacity);
+                mLengths = Arrays.copyOf(mLengths, capacity);
+                mCrcs = Arrays.copyOf(mCrcs, capacity);
+            }
+            mKeys[mRecordedCount] = mKey;
+            mLengths[mRecordedCount] = mLength;
+            mCrcs[mRecordedCount] = crc;
+            mRecordedCount++;
+        }
+
+        void commit() {
+            CrcStore.this.commit(mOwner, mKeys, mLengths, mCrcs, mRecordedCount,
+                    Arrays.copyOf(mVerifiedKeys, mVerifiedCount));
+        }
+    }
+}
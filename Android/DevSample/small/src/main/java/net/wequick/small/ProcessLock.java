@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015-present wequick.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package net.wequick.small;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Class to serialize the bundle loading among the processes of the host application.
+ *
+ * <p>Only one process can verify, extract and optimize the bundles at a time. The others
+ * wait for it and then reuse its results, as the bundle states it saved (the last modified
+ * time in {@link StateJournal}, the crcs in {@link CrcStore}) tell that nothing is changed.
+ *
+ * <p>The lock file also keeps a generation number, memory-mapped and increased by each
+ * process which modified the shared states, so that the others know to reload their
+ * in-memory copies.
+ *
+ * The SLCK (Small Lock) file format:
+ * +--------------+
+ * | Magic Number | 534C 434B
+ * | Version      |
+ * | Generation   | long
+ * +--------------+
+ */
+final class ProcessLock {
+
+    private static final String TAG = "ProcessLock";
+    private static final String LOCK_FILE_NAME = "small.lock";
+
+    private static final int MAGIC_NUMBER = 0x534C434B; // SLCK
+    private static final int VERSION = 1;
+    private static final int FILE_SIZE = 16;
+    private static final int GENERATION_OFFSET = 8;
+
+    private static ProcessLock sInstance;
+
+    private final File mFile;
+    private final ReentrantLock mThreadLock = new ReentrantLock();
+    private RandomAccessFile mLockFile;
+    private MappedByteBuffer mBuffer;
+    private FileLock mFileLock;
+    private long mSeenGeneration = -1;
+    private boolean mModified; // modified by the reentered holders
+
+    static synchronized ProcessLock getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ProcessLock(context);
+        }
+        return sInstance;
+    }
+
+    private ProcessLock(Context context) {
+        mFile = context.getFileStreamPath(LOCK_FILE_NAME);
+    }
+
+    /**
+     * Acquire the lock, blocking until the other process releases it.
+     *
+     * @return <tt>true</tt> if the shared states may have been modified by other process
+     * since last acquired, the caller should reload them
+     */
+    boolean acquire() {
+        if (!lock()) return false; // reentered
+
+        long generation = getGeneration();
+        if (generation < 0) return true; // Not locked
+
+        boolean changed = (generation != mSeenGeneration);
+        mSeenGeneration = generation;
+        return changed;
+    }
+
+    /**
+     * Acquire the lock without taking the changes of the shared states, so that the next
+     * {@link #acquire()} still reports them. The caller which keeps its own copy of some state
+     * should compare {@link #getGeneration()} with the one it loaded.
+     *
+     * @return <tt>false</tt> if reentered by current thread
+     */
+    boolean lock() {
+        mThreadLock.lock();
+        if (mThreadLock.getHoldCount() > 1) return false; // reentered
+
+        try {
+            if (mLockFile == null) {
+                open();
+            }
+            mFileLock = mLockFile.getChannel().lock();
+        } catch (IOException e) {
+            // Go on without the process lock
+            Log.w(TAG, "Failed to lock " + mFile, e);
+            return true;
+        }
+
+        if (mBuffer.getInt(0) != MAGIC_NUMBER || mBuffer.getInt(4) != VERSION) {
+            mBuffer.putInt(0, MAGIC_NUMBER);
+            mBuffer.putInt(4, VERSION);
+            mBuffer.putLong(GENERATION_OFFSET, 0);
+        }
+        return true;
+    }
+
+    /**
+     * Get the generation of the shared states, must be called while locked
+     *
+     * @return the generation, or -1 if the lock file is unavailable
+     */
+    long getGeneration() {
+        if (mFileLock == null || !mThreadLock.isHeldByCurrentThread()) return -1;
+        return mBuffer.getLong(GENERATION_OFFSET);
+    }
+
+    /**
+     * Release the lock
+     *
+     * @param modified <tt>true</tt> if the shared states were modified while locked, the
+     *                 generation is increased at the outermost release
+     */
+    void release(boolean modified) {
+        if (!mThreadLock.isHeldByCurrentThread()) return;
+        if (mThreadLock.getHoldCount() > 1) {
+            mModified |= modified;
+            mThreadLock.unlock();
+            return;
+        }
+
+        modified |= mModified;
+        mModified = false;
+        try {
+            if (mFileLock != null) {
+                if (modified) {
+                    long generation = mBuffer.getLong(GENERATION_OFFSET);
+                    mBuffer.putLong(GENERATION_OFFSET, generation + 1);
+                    mBuffer.force();
+                    // Keep reporting the changes by other process if not taken yet
+                    if (mSeenGeneration == generation) {
+                        mSeenGeneration = generation + 1;
+                    }
+                }
+                mFileLock.release();
+                mFileLock = null;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to unlock " + mFile, e);
+        } finally {
+            mThreadLock.unlock();
+        }
+    }
+
+    private void open() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            // Never shrink the file as it may be mapped by other process
+            if (file.length() < FILE_SIZE) {
+                file.setLength(FILE_SIZE);
+            }
+            mBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        mLockFile = file;
+    }
+}
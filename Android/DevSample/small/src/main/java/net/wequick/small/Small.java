@@ -30,14 +30,17 @@ import android.net.Uri;
 
 import net.wequick.small.util.ApplicationUtils;
 import net.wequick.small.webkit.JsHandler;
+import net.wequick.small.webkit.JsHandlerMetrics;
+import net.wequick.small.webkit.WebActivity;
 import net.wequick.small.webkit.WebView;
 import net.wequick.small.webkit.WebViewClient;
+import net.wequick.small.webkit.WebViewPool;
 
 import org.json.JSONObject;
 
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 /**
  * 这个类完全由操作Bundle(捆绑)的静态方法组成。
@@ -59,16 +62,13 @@ public final class Small {
     public static final int REQUEST_CODE_DEFAULT = 10000;
 
     private static final String SHARED_PREFERENCES_SMALL = "small";
-    private static final String SHARED_PREFERENCES_KEY_VERSION = "version";
-    private static final String SHARED_PREFERENCES_BUNDLE_VERSIONS = "small.app-versions";
-    private static final String SHARED_PREFERENCES_BUNDLE_MODIFIES = "small.app-modifies";
-    private static final String SHARED_PREFERENCES_BUNDLE_UPGRADES = "small.app-upgrades";
 
     private static Application sContext = null;
     private static String sBaseUri = ""; // base url of uri
     private static boolean sIsNewHostApp; // 判断是否首次启动或更新
     private static boolean sHasSetUp;
     private static int sWebActivityTheme;
+    private static boolean sWebBundleArchiveMode;
 
     private static byte[][] sHostCertificates;
 
@@ -163,8 +163,11 @@ public final class Small {
         if (!launchingComponent.equals(launcherComponent)) {
             // In this case, system launching the last restored activity instead of our launcher
             // 在这种情况下，系统启动最新恢复activity，而不是我们的启动器
-            // activity. Call `setUp' synchronously to ensure `Small' available.
-            setUp(context, null);
+            // activity. Set up the launchers to catch the restoring activity, and load its
+            // bundle synchronously while launching, the rest bundles are loaded in background.
+            Bundle.setupLaunchers(context);
+            Bundle.setRestorePending();
+            sHasSetUp = true;
         }
     }
 
@@ -177,9 +180,8 @@ public final class Small {
 
         //判断是否已经setUp
         if (sHasSetUp) {
-            if (listener != null) {
-                listener.onComplete();
-            }
+            // Wait for the bundles loading in background (if any)
+            Bundle.awaitLaunchableBundles(listener);
             return;
         }
 
@@ -196,6 +198,14 @@ public final class Small {
         return Bundle.updateManifest(manifest, force);
     }
 
+    public static Future<Boolean> updateManifestAsync(JSONObject manifest, boolean force) {
+        return Bundle.updateManifestAsync(manifest, force);
+    }
+
+    public static Future<Boolean> updateManifestDelta(JSONObject delta) {
+        return Bundle.updateManifestDelta(delta);
+    }
+
     public static void setWebViewClient(WebViewClient client) {
         WebView.setWebViewClient(client);
     }
@@ -204,78 +214,74 @@ public final class Small {
         WebView.registerJsHandler(method, handler);
     }
 
+    /**
+     * Register a javascript handler which runs on the thread of <tt>threadMode</tt>
+     *
+     * @param threadMode one of {@link JsHandler#THREAD_BRIDGE}, {@link JsHandler#THREAD_UI},
+     *                   {@link JsHandler#THREAD_BACKGROUND} and {@link JsHandler#THREAD_SERIAL}
+     * @param maxConcurrency the max count of the calls running at the same time, 0 for no limit
+     */
+    public static void registerJsHandler(String method, JsHandler handler,
+                                         int threadMode, int maxConcurrency) {
+        WebView.registerJsHandler(method, handler, threadMode, maxConcurrency);
+    }
+
+    /**
+     * Carry the javascript bridge calls by a message channel on Android 6.0 and later,
+     * the javascript interface is still used on the earlier WebViews
+     */
+    public static void setWebMessagePortEnabled(boolean enabled) {
+        WebView.setMessagePortEnabled(enabled);
+    }
+
+    public static JsHandlerMetrics getJsHandlerMetrics(String method) {
+        return WebView.getJsHandlerMetrics(method);
+    }
+
     public static SharedPreferences getSharedPreferences() {
         return getContext().getSharedPreferences(SHARED_PREFERENCES_SMALL, 0);
     }
 
     public static Map<String, Integer> getBundleVersions() {
-        return (Map<String, Integer>) getContext().
-                getSharedPreferences(SHARED_PREFERENCES_BUNDLE_VERSIONS, 0).getAll();
+        return getStateJournal().getVersionCodes();
     }
 
     //获取宿主versionCode
     private static int getLaunchedHostVersionCode() {
-        return getContext().getSharedPreferences(SHARED_PREFERENCES_SMALL, 0).
-                getInt(SHARED_PREFERENCES_KEY_VERSION, 0);
+        return getStateJournal().getHostVersionCode();
     }
 
     //设置宿主versionCode
     private static void setLaunchedHostVersionCode(int versionCode) {
-        SharedPreferences small = getContext().getSharedPreferences(SHARED_PREFERENCES_SMALL, 0);
-        SharedPreferences.Editor editor = small.edit();
-        editor.putInt(SHARED_PREFERENCES_KEY_VERSION, versionCode);
-        editor.apply();
+        getStateJournal().setHostVersionCode(versionCode);
     }
 
     public static void setBundleVersionCode(String bundleName, int versionCode) {
-        SharedPreferences bundlesInfo = getContext().
-                getSharedPreferences(SHARED_PREFERENCES_BUNDLE_VERSIONS, 0);
-        SharedPreferences.Editor editor = bundlesInfo.edit();
-        editor.putInt(bundleName, versionCode);
-        editor.apply();
+        getStateJournal().setVersionCode(bundleName, versionCode);
     }
 
     public static void setBundleLastModified(String bundleName, long lastModified) {
-        SharedPreferences sp = getContext().
-                getSharedPreferences(SHARED_PREFERENCES_BUNDLE_MODIFIES, 0);
-        SharedPreferences.Editor editor = sp.edit();
-        editor.putLong(bundleName, lastModified);
-        editor.apply();
+        getStateJournal().setLastModified(bundleName, lastModified);
     }
 
     public static long getBundleLastModified(String bundleName) {
-        SharedPreferences sp = getContext().
-                getSharedPreferences(SHARED_PREFERENCES_BUNDLE_MODIFIES, 0);
-        if (sp == null) return 0;
-        return sp.getLong(bundleName, 0);
+        return getStateJournal().getLastModified(bundleName);
     }
 
     public static void setBundleUpgraded(String bundleName, boolean flag) {
-        SharedPreferences sp = getContext().
-                getSharedPreferences(SHARED_PREFERENCES_BUNDLE_UPGRADES, 0);
-        SharedPreferences.Editor editor = sp.edit();
-        editor.putBoolean(bundleName, flag);
-        editor.apply();
+        getStateJournal().setUpgraded(bundleName, flag);
     }
 
     public static boolean getBundleUpgraded(String bundleName) {
-        SharedPreferences sp = getContext().
-                getSharedPreferences(SHARED_PREFERENCES_BUNDLE_UPGRADES, 0);
-        if (sp == null) return false;
-        return sp.getBoolean(bundleName, false);
+        return getStateJournal().isUpgraded(bundleName);
     }
 
     public static boolean isUpgrading() {
-        SharedPreferences sp = getContext().
-                getSharedPreferences(SHARED_PREFERENCES_BUNDLE_UPGRADES, 0);
-        Map<String, Boolean> flags = (Map<String, Boolean>) sp.getAll();
-        if (flags == null) return false;
-        Iterator<Map.Entry<String, Boolean>> it = flags.entrySet().iterator();
-        while (it.hasNext()) {
-            Boolean flag = it.next().getValue();
-            if (flag != null && flag) return true;
-        }
-        return false;
+        return getStateJournal().hasUpgradedBundles();
+    }
+
+    static StateJournal getStateJournal() {
+        return StateJournal.getInstance(getContext());
     }
 
     //打开uri
@@ -326,6 +332,25 @@ public final class Small {
         return null;
     }
 
+    /**
+     * Prerender the web page of <tt>uriString</tt> offscreen while the main thread is idle,
+     * so that it shows at once when opened by {@link #openUri(String, Context)}.
+     * Only the pages opened by {@link WebActivity} can be prerendered.
+     *
+     * @return <tt>true</tt> if the page is going to be prerendered
+     * @see WebViewPool#setMaxPrerenderSize(int)
+     */
+    public static boolean prerenderUri(String uriString, Context context) {
+        Intent intent = getIntentOfUri(uriString, context);
+        if (intent == null || intent.getComponent() == null) return false;
+        if (!WebActivity.class.getName().equals(intent.getComponent().getClassName())) {
+            return false;
+        }
+
+        WebViewPool.getInstance().prerender(context, intent);
+        return true;
+    }
+
     public static <T> T createObject(String type, String uriString, Context context) {
         return createObject(type, makeUri(uriString), context);
     }
@@ -367,6 +392,18 @@ public final class Small {
         sWebActivityTheme = webActivityTheme;
     }
 
+    public static boolean isWebBundleArchiveMode() {
+        return sWebBundleArchiveMode;
+    }
+
+    /**
+     * Serve the files of web bundles straight from the bundle archives instead of extracting
+     * them, should be called before {@link #setUp}
+     */
+    public static void setWebBundleArchiveMode(boolean enabled) {
+        sWebBundleArchiveMode = enabled;
+    }
+
     //______________________________________________________________________________________________
     // Private
 
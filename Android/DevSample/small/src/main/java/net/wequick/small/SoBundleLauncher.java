@@ -111,8 +111,10 @@ public abstract class SoBundleLauncher extends BundleLauncher implements BundleE
         } else if (patchParser != null) {
             if (patchParser.getPackageInfo().versionCode <= parser.getPackageInfo().versionCode) {
                 Log.d(TAG, "Patch file should be later than built-in!");
+                patchParser.close();
                 patch.delete();
             } else {
+                parser.close();
                 parser = patchParser; // use patch
                 plugin = patch;
             }
@@ -0,0 +1,594 @@
+/*
+ * Copyright 2015-present wequick.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package net.wequick.small;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import net.wequick.small.util.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Class to keep the state of Small and bundles, such as the version code, the last modified
+ * time and the upgrade flag of each bundle, in an append-only binary journal.
+ *
+ * <p>All the states are loaded into memory at first access, the updates are appended to
+ * the journal (batched between {@link #beginBatch} and {@link #endBatch}), and the journal
+ * is compacted to a snapshot while it grows too large.
+ *
+ * <p>The journal is shared by the processes of the host application, all the writes are
+ * done under the {@link ProcessLock}, after replaying the records appended by the others.
+ *
+ * The SSTJ (Small State Journal) file format:
+ * +--------------+
+ * | Magic Number | 5353 544A
+ * | Version      |
+ * | Record #1    | each record follows length(short), payload and crc32(int) of payload
+ * | Record ...   | the payload is type(byte), [bundle name(utf)], value
+ * | Record #N    |
+ * +--------------+
+ */
+final class StateJournal {
+
+    private static final String TAG = "StateJournal";
+    private static final String JOURNAL_FILE_NAME = "small.state";
+
+    private static final int MAGIC_NUMBER = 0x5353544A; // SSTJ
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte TYPE_HOST_VERSION_CODE = 1;
+    private static final byte TYPE_VERSION_CODE = 2;
+    private static final byte TYPE_LAST_MODIFIED = 3;
+    private static final byte TYPE_UPGRADED = 4;
+
+    private static final int MIN_RECORDS_TO_COMPACT = 64;
+
+    // The legacy shared preferences
+    private static final String SHARED_PREFERENCES_SMALL = "small";
+    private static final String SHARED_PREFERENCES_KEY_VERSION = "version";
+    private static final String SHARED_PREFERENCES_BUNDLE_VERSIONS = "small.app-versions";
+    private static final String SHARED_PREFERENCES_BUNDLE_MODIFIES = "small.app-modifies";
+    private static final String SHARED_PREFERENCES_BUNDLE_UPGRADES = "small.app-upgrades";
+
+    private static final class BundleState {
+        int versionCode;
+        long lastModified;
+        boolean upgraded;
+    }
+
+    private static StateJournal sInstance;
+
+    private final Context mContext;
+    private final File mFile;
+    private final HashMap<String, BundleState> mStates = new HashMap<String, BundleState>();
+    private int mHostVersionCode;
+    private int mUpgradedCount;
+    private int mRecordCount;
+    private long mGeneration = -1; // the generation of the process lock while last synced
+
+    private int mBatchDepth;
+    private ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+    private DataOutputStream mPendingOut = new DataOutputStream(mPending);
+    private ByteArrayOutputStream mPayload = new ByteArrayOutputStream(64);
+    private DataOutputStream mPayloadOut = new DataOutputStream(mPayload);
+    private CRC32 mCrc = new CRC32();
+
+    static synchronized StateJournal getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new StateJournal(context);
+        }
+        return sInstance;
+    }
+
+    private StateJournal(Context context) {
+        mContext = context;
+        mFile = context.getFileStreamPath(JOURNAL_FILE_NAME);
+
+        ProcessLock lock = ProcessLock.getInstance(context);
+        lock.lock();
+        boolean modified = false;
+        try {
+            long generation = lock.getGeneration();
+            if (mFile.exists() && load()) {
+                mGeneration = generation;
+                return;
+            }
+
+            // First created, migrate from the shared preferences
+            migrate(context);
+            if (compact()) {
+                modified = true;
+                mGeneration = generation + 1;
+                // Drop the legacy preferences only after the journal is durably written
+                cleanUpLegacyPreferences(context);
+            }
+        } finally {
+            lock.release(modified);
+        }
+    }
+
+    //______________________________________________________________________________________________
+    // Accessors
+
+    synchronized int getHostVersionCode() {
+        return mHostVersionCode;
+    }
+
+    void setHostVersionCode(int versionCode) {
+        synchronized (this) {
+            if (mHostVersionCode == versionCode) return;
+            mHostVersionCode = versionCode;
+            appendRecord(TYPE_HOST_VERSION_CODE, null, versionCode);
+        }
+        sync();
+    }
+
+    synchronized int getVersionCode(String bundleName) {
+        BundleState state = mStates.get(bundleName);
+        return (state == null) ? 0 : state.versionCode;
+    }
+
+    void setVersionCode(String bundleName, int versionCode) {
+        synchronized (this) {
+            BundleState state = obtainState(bundleName);
+            if (state.versionCode == versionCode) return;
+            state.versionCode = versionCode;
+            appendRecord(TYPE_VERSION_CODE, bundleName, versionCode);
+        }
+        sync();
+    }
+
+    synchronized Map<String, Integer> getVersionCodes() {
+        Map<String, Integer> versions = new HashMap<String, Integer>(mStates.size());
+        for (Map.Entry<String, BundleState> entry : mStates.entrySet()) {
+            int versionCode = entry.getValue().versionCode;
+            if (versionCode != 0) {
+                versions.put(entry.getKey(), versionCode);
+            }
+        }
+        return versions;
+    }
+
+    synchronized long getLastModified(String bundleName) {
+        BundleState state = mStates.get(bundleName);
+        return (state == null) ? 0 : state.lastModified;
+    }
+
+    void setLastModified(String bundleName, long lastModified) {
+        synchronized (this) {
+            BundleState state = obtainState(bundleName);
+            if (state.lastModified == lastModified) return;
+            state.lastModified = lastModified;
+            appendRecord(TYPE_LAST_MODIFIED, bundleName, lastModified);
+        }
+        sync();
+    }
+
+    synchronized boolean isUpgraded(String bundleName) {
+        BundleState state = mStates.get(bundleName);
+        return state != null && state.upgraded;
+    }
+
+    void setUpgraded(String bundleName, boolean upgraded) {
+        synchronized (this) {
+            BundleState state = obtainState(bundleName);
+            if (state.upgraded == upgraded) return;
+            state.upgraded = upgraded;
+            mUpgradedCount += upgraded ? 1 : -1;
+            appendRecord(TYPE_UPGRADED, bundleName, upgraded ? 1 : 0);
+        }
+        sync();
+    }
+
+    /** @return <tt>true</tt> if any bundle is waiting for upgrade */
+    synchronized boolean hasUpgradedBundles() {
+        return mUpgradedCount > 0;
+    }
+
+    /** Begin to collect the updates, which will be written at the outermost {@link #endBatch} */
+    synchronized void beginBatch() {
+        mBatchDepth++;
+    }
+
+    /** @return <tt>true</tt> if any update was written */
+    boolean endBatch() {
+        synchronized (this) {
+            if (mBatchDepth == 0) return false;
+            if (--mBatchDepth > 0) return false;
+        }
+        return sync();
+    }
+
+    /**
+     * Drop the in-memory states and load them again, as other process may modify them.
+     * Must be called while holding the {@link ProcessLock}.
+     */
+    synchronized void reload() {
+        if (mBatchDepth > 0) return;
+
+        reloadKeepingPending();
+        mGeneration = ProcessLock.getInstance(mContext).getGeneration();
+    }
+
+    //______________________________________________________________________________________________
+    // Private
+
+    private BundleState obtainState(String bundleName) {
+        BundleState state = mStates.get(bundleName);
+        if (state == null) {
+            state = new BundleState();
+            mStates.put(bundleName, state);
+        }
+        return state;
+    }
+
+    private void appendRecord(byte type, String bundleName, long value) {
+        try {
+            writeRecord(mPendingOut, type, bundleName, value);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        mRecordCount++;
+    }
+
+    private void writeRecord(DataOutputStream out, byte type, String bundleName, long value)
+            throws IOException {
+        mPayload.reset();
+        mPayloadOut.writeByte(type);
+        if (bundleName != null) {
+            mPayloadOut.writeUTF(bundleName);
+        }
+        if (type == TYPE_LAST_MODIFIED) {
+            mPayloadOut.writeLong(value);
+        } else if (type == TYPE_UPGRADED) {
+            mPayloadOut.writeBoolean(value != 0);
+        } else {
+            mPayloadOut.writeInt((int) value);
+        }
+        mPayloadOut.flush();
+
+        byte[] payload = mPayload.toByteArray();
+        mCrc.reset();
+        mCrc.update(payload);
+        out.writeShort(payload.length);
+        out.write(payload);
+        out.writeInt((int) mCrc.getValue());
+    }
+
+    /**
+     * Write the pending records unless batching. The process lock is always taken before
+     * the monitor of this journal, as {@link Bundle} holds it while loading the bundles.
+     *
+     * @return <tt>true</tt> if any record was written
+     */
+    private boolean sync() {
+        synchronized (this) {
+            // Never wait for the loading which holds the lock, the batch writes the records
+            if (mBatchDepth > 0 || mPending.size() == 0) return false;
+        }
+
+        ProcessLock lock = ProcessLock.getInstance(mContext);
+        lock.lock();
+        boolean written = false;
+        try {
+            synchronized (this) {
+                if (mBatchDepth > 0) return false;
+
+                written = flush(lock.getGeneration());
+            }
+        } finally {
+            lock.release(written);
+        }
+        return written;
+    }
+
+    /**
+     * Append the pending records to the journal, or compact it if too many records.
+     * Must be called while holding the process lock.
+     *
+     * @param generation the generation of the process lock, or -1 if unavailable
+     * @return <tt>true</tt> if any record was written
+     */
+    private boolean flush(long generation) {
+        if (mPending.size() == 0) return false;
+
+        boolean intact = true;
+        if (generation >= 0 && generation != mGeneration) {
+            // Other process has appended or compacted the journal, take its records first
+            // so that they will not be erased by the compaction
+            intact = reloadKeepingPending();
+            mGeneration = generation;
+        }
+
+        if (!intact || mRecordCount > Math.max(MIN_RECORDS_TO_COMPACT, mStates.size() * 4)) {
+            mPending.reset();
+            if (!compact()) return false;
+
+            if (generation >= 0) mGeneration = generation + 1;
+            return true;
+        }
+
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(mFile, true);
+            mPending.writeTo(out);
+            if (generation >= 0) mGeneration = generation + 1;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + mFile, e);
+            return false;
+        } finally {
+            mPending.reset();
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reload the journal and apply the pending records on top of it
+     *
+     * @return <tt>false</tt> if the journal is missing or broken
+     */
+    private boolean reloadKeepingPending() {
+        mStates.clear();
+        mHostVersionCode = 0;
+        mUpgradedCount = 0;
+        mRecordCount = 0;
+        boolean intact = mFile.exists() && load();
+
+        if (mPending.size() == 0) return intact;
+
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(mPending.toByteArray()));
+        try {
+            while (in.available() > 0) {
+                byte[] payload = new byte[in.readUnsignedShort()];
+                in.readFully(payload);
+                in.readInt(); // crc
+                applyRecord(new DataInputStream(new ByteArrayInputStream(payload)));
+                mRecordCount++;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return intact;
+    }
+
+    /**
+     * Rewrite the journal with a snapshot of the current states
+     *
+     * @return <tt>true</tt> if the journal was durably written
+     */
+    private boolean compact() {
+        File tempFile = FileUtils.getTempFile(mFile);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tempFile);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC_NUMBER);
+            out.writeInt(VERSION);
+            int count = 0;
+            if (mHostVersionCode != 0) {
+                writeRecord(out, TYPE_HOST_VERSION_CODE, null, mHostVersionCode);
+                count++;
+            }
+            for (Map.Entry<String, BundleState> entry : mStates.entrySet()) {
+                String name = entry.getKey();
+                BundleState state = entry.getValue();
+                if (state.versionCode != 0) {
+                    writeRecord(out, TYPE_VERSION_CODE, name, state.versionCode);
+                    count++;
+                }
+                if (state.lastModified != 0) {
+                    writeRecord(out, TYPE_LAST_MODIFIED, name, state.lastModified);
+                    count++;
+                }
+                if (state.upgraded) {
+                    writeRecord(out, TYPE_UPGRADED, name, 1);
+                    count++;
+                }
+            }
+            out.flush();
+            bytes.writeTo(fos);
+            boolean committed = FileUtils.commitTempFile(fos, tempFile, mFile);
+            if (committed) {
+                mRecordCount = count;
+            }
+            fos = null;
+            return committed;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to compact " + mFile, e);
+            return false;
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                tempFile.delete();
+            }
+        }
+    }
+
+    /** Replay the journal, the broken tail (if any) is truncated */
+    private boolean load() {
+        DataInputStream in = null;
+        long validLength = HEADER_SIZE;
+        boolean truncated = false;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC_NUMBER || in.readInt() != VERSION) {
+                return false;
+            }
+
+            byte[] payload = new byte[256];
+            while (true) {
+                int length;
+                try {
+                    length = in.readUnsignedShort();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length == 0) {
+                    truncated = true;
+                    break;
+                }
+                if (length > payload.length) {
+                    payload = new byte[length];
+                }
+                int crc;
+                try {
+                    in.readFully(payload, 0, length);
+                    crc = in.readInt();
+                } catch (EOFException e) {
+                    truncated = true;
+                    break;
+                }
+                mCrc.reset();
+                mCrc.update(payload, 0, length);
+                if ((int) mCrc.getValue() != crc) {
+                    truncated = true;
+                    break;
+                }
+
+                applyRecord(new DataInputStream(
+                        new ByteArrayInputStream(payload, 0, length)));
+                mRecordCount++;
+                validLength += 2 + length + 4;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        if (truncated) {
+            Log.w(TAG, "Truncate the broken journal at " + validLength);
+            try {
+                RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+                raf.setLength(validLength);
+                raf.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return true;
+    }
+
+    private void applyRecord(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        if (type == TYPE_HOST_VERSION_CODE) {
+            mHostVersionCode = in.readInt();
+            return;
+        }
+
+        BundleState state = obtainState(in.readUTF());
+        switch (type) {
+            case TYPE_VERSION_CODE:
+                state.versionCode = in.readInt();
+                break;
+            case TYPE_LAST_MODIFIED:
+                state.lastModified = in.readLong();
+                break;
+            case TYPE_UPGRADED:
+                boolean upgraded = in.readBoolean();
+                if (upgraded != state.upgraded) {
+                    state.upgraded = upgraded;
+                    mUpgradedCount += upgraded ? 1 : -1;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void migrate(Context context) {
+        mStates.clear();
+        mUpgradedCount = 0;
+
+        SharedPreferences small = context.getSharedPreferences(SHARED_PREFERENCES_SMALL, 0);
+        mHostVersionCode = small.getInt(SHARED_PREFERENCES_KEY_VERSION, 0);
+
+        SharedPreferences versions = context.getSharedPreferences(
+                SHARED_PREFERENCES_BUNDLE_VERSIONS, 0);
+        for (Map.Entry<String, ?> entry : versions.getAll().entrySet()) {
+            if (entry.getValue() instanceof Integer) {
+                obtainState(entry.getKey()).versionCode = (Integer) entry.getValue();
+            }
+        }
+        SharedPreferences modifies = context.getSharedPreferences(
+                SHARED_PREFERENCES_BUNDLE_MODIFIES, 0);
+        for (Map.Entry<String, ?> entry : modifies.getAll().entrySet()) {
+            if (entry.getValue() instanceof Long) {
+                obtainState(entry.getKey()).lastModified = (Long) entry.getValue();
+            }
+        }
+        SharedPreferences upgrades = context.getSharedPreferences(
+                SHARED_PREFERENCES_BUNDLE_UPGRADES, 0);
+        for (Map.Entry<String, ?> entry : upgrades.getAll().entrySet()) {
+            if (Boolean.TRUE.equals(entry.getValue())) {
+                obtainState(entry.getKey()).upgraded = true;
+                mUpgradedCount++;
+            }
+        }
+    }
+
+    private static void cleanUpLegacyPreferences(Context context) {
+        SharedPreferences small = context.getSharedPreferences(SHARED_PREFERENCES_SMALL, 0);
+        SharedPreferences versions = context.getSharedPreferences(
+                SHARED_PREFERENCES_BUNDLE_VERSIONS, 0);
+        SharedPreferences modifies = context.getSharedPreferences(
+                SHARED_PREFERENCES_BUNDLE_MODIFIES, 0);
+        SharedPreferences upgrades = context.getSharedPreferences(
+                SHARED_PREFERENCES_BUNDLE_UPGRADES, 0);
+        small.edit().remove(SHARED_PREFERENCES_KEY_VERSION).apply();
+        versions.edit().clear().apply();
+        modifies.edit().clear().apply();
+        upgrades.edit().clear().apply();
+    }
+}
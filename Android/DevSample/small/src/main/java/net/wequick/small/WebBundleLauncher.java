@@ -17,8 +17,21 @@
 package net.wequick.small;
 
 import android.app.Activity;
+import android.content.Intent;
+import android.util.Log;
 
+import net.wequick.small.webkit.ArchiveAssetLoader;
 import net.wequick.small.webkit.WebActivity;
+import net.wequick.small.util.ZipArchive;
+import net.wequick.small.webkit.WebView;
+import net.wequick.small.webkit.WebViewPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class launch the plugin html file with an internal {@link WebActivity}.
@@ -32,13 +45,25 @@ import net.wequick.small.webkit.WebActivity;
  *
  * <p>The <tt>WebActivity</tt> takes the <tt>WebView</tt> as content view to show html content.
  *
+ * <p>If {@link Small#setWebBundleArchiveMode(boolean)} is enabled, the bundle files are not
+ * extracted but served from the bundle archive by {@link ArchiveAssetLoader}.
+ *
  * @see WebActivity
  * @see net.wequick.small.webkit.WebView
  */
 public class WebBundleLauncher extends AssetBundleLauncher {
 
+    private static final String TAG = "WebBundleLauncher";
+
     private static final String FD_BASE = "small_web";
     private static final String FILE_INDEX = "index.html";
+    private static final String FILE_METAS = "small.metas";
+
+    /** The navigation bar items of the pages of each bundle, collected at build time */
+    private final ConcurrentHashMap<String, String> mMetasFiles =
+            new ConcurrentHashMap<String, String>();
+
+    private boolean mHasWebBundle;
 
     @Override
     protected String[] getSupportingTypes() {
@@ -55,8 +80,171 @@ public class WebBundleLauncher extends AssetBundleLauncher {
         return FILE_INDEX;
     }
 
+    @Override
+    public File getExtractPath(Bundle bundle) {
+        if (Small.isWebBundleArchiveMode()) return null;
+
+        File extractPath = super.getExtractPath(bundle);
+        if (!extractPath.exists()) {
+            // Removed as served from the archive before, force to extract again
+            Small.setBundleLastModified(bundle.getPackageName(), 0);
+        }
+        return extractPath;
+    }
+
+    @Override
+    public File getExtractFile(Bundle bundle, String entryName) {
+        if (Small.isWebBundleArchiveMode()) return null;
+        return super.getExtractFile(bundle, entryName);
+    }
+
+    @Override
+    public void loadBundle(Bundle bundle) {
+        if (Small.isWebBundleArchiveMode()) {
+            loadBundleFromArchive(bundle);
+        } else {
+            super.loadBundle(bundle);
+            // Inject the bridge script into the extracted pages as into the archived ones
+            ArchiveAssetLoader.registerExtractPath(getBasePath());
+        }
+
+        String metasFile = loadMetasFile(bundle);
+        if (metasFile != null) {
+            mMetasFiles.put(bundle.getPackageName(), metasFile);
+        } else {
+            mMetasFiles.remove(bundle.getPackageName());
+        }
+        mHasWebBundle = true;
+    }
+
+    @Override
+    public void prelaunchBundle(Bundle bundle) {
+        super.prelaunchBundle(bundle);
+        Intent intent = bundle.getIntent();
+        if (intent == null) return;
+
+        // Attach the navigation bar items of the routed page, or clear the previous ones
+        HashMap<String, HashMap<String, String>> metas = null;
+        String metasFile = mMetasFiles.get(bundle.getPackageName());
+        if (metasFile != null) {
+            String page = getPagePath(intent.getStringExtra("url"), bundle.getURL());
+            if (page != null) {
+                metas = WebView.parseMetasFile(metasFile, page);
+            }
+        }
+        if (metas != null) {
+            intent.putExtra(WebActivity.EXTRA_METAS, metas);
+        } else {
+            intent.removeExtra(WebActivity.EXTRA_METAS);
+        }
+    }
+
+    /**
+     * Get the path of the page relative to the directory of the bundle index page
+     *
+     * @return the path, e.g. <tt>detail.html</tt>, or <tt>null</tt> if not in the bundle
+     */
+    private static String getPagePath(String url, URL indexUrl) {
+        if (url == null || indexUrl == null) return null;
+
+        String root = indexUrl.toString();
+        int end = root.indexOf('?');
+        if (end >= 0) root = root.substring(0, end);
+        root = root.substring(0, root.lastIndexOf('/') + 1);
+        if (!url.startsWith(root)) return null;
+
+        String page = url.substring(root.length());
+        for (int i = 0; i < page.length(); i++) {
+            char c = page.charAt(i);
+            if (c == '?' || c == '#') {
+                page = page.substring(0, i);
+                break;
+            }
+        }
+        if (page.length() == 0 || page.endsWith("/")) {
+            page += FILE_INDEX;
+        }
+        return page;
+    }
+
+    @Override
+    public void postSetUp() {
+        super.postSetUp();
+        if (mHasWebBundle) {
+            // Create the WebViews for WebActivity while the main thread is idle
+            WebViewPool.getInstance().prepare(Small.getContext());
+        }
+    }
+
     @Override
     protected Class<? extends Activity> getActivityClass() {
         return WebActivity.class;
     }
+
+    private void loadBundleFromArchive(Bundle bundle) {
+        String packageName = bundle.getPackageName();
+        BundleParser parser = bundle.getParser();
+        if (parser == null) return;
+
+        // Share the archive opened by the parser, which is retained by the loader
+        boolean registered;
+        try {
+            registered = ArchiveAssetLoader.register(packageName, parser.getArchive());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open " + parser.getSourcePath(), e);
+            registered = false;
+        }
+        if (!registered) {
+            bundle.setEnabled(false);
+            return;
+        }
+
+        String uri = ArchiveAssetLoader.getUrl(packageName, FILE_INDEX);
+        if (bundle.getQuery() != null) {
+            uri += "?" + bundle.getQuery();
+        }
+        try {
+            bundle.setURL(new URL(uri));
+        } catch (MalformedURLException e) {
+            Log.e(TAG, "Failed to parse url " + uri + " for bundle " + packageName);
+            return;
+        }
+
+        // Remove the files extracted before
+        final File extractPath = super.getExtractPath(bundle);
+        if (extractPath.exists()) {
+            Bundle.postIO(bundle, new Runnable() {
+                @Override
+                public void run() {
+                    deleteRecursively(extractPath);
+                }
+            });
+        }
+    }
+
+    private String loadMetasFile(Bundle bundle) {
+        BundleParser parser = bundle.getParser();
+        if (parser == null) return null;
+
+        try {
+            ZipArchive archive = parser.getArchive();
+            int index = archive.indexOf(FILE_METAS);
+            if (index < 0) return null;
+
+            return new String(archive.readFully(index), "UTF-8");
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + FILE_METAS + " of " + bundle.getPackageName(), e);
+            return null;
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteRecursively(f);
+            }
+        }
+        file.delete();
+    }
 }
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2015-present wequick.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package net.wequick.small.util;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A streaming pull parser for the compiled (binary) xml, such as the
+ * <tt>AndroidManifest.xml</tt> in an apk.
+ *
+ * <p>It reads the chunks described in
+ * <a href="https://android.googlesource.com/platform/frameworks/base/+/master/include/androidfw/ResourceTypes.h">ResourceTypes.h</a>
+ * directly and returns the raw attribute values, the references are not resolved.
+ * It depends on nothing of the Android framework so that can be run on a plain JVM.
+ */
+public final class AXmlParser {
+
+    // Event types, the same as org.xmlpull.v1.XmlPullParser
+    public static final int START_DOCUMENT = 0;
+    public static final int END_DOCUMENT = 1;
+    public static final int START_TAG = 2;
+    public static final int END_TAG = 3;
+    public static final int TEXT = 4;
+
+    // Value types, the same as android.util.TypedValue
+    public static final int TYPE_NULL = 0x00;
+    public static final int TYPE_REFERENCE = 0x01;
+    public static final int TYPE_ATTRIBUTE = 0x02;
+    public static final int TYPE_STRING = 0x03;
+    public static final int TYPE_INT_BOOLEAN = 0x12;
+    public static final int TYPE_FIRST_INT = 0x10;
+    public static final int TYPE_LAST_INT = 0x1f;
+
+    // Chunk types
+    private static final int RES_STRING_POOL_TYPE = 0x0001;
+    private static final int RES_XML_TYPE = 0x0003;
+    private static final int RES_XML_START_ELEMENT_TYPE = 0x0102;
+    private static final int RES_XML_END_ELEMENT_TYPE = 0x0103;
+    private static final int RES_XML_CDATA_TYPE = 0x0104;
+    private static final int RES_XML_RESOURCE_MAP_TYPE = 0x0180;
+
+    private static final int UTF8_FLAG = 1 << 8;
+    private static final int ATTRIBUTE_SIZE = 20;
+
+    private final ByteBuffer mData;
+    private int mNextChunk;
+    private int mEventType = START_DOCUMENT;
+    private int mDepth;
+    private boolean mPendingEndTag;
+
+    // String pool
+    private int mStringCount;
+    private int mStringOffsets;
+    private int mStringsStart;
+    private boolean mUtf8;
+    private String[] mStrings;
+
+    private int[] mResourceIds;
+
+    // Current element
+    private int mName = -1;
+    private int mText = -1;
+    private int mAttributeStart;
+    private int mAttributeSize;
+    private int mAttributeCount;
+
+    public AXmlParser(byte[] data) throws IOException {
+        mData = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        if (data.length < 8 || mData.getShort(0) != RES_XML_TYPE) {
+            throw new IOException("Not a binary xml");
+        }
+        mNextChunk = mData.getShort(2) & 0xFFFF;
+    }
+
+    /** Read the binary xml <tt>entryName</tt> from <tt>archive</tt> */
+    public static AXmlParser open(ZipArchive archive, String entryName) throws IOException {
+        int index = archive.indexOf(entryName);
+        if (index < 0) {
+            throw new IOException("Missing " + entryName + " in " + archive.getPath());
+        }
+        return new AXmlParser(archive.readFully(index));
+    }
+
+    /** Move to the next event, the namespace chunks are skipped */
+    public int next() throws IOException {
+        if (mPendingEndTag) {
+            mPendingEndTag = false;
+            mDepth--;
+        }
+        mName = -1;
+        mText = -1;
+        mAttributeCount = 0;
+
+        int limit = mData.limit();
+        while (mNextChunk + 8 <= limit) {
+            int chunk = mNextChunk;
+            int type = mData.getShort(chunk) & 0xFFFF;
+            int headerSize = mData.getShort(chunk + 2) & 0xFFFF;
+            int size = mData.getInt(chunk + 4);
+            if (size < 8 || chunk + size > limit) {
+                throw new IOException("Bad chunk size " + size + " at " + chunk);
+            }
+            mNextChunk = chunk + size;
+
+            int ext = chunk + headerSize;
+            switch (type) {
+                case RES_STRING_POOL_TYPE:
+                    readStringPool(chunk);
+                    break;
+                case RES_XML_RESOURCE_MAP_TYPE:
+                    int N = (size - headerSize) / 4;
+                    mResourceIds = new int[N];
+                    for (int i = 0; i < N; i++) {
+                        mResourceIds[i] = mData.getInt(ext + i * 4);
+                    }
+                    break;
+                case RES_XML_START_ELEMENT_TYPE:
+                    // ResXMLTree_attrExt
+                    mName = mData.getInt(ext + 4);
+                    mAttributeStart = ext + (mData.getShort(ext + 8) & 0xFFFF);
+                    mAttributeSize = mData.getShort(ext + 10) & 0xFFFF;
+                    mAttributeCount = mData.getShort(ext + 12) & 0xFFFF;
+                    if (mAttributeSize < ATTRIBUTE_SIZE) mAttributeSize = ATTRIBUTE_SIZE;
+                    mDepth++;
+                    return mEventType = START_TAG;
+                case RES_XML_END_ELEMENT_TYPE:
+                    // ResXMLTree_endElementExt
+                    mName = mData.getInt(ext + 4);
+                    mPendingEndTag = true;
+                    return mEventType = END_TAG;
+                case RES_XML_CDATA_TYPE:
+                    mText = mData.getInt(ext);
+                    return mEventType = TEXT;
+                default:
+                    break;
+            }
+        }
+        return mEventType = END_DOCUMENT;
+    }
+
+    public int getEventType() {
+        return mEventType;
+    }
+
+    /** The depth of current element, the same as XmlPullParser.getDepth */
+    public int getDepth() {
+        return mDepth;
+    }
+
+    /** The tag name of current START_TAG or END_TAG */
+    public String getName() {
+        return getString(mName);
+    }
+
+    public String getText() {
+        return getString(mText);
+    }
+
+    public int getAttributeCount() {
+        return mAttributeCount;
+    }
+
+    public String getAttributeName(int index) {
+        return getString(mData.getInt(getAttributeOffset(index) + 4));
+    }
+
+    /** The resource id of the attribute name, e.g. 0x0101021b for android:versionCode */
+    public int getAttributeNameResource(int index) {
+        int name = mData.getInt(getAttributeOffset(index) + 4);
+        if (mResourceIds == null || name < 0 || name >= mResourceIds.length) return 0;
+        return mResourceIds[name];
+    }
+
+    public int getAttributeValueType(int index) {
+        return mData.get(getAttributeOffset(index) + 15) & 0xFF;
+    }
+
+    public int getAttributeValueData(int index) {
+        return mData.getInt(getAttributeOffset(index) + 16);
+    }
+
+    /** The raw string value of the attribute, <tt>null</tt> if it's not a string */
+    public String getAttributeValue(int index) {
+        int offset = getAttributeOffset(index);
+        if ((mData.get(offset + 15) & 0xFF) == TYPE_STRING) {
+            return getString(mData.getInt(offset + 16));
+        }
+        return getString(mData.getInt(offset + 8));
+    }
+
+    /** Find the attribute by the resource id of its name */
+    public int indexOfAttribute(int nameResource) {
+        for (int i = 0; i < mAttributeCount; i++) {
+            if (getAttributeNameResource(i) == nameResource) return i;
+        }
+        return -1;
+    }
+
+    /** Find the attribute which has no resource id by name, e.g. `package' */
+    public int indexOfAttribute(String name) {
+        for (int i = 0; i < mAttributeCount; i++) {
+            if (getAttributeNameResource(i) == 0 && name.equals(getAttributeName(i))) return i;
+        }
+        return -1;
+    }
+
+    //______________________________________________________________________________________________
+    // Private
+
+    private int getAttributeOffset(int index) {
+        if (index < 0 || index >= mAttributeCount) {
+            throw new IndexOutOfBoundsException("Attribute index " + index);
+        }
+        return mAttributeStart + index * mAttributeSize;
+    }
+
+    private void readStringPool(int chunk) {
+        int headerSize = mData.getShort(chunk + 2) & 0xFFFF;
+        mStringCount = mData.getInt(chunk + 8);
+        int flags = mData.getInt(chunk + 16);
+        mUtf8 = (flags & UTF8_FLAG) != 0;
+        mStringsStart = chunk + mData.getInt(chunk + 20);
+        mStringOffsets = chunk + headerSize;
+        mStrings = new String[mStringCount];
+    }
+
+    private String getString(int index) {
+        if (index < 0 || index >= mStringCount) return null;
+
+        String s = mStrings[index];
+        if (s != null) return s;
+
+        int offset = mStringsStart + mData.getInt(mStringOffsets + index * 4);
+        if (mUtf8) {
+            // Skip the utf-16 length
+            offset += ((mData.get(offset) & 0x80) != 0) ? 2 : 1;
+            int len = mData.get(offset) & 0xFF;
+            if ((len & 0x80) != 0) {
+                len = ((len & 0x7F) << 8) | (mData.get(offset + 1) & 0xFF);
+                offset += 2;
+            } else {
+                offset += 1;
+            }
+            byte[] bytes = new byte[len];
+            for (int i = 0; i < len; i++) {
+                bytes[i] = mData.get(offset + i);
+            }
+            try {
+                s = new String(bytes, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        } else {
+            int len = mData.getShort(offset) & 0xFFFF;
+            if ((len & 0x8000) != 0) {
+                len = ((len & 0x7FFF) << 16) | (mData.getShort(offset + 2) & 0xFFFF);
+                offset += 4;
+            } else {
+                offset += 2;
+            }
+            char[] chars = new char[len];
+            for (int i = 0; i < len; i++) {
+                chars[i] = mData.getChar(offset + i * 2);
+            }
+            s = new String(chars);
+        }
+        mStrings[index] = s;
+        return s;
+    }
+}
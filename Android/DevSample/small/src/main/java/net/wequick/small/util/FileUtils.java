@@ -36,6 +36,7 @@ import java.util.zip.ZipInputStream;
  */
 public final class FileUtils {
     private static final String DOWNLOAD_PATH = "small_patch";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
 
     //获得内部文件路径：/data/data/宿主包名/(app_+dir)，如果没有则创建
     public static File getInternalFilesPath(String dir) {
@@ -50,4 +51,29 @@ public final class FileUtils {
     public static File getDownloadBundlePath() {
         return getInternalFilesPath(DOWNLOAD_PATH);
     }
+
+    /**
+     * Get the temporary file to write the content of <tt>file</tt> into,
+     * which should be committed by {@link #commitTempFile} later.
+     */
+    public static File getTempFile(File file) {
+        return new File(file.getParentFile(), file.getName() + TEMP_FILE_SUFFIX);
+    }
+
+    /**
+     * Flush the <tt>out</tt> stream of <tt>tempFile</tt> to disk and then rename it to
+     * <tt>file</tt>, so that nobody would ever see a partially written <tt>file</tt>.
+     *
+     * @return <tt>true</tt> if successfully committed
+     */
+    public static boolean commitTempFile(FileOutputStream out, File tempFile, File file)
+            throws IOException {
+        out.flush();
+        out.getFD().sync();
+        out.close();
+        if (tempFile.renameTo(file)) return true;
+
+        file.delete(); // delete first to avoid `renameTo' failed on some file systems
+        return tempFile.renameTo(file);
+    }
 }
@@ -38,6 +38,7 @@ import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -55,6 +56,21 @@ public class ReflectAccelerator {
     // AssetManager.addAssetPath
     private static Method sAssetManager_addAssetPath_method;
     private static Method sAssetManager_addAssetPaths_method;
+    // AssetManager.ensureStringBlocks
+    private static Method sAssetManager_ensureStringBlocks_method;
+    private static Field sAssetManager_mStringBlocks_field;
+    // Active resources
+    private static Method sResourcesManager_getInstance_method;
+    private static Field sResourcesManager_mActiveResources_field;
+    private static Field sResourcesManager_mResourceReferences_field;
+    private static Field sActivityThread_mActiveResources_field;
+    // Resources.mAssets
+    private static Field sResources_mAssets_field;
+    private static Field sResources_mResourcesImpl_field;
+    private static Field sResourcesImpl_mAssets_field;
+    // Resources.mTypedArrayPool
+    private static Field sResources_mTypedArrayPool_field;
+    private static Method sTypedArrayPool_acquire_method;
     // ActivityClientRecord
     private static Field sActivityClientRecord_intent_field;
     private static Field sActivityClientRecord_activityInfo_field;
@@ -432,85 +448,92 @@ public class ReflectAccelerator {
         return invoke(sAssetManager_addAssetPaths_method, assets, new Object[]{paths});
     }
 
+    /**
+     * Create a new asset manager with all the <tt>assetPaths</tt> and replace the one of
+     * each active resources with it.
+     */
     public static void mergeResources(Application app, String[] assetPaths) {
         AssetManager newAssetManager = newAssetManager();
         addAssetPaths(newAssetManager, assetPaths);
 
         try {
-            Method mEnsureStringBlocks = AssetManager.class.getDeclaredMethod("ensureStringBlocks", new Class[0]);
-            mEnsureStringBlocks.setAccessible(true);
-            mEnsureStringBlocks.invoke(newAssetManager, new Object[0]);
-
-            Collection<WeakReference<Resources>> references;
+            ensureStringBlocks(newAssetManager);
 
-            if (Build.VERSION.SDK_INT >= 19) {
-                Class<?> resourcesManagerClass = Class.forName("android.app.ResourcesManager");
-                Method mGetInstance = resourcesManagerClass.getDeclaredMethod("getInstance", new Class[0]);
-                mGetInstance.setAccessible(true);
-                Object resourcesManager = mGetInstance.invoke(null, new Object[0]);
-                try {
-                    Field fMActiveResources = resourcesManagerClass.getDeclaredField("mActiveResources");
-                    fMActiveResources.setAccessible(true);
+            Collection<WeakReference<Resources>> references = getActiveResourceReferences(app);
+            for (WeakReference<Resources> wr : references) {
+                Resources resources = wr.get();
+                if (resources == null) continue;
 
-                    ArrayMap<?, WeakReference<Resources>> arrayMap = (ArrayMap)fMActiveResources.get(resourcesManager);
+                setAssets(resources, newAssetManager);
+                resources.updateConfiguration(resources.getConfiguration(), resources.getDisplayMetrics());
+            }
 
-                    references = arrayMap.values();
-                } catch (NoSuchFieldException ignore) {
-                    Field mResourceReferences = resourcesManagerClass.getDeclaredField("mResourceReferences");
-                    mResourceReferences.setAccessible(true);
+            if (Build.VERSION.SDK_INT >= 21) {
+                for (WeakReference<Resources> wr : references) {
+                    Resources resources = wr.get();
+                    if (resources == null) continue;
 
-                    references = (Collection) mResourceReferences.get(resourcesManager);
+                    clearTypedArrayPool(resources);
                 }
-            } else {
-                Class<?> activityThread = Class.forName("android.app.ActivityThread");
-                Field fMActiveResources = activityThread.getDeclaredField("mActiveResources");
-                fMActiveResources.setAccessible(true);
-                Object thread = getActivityThread(app, activityThread);
-
-                HashMap<?, WeakReference<Resources>> map = (HashMap)fMActiveResources.get(thread);
-
-                references = map.values();
             }
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Append the <tt>assetPath</tt> to the asset managers of all the active resources,
+     * which is much cheaper than {@link #mergeResources} for a single bundle.
+     *
+     * @return <tt>false</tt> if failed, the caller should fall back to {@link #mergeResources}
+     */
+    public static boolean appendAssetPath(Application app, String assetPath) {
+        return appendAssetPaths(app, new String[] {assetPath});
+    }
 
+    public static boolean appendAssetPaths(Application app, String[] assetPaths) {
+        try {
+            Collection<WeakReference<Resources>> references = getActiveResourceReferences(app);
+            List<Resources> resourcesList = new ArrayList<Resources>();
+            List<AssetManager> assetManagers = new ArrayList<AssetManager>();
             for (WeakReference<Resources> wr : references) {
                 Resources resources = wr.get();
                 if (resources == null) continue;
 
-                try {
-                    Field mAssets = Resources.class.getDeclaredField("mAssets");
-                    mAssets.setAccessible(true);
-                    mAssets.set(resources, newAssetManager);
-                } catch (Throwable ignore) {
-                    Field mResourcesImpl = Resources.class.getDeclaredField("mResourcesImpl");
-                    mResourcesImpl.setAccessible(true);
-                    Object resourceImpl = mResourcesImpl.get(resources);
-                    Field implAssets = resourceImpl.getClass().getDeclaredField("mAssets");
-                    implAssets.setAccessible(true);
-                    implAssets.set(resourceImpl, newAssetManager);
+                resourcesList.add(resources);
+                AssetManager assets = resources.getAssets();
+                if (!containsInstance(assetManagers, assets)) {
+                    assetManagers.add(assets);
                 }
-
-                resources.updateConfiguration(resources.getConfiguration(), resources.getDisplayMetrics());
             }
 
-            if (Build.VERSION.SDK_INT >= 21) {
-                for (WeakReference<Resources> wr : references) {
-                    Resources resources = wr.get();
-                    if (resources == null) continue;
+            for (AssetManager assets : assetManagers) {
+                for (String assetPath : assetPaths) {
+                    if (addAssetPath(assets, assetPath) == 0) return false;
+                }
+                // Rebuild the string blocks to include the new packages
+                if (sAssetManager_mStringBlocks_field == null) {
+                    sAssetManager_mStringBlocks_field = getDeclaredField(
+                            AssetManager.class, "mStringBlocks");
+                }
+                if (sAssetManager_mStringBlocks_field == null) return false;
+                sAssetManager_mStringBlocks_field.set(assets, null);
+                ensureStringBlocks(assets);
+            }
 
-                    // android.util.Pools$SynchronizedPool<TypedArray>
-                    Field mTypedArrayPool = Resources.class.getDeclaredField("mTypedArrayPool");
-                    mTypedArrayPool.setAccessible(true);
-                    Object typedArrayPool = mTypedArrayPool.get(resources);
-                    // Clear all the pools
-                    Method acquire = typedArrayPool.getClass().getMethod("acquire");
-                    acquire.setAccessible(true);
-                    while (acquire.invoke(typedArrayPool) != null) ;
+            for (Resources resources : resourcesList) {
+                resources.updateConfiguration(resources.getConfiguration(), resources.getDisplayMetrics());
+                if (Build.VERSION.SDK_INT >= 21) {
+                    clearTypedArrayPool(resources);
                 }
             }
         } catch (Throwable e) {
-            throw new IllegalStateException(e);
+            e.printStackTrace();
+            return false;
         }
+        return true;
     }
+
 //  ActivityThread才是描述客户端进程的类。也就是说当新创建一个应用进程时，
 //  系统就会为我们新构造一个ActivityThread对象
     public static Object getActivityThread(Context context, Class<?> activityThread) {
@@ -660,6 +683,16 @@ public class ReflectAccelerator {
         }
     }
 
+    private static Method getDeclaredMethod(Class cls, String methodName, Class[] types) {
+        try {
+            Method method = cls.getDeclaredMethod(methodName, types);
+            method.setAccessible(true);
+            return method;
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
     //利用反射，获取类cls中申明的字段
     private static Field getDeclaredField(Class cls, String fieldName) {
         try {
@@ -681,6 +714,92 @@ public class ReflectAccelerator {
         }
     }
 
+    private static void ensureStringBlocks(AssetManager assets) throws Exception {
+        if (sAssetManager_ensureStringBlocks_method == null) {
+            sAssetManager_ensureStringBlocks_method = getDeclaredMethod(AssetManager.class,
+                    "ensureStringBlocks", new Class[0]);
+        }
+        sAssetManager_ensureStringBlocks_method.invoke(assets);
+    }
+
+    private static Collection<WeakReference<Resources>> getActiveResourceReferences(
+            Application app) throws Exception {
+        if (Build.VERSION.SDK_INT >= 19) {
+            if (sResourcesManager_getInstance_method == null) {
+                Class<?> resourcesManagerClass = Class.forName("android.app.ResourcesManager");
+                sResourcesManager_mActiveResources_field = getDeclaredField(
+                        resourcesManagerClass, "mActiveResources");
+                if (sResourcesManager_mActiveResources_field == null) {
+                    sResourcesManager_mResourceReferences_field = getDeclaredField(
+                            resourcesManagerClass, "mResourceReferences");
+                }
+                sResourcesManager_getInstance_method = getDeclaredMethod(
+                        resourcesManagerClass, "getInstance", new Class[0]);
+            }
+            Object resourcesManager = sResourcesManager_getInstance_method.invoke(null);
+            if (sResourcesManager_mActiveResources_field != null) {
+                ArrayMap<?, WeakReference<Resources>> arrayMap = (ArrayMap)
+                        sResourcesManager_mActiveResources_field.get(resourcesManager);
+                return arrayMap.values();
+            }
+            return (Collection) sResourcesManager_mResourceReferences_field.get(resourcesManager);
+        } else {
+            if (sActivityThread_mActiveResources_field == null) {
+                Class<?> activityThread = Class.forName("android.app.ActivityThread");
+                sActivityThread_mActiveResources_field = getDeclaredField(
+                        activityThread, "mActiveResources");
+            }
+            Object thread = getActivityThread(app,
+                    sActivityThread_mActiveResources_field.getDeclaringClass());
+            HashMap<?, WeakReference<Resources>> map = (HashMap)
+                    sActivityThread_mActiveResources_field.get(thread);
+            return map.values();
+        }
+    }
+
+    private static void setAssets(Resources resources, AssetManager assets) throws Exception {
+        if (sResources_mAssets_field == null && sResources_mResourcesImpl_field == null) {
+            sResources_mAssets_field = getDeclaredField(Resources.class, "mAssets");
+            if (sResources_mAssets_field == null) {
+                // Android N moves the assets to `ResourcesImpl'
+                sResources_mResourcesImpl_field = getDeclaredField(
+                        Resources.class, "mResourcesImpl");
+            }
+        }
+        if (sResources_mAssets_field != null) {
+            sResources_mAssets_field.set(resources, assets);
+            return;
+        }
+
+        Object resourcesImpl = sResources_mResourcesImpl_field.get(resources);
+        if (sResourcesImpl_mAssets_field == null) {
+            sResourcesImpl_mAssets_field = getDeclaredField(resourcesImpl.getClass(), "mAssets");
+        }
+        sResourcesImpl_mAssets_field.set(resourcesImpl, assets);
+    }
+
+    private static void clearTypedArrayPool(Resources resources) throws Exception {
+        // android.util.Pools$SynchronizedPool<TypedArray>
+        if (sResources_mTypedArrayPool_field == null) {
+            sResources_mTypedArrayPool_field = getDeclaredField(
+                    Resources.class, "mTypedArrayPool");
+        }
+        Object typedArrayPool = sResources_mTypedArrayPool_field.get(resources);
+        if (sTypedArrayPool_acquire_method == null) {
+            sTypedArrayPool_acquire_method = getMethod(typedArrayPool.getClass(),
+                    "acquire", new Class[0]);
+        }
+        // Clear all the pools
+        while (sTypedArrayPool_acquire_method.invoke(typedArrayPool) != null) ;
+    }
+
+    private static boolean containsInstance(List<?> list, Object obj) {
+        for (Object o : list) {
+            if (o == obj) return true;
+        }
+        return false;
+    }
+
     private static <T> T getValue(Field field, Object target) {
         try {
             return (T) field.get(target);
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2015-present wequick.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package net.wequick.small.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * A read-only zip archive which parses the central directory only once into a compact index.
+ *
+ * <p>The entries are addressed by index. All the reads are positional on one
+ * <tt>FileChannel</tt>, so that an archive can be shared by several threads:
+ * <ul>
+ *     <li>STORED entries can be memory-mapped or transferred to another channel directly</li>
+ *     <li>DEFLATED entries are inflated while streaming</li>
+ * </ul>
+ *
+ * Zip64 archives are not supported.
+ *
+ * <p>An archive shared by several owners is reference counted, each one who {@link #retain}s
+ * it should {@link #close} it once. The file is closed by the last one.
+ */
+public final class ZipArchive implements Closeable {
+
+    private static final int LOCSIG = 0x04034b50;
+    private static final int CENSIG = 0x02014b50;
+    private static final int ENDSIG = 0x06054b50;
+    private static final int LOCHDR = 30;
+    private static final int CENHDR = 46;
+    private static final int ENDHDR = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    private final String mPath;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+
+    private final int mSize;
+    private final String[] mNames;
+    private final short[] mMethods;
+    private final int[] mCrcs;
+    private final long[] mCompressedSizes;
+    private final long[] mSizes;
+    private final long[] mOffsets; // the local header offsets, or the data offsets if resolved
+    private final boolean[] mResolved;
+    private final HashMap<String, Integer> mIndexes;
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+
+    public ZipArchive(File file) throws IOException {
+        mPath = file.getPath();
+        mFile = new RandomAccessFile(file, "r");
+        mChannel = mFile.getChannel();
+        try {
+            ByteBuffer cd = readCentralDirectory();
+            int N = mSize = cd.getInt(); // put by `readCentralDirectory'
+            mNames = new String[N];
+            mMethods = new short[N];
+            mCrcs = new int[N];
+            mCompressedSizes = new long[N];
+            mSizes = new long[N];
+            mOffsets = new long[N];
+            mResolved = new boolean[N];
+            mIndexes = new HashMap<String, Integer>(N * 4 / 3 + 1);
+            readEntries(cd);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    /** The count of entries */
+    public int size() {
+        return mSize;
+    }
+
+    /** @return the index of the entry with <tt>name</tt>, or -1 if not found */
+    public int indexOf(String name) {
+        Integer index = mIndexes.get(name);
+        return (index == null) ? -1 : index;
+    }
+
+    public String getName(int index) {
+        return mNames[index];
+    }
+
+    public boolean isDirectory(int index) {
+        return mNames[index].endsWith("/");
+    }
+
+    /** ZipEntry.STORED or ZipEntry.DEFLATED */
+    public int getMethod(int index) {
+        return mMethods[index];
+    }
+
+    public long getCrc(int index) {
+        return mCrcs[index] & 0xFFFFFFFFL;
+    }
+
+    public long getSize(int index) {
+        return mSizes[index];
+    }
+
+    public long getCompressedSize(int index) {
+        return mCompressedSizes[index];
+    }
+
+    /** Open a stream to read the uncompressed data of the entry */
+    public InputStream getInputStream(int index) throws IOException {
+        long offset = getDataOffset(index);
+        InputStream is = new ChannelInputStream(mChannel, offset, mCompressedSizes[index]);
+        if (mMethods[index] == ZipEntry.STORED) {
+            return is;
+        }
+        if (mMethods[index] != ZipEntry.DEFLATED) {
+            is.close();
+            throw new IOException("Unsupported compression method " + mMethods[index]
+                    + " of " + mNames[index]);
+        }
+
+        final Inflater inflater = new Inflater(true);
+        int bufferSize = (int) Math.max(512, Math.min(mCompressedSizes[index], 8192));
+        return new InflaterInputStream(is, inflater, bufferSize) {
+            private boolean mClosed;
+
+            @Override
+            public int available() throws IOException {
+                return mClosed ? 0 : super.available();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (mClosed) return;
+                mClosed = true;
+                inflater.end();
+                super.close();
+            }
+        };
+    }
+
+    /** Map the data of a STORED entry into memory */
+    public MappedByteBuffer map(int index) throws IOException {
+        if (mMethods[index] != ZipEntry.STORED) {
+            throw new IOException(mNames[index] + " is compressed");
+        }
+        return mChannel.map(FileChannel.MapMode.READ_ONLY, getDataOffset(index), mSizes[index]);
+    }
+
+    /**
+     * Transfer the data of a STORED entry to the <tt>target</tt> channel.
+     *
+     * @return the bytes transferred
+     */
+    public long transferTo(int index, WritableByteChannel target) throws IOException {
+        if (mMethods[index] != ZipEntry.STORED) {
+            throw new IOException(mNames[index] + " is compressed");
+        }
+        long position = getDataOffset(index);
+        long size = mSizes[index];
+        long transferred = 0;
+        while (transferred < size) {
+            long n = mChannel.transferTo(position + transferred, size - transferred, target);
+            if (n <= 0) break;
+            transferred += n;
+        }
+        if (transferred != size) {
+            throw new EOFException("Unexpected end of " + mNames[index]
+                    + ", " + transferred + " of " + size);
+        }
+        return transferred;
+    }
+
+    /** Read all the uncompressed data of the entry */
+    public byte[] readFully(int index) throws IOException {
+        long size = mSizes[index];
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                (size > 0 && size < Integer.MAX_VALUE) ? (int) size : 8192);
+        InputStream is = getInputStream(index);
+        try {
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = is.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+        } finally {
+            is.close();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Retain the archive for another owner
+     *
+     * @return this archive
+     * @throws IOException if the archive has been closed by all its owners
+     */
+    public ZipArchive retain() throws IOException {
+        while (true) {
+            int count = mRefCount.get();
+            if (count <= 0) throw new IOException("Closed " + mPath);
+            if (mRefCount.compareAndSet(count, count + 1)) return this;
+        }
+    }
+
+    /** Release the archive, the file is closed while released by all the owners */
+    @Override
+    public void close() throws IOException {
+        if (mRefCount.decrementAndGet() == 0) {
+            mFile.close();
+        }
+    }
+
+    //______________________________________________________________________________________________
+    // Private
+
+    /**
+     * Locate the end of central directory record and read the whole central directory.
+     *
+     * @return the central directory with the entry count put at the beginning
+     */
+    private ByteBuffer readCentralDirectory() throws IOException {
+        long fileSize = mChannel.size();
+        if (fileSize < ENDHDR) {
+            throw new IOException("Not a zip archive: " + mPath);
+        }
+
+        // Scan the end of central directory record backward, skipping the comment
+        int scanSize = (int) Math.min(fileSize, ENDHDR + MAX_COMMENT_SIZE);
+        ByteBuffer tail = ByteBuffer.allocate(scanSize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(tail, fileSize - scanSize);
+        int end = -1;
+        for (int i = scanSize - ENDHDR; i >= 0; i--) {
+            if (tail.getInt(i) == ENDSIG) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new IOException("Not a zip archive: " + mPath);
+        }
+
+        int count = tail.getShort(end + 10) & 0xFFFF;
+        long cdSize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long cdOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || cdOffset == 0xFFFFFFFFL || cdOffset + cdSize > fileSize) {
+            throw new IOException("Unsupported zip archive: " + mPath);
+        }
+
+        ByteBuffer cd = ByteBuffer.allocate((int) cdSize + 4).order(ByteOrder.LITTLE_ENDIAN);
+        cd.position(4);
+        readFully(cd, cdOffset);
+        cd.putInt(0, count);
+        cd.position(0);
+        return cd;
+    }
+
+    private void readEntries(ByteBuffer cd) throws IOException {
+        int pos = 4;
+        byte[] nameBytes = new byte[256];
+        for (int i = 0; i < mSize; i++) {
+            if (pos + CENHDR > cd.limit() || cd.getInt(pos) != CENSIG) {
+                throw new IOException("Bad central directory of " + mPath);
+            }
+            mMethods[i] = cd.getShort(pos + 10);
+            mCrcs[i] = cd.getInt(pos + 16);
+            mCompressedSizes[i] = cd.getInt(pos + 20) & 0xFFFFFFFFL;
+            mSizes[i] = cd.getInt(pos + 24) & 0xFFFFFFFFL;
+            int nameLength = cd.getShort(pos + 28) & 0xFFFF;
+            int extraLength = cd.getShort(pos + 30) & 0xFFFF;
+            int commentLength = cd.getShort(pos + 32) & 0xFFFF;
+            mOffsets[i] = cd.getInt(pos + 42) & 0xFFFFFFFFL;
+
+            if (nameLength > nameBytes.length) {
+                nameBytes = new byte[nameLength];
+            }
+            cd.position(pos + CENHDR);
+            cd.get(nameBytes, 0, nameLength);
+            // Decode as UTF-8 whatever the language encoding flag is, the same as java.util.zip
+            mNames[i] = new String(nameBytes, 0, nameLength, "UTF-8");
+            mIndexes.put(mNames[i], i);
+
+            pos += CENHDR + nameLength + extraLength + commentLength;
+        }
+    }
+
+    /** Resolve the data offset by the local header, which may have a different extra field */
+    private long getDataOffset(int index) throws IOException {
+        synchronized (mResolved) {
+            if (mResolved[index]) return mOffsets[index];
+        }
+
+        long headerOffset = mOffsets[index];
+        ByteBuffer header = ByteBuffer.allocate(LOCHDR).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(header, headerOffset);
+        if (header.getInt(0) != LOCSIG) {
+            throw new IOException("Bad local header of " + mNames[index] + " in " + mPath);
+        }
+        int nameLength = header.getShort(26) & 0xFFFF;
+        int extraLength = header.getShort(28) & 0xFFFF;
+        long dataOffset = headerOffset + LOCHDR + nameLength + extraLength;
+
+        synchronized (mResolved) {
+            mOffsets[index] = dataOffset;
+            mResolved[index] = true;
+        }
+        return dataOffset;
+    }
+
+    private void readFully(ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = mChannel.read(dst, position);
+            if (n < 0) throw new EOFException("Unexpected end of " + mPath);
+            position += n;
+        }
+    }
+
+    /** A stream reads a range of the channel by positional reads */
+    private static final class ChannelInputStream extends InputStream {
+
+        private final FileChannel mChannel;
+        private long mPosition;
+        private long mRemaining;
+        private ByteBuffer mSingleByte;
+
+        ChannelInputStream(FileChannel channel, long position, long length) {
+            mChannel = channel;
+            mPosition = position;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mSingleByte == null) {
+                mSingleByte = ByteBuffer.allocate(1);
+            }
+            mSingleByte.clear();
+            int n = read(mSingleByte);
+            return (n <= 0) ? -1 : (mSingleByte.get(0) & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            return read(ByteBuffer.wrap(b, off, len));
+        }
+
+        private int read(ByteBuffer dst) throws IOException {
+            if (mRemaining <= 0) return -1;
+            if (dst.remaining() > mRemaining) {
+                dst.limit(dst.position() + (int) mRemaining);
+            }
+            int n = mChannel.read(dst, mPosition);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of entry");
+            }
+            mPosition += n;
+            mRemaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, mRemaining));
+            mPosition += skipped;
+            mRemaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(mRemaining, Integer.MAX_VALUE);
+        }
+    }
+}
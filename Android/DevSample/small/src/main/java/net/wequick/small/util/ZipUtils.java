@@ -0,0 +1,240 @@
+/*
+ * Copyright 2015-present wequick.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package net.wequick.small.util;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * This class consists exclusively of static methods that extract zip entries.
+ *
+ * <p>Each entry is written to a temporary file which is synced and renamed to the target
+ * file at last, so that the target file is either the old one or the complete new one.
+ *
+ * <p>The STORED entries are copied by channel transfer, the DEFLATED entries are inflated
+ * with pooled buffers. The extraction counters are exposed for monitoring.
+ */
+public final class ZipUtils {
+
+    private static final String TAG = "ZipUtils";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = Runtime.getRuntime().availableProcessors();
+
+    private static final ConcurrentLinkedQueue<byte[]> sBufferPool =
+            new ConcurrentLinkedQueue<byte[]>();
+    private static final AtomicInteger sPooledBufferCount = new AtomicInteger();
+
+    private static final AtomicLong sExtractedBytes = new AtomicLong();
+    private static final AtomicLong sExtractedEntries = new AtomicLong();
+    private static final AtomicLong sFailedEntries = new AtomicLong();
+    private static final AtomicLong sExtractNanos = new AtomicLong();
+
+    private ZipUtils() { /** cannot be instantiated */ }
+
+    /** The suggested count of threads to extract entries in parallel */
+    public static int getParallelism() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Extract the <tt>entry</tt> of <tt>zipFile</tt> to <tt>file</tt>.
+     *
+     * @return <tt>true</tt> if successfully extracted
+     */
+    public static boolean extractEntry(ZipFile zipFile, ZipEntry entry, File file) {
+        long start = System.nanoTime();
+        File dir = file.getParentFile();
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+
+        File tempFile = FileUtils.getTempFile(file);
+        InputStream is = null;
+        FileOutputStream out = null;
+        long size;
+        try {
+            is = zipFile.getInputStream(entry);
+            out = new FileOutputStream(tempFile);
+            if (entry.getMethod() == ZipEntry.STORED && entry.getSize() >= 0) {
+                size = transfer(is, out.getChannel(), entry.getSize());
+            } else {
+                size = copy(is, out);
+            }
+            if (!FileUtils.commitTempFile(out, tempFile, file)) {
+                throw new IOException("Failed to rename " + tempFile + " to " + file);
+            }
+            out = null;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to extract " + entry.getName() + " to " + file, e);
+            sFailedEntries.incrementAndGet();
+            tempFile.delete();
+            return false;
+        } finally {
+            closeQuietly(is);
+            closeQuietly(out);
+        }
+
+        sExtractedBytes.addAndGet(size);
+        sExtractedEntries.incrementAndGet();
+        sExtractNanos.addAndGet(System.nanoTime() - start);
+        return true;
+    }
+
+    /**
+     * Extract the entry at <tt>index</tt> of <tt>archive</tt> to <tt>file</tt>.
+     *
+     * @return <tt>true</tt> if successfully extracted
+     */
+    public static boolean extractEntry(ZipArchive archive, int index, File file) {
+        long start = System.nanoTime();
+        File dir = file.getParentFile();
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+
+        File tempFile = FileUtils.getTempFile(file);
+        InputStream is = null;
+        FileOutputStream out = null;
+        long size;
+        try {
+            out = new FileOutputStream(tempFile);
+            if (archive.getMethod(index) == ZipEntry.STORED) {
+                size = archive.transferTo(index, out.getChannel());
+            } else {
+                is = archive.getInputStream(index);
+                size = copy(is, out);
+            }
+            if (!FileUtils.commitTempFile(out, tempFile, file)) {
+                throw new IOException("Failed to rename " + tempFile + " to " + file);
+            }
+            out = null;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to extract " + archive.getName(index) + " to " + file, e);
+            sFailedEntries.incrementAndGet();
+            tempFile.delete();
+            return false;
+        } finally {
+            closeQuietly(is);
+            closeQuietly(out);
+        }
+
+        sExtractedBytes.addAndGet(size);
+        sExtractedEntries.incrementAndGet();
+        sExtractNanos.addAndGet(System.nanoTime() - start);
+        return true;
+    }
+
+    /** Total bytes written by all the extractions */
+    public static long getExtractedBytes() {
+        return sExtractedBytes.get();
+    }
+
+    /** Count of the successfully extracted entries */
+    public static long getExtractedEntryCount() {
+        return sExtractedEntries.get();
+    }
+
+    /** Count of the entries failed to extract */
+    public static long getFailedEntryCount() {
+        return sFailedEntries.get();
+    }
+
+    /** Time spent on extraction, accumulated over all the extracting threads */
+    public static long getExtractTimeMillis() {
+        return sExtractNanos.get() / 1000000;
+    }
+
+    /** Average bytes extracted per second by each extracting thread */
+    public static long getThroughput() {
+        long nanos = sExtractNanos.get();
+        if (nanos == 0) return 0;
+        return sExtractedBytes.get() * 1000000000 / nanos;
+    }
+
+    /** Obtain a buffer from the pool, should be recycled by {@link #recycleBuffer} */
+    public static byte[] obtainBuffer() {
+        byte[] buffer = sBufferPool.poll();
+        if (buffer == null) {
+            return new byte[BUFFER_SIZE];
+        }
+        sPooledBufferCount.decrementAndGet();
+        return buffer;
+    }
+
+    public static void recycleBuffer(byte[] buffer) {
+        if (buffer == null || buffer.length != BUFFER_SIZE) return;
+        if (sPooledBufferCount.incrementAndGet() > MAX_POOLED_BUFFERS) {
+            sPooledBufferCount.decrementAndGet();
+            return;
+        }
+        sBufferPool.offer(buffer);
+    }
+
+    //______________________________________________________________________________________________
+    // Private
+
+    private static long transfer(InputStream is, FileChannel out, long size) throws IOException {
+        ReadableByteChannel in = Channels.newChannel(is);
+        long position = 0;
+        while (position < size) {
+            long n = out.transferFrom(in, position, size - position);
+            if (n <= 0) break;
+            position += n;
+        }
+        if (position != size) {
+            throw new IOException("Unexpected end of entry, " + position + " of " + size);
+        }
+        return size;
+    }
+
+    private static long copy(InputStream is, FileOutputStream out) throws IOException {
+        byte[] buffer = obtainBuffer();
+        long size = 0;
+        try {
+            int len;
+            while ((len = is.read(buffer, 0, buffer.length)) != -1) {
+                out.write(buffer, 0, len);
+                size += len;
+            }
+        } finally {
+            recycleBuffer(buffer);
+        }
+        return size;
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
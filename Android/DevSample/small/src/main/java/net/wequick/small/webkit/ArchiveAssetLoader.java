@@ -0,0 +1,445 @@
+/*
+ * Copyright 2015-present wequick.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package net.wequick.small.webkit;
+
+import android.net.Uri;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+import android.webkit.WebResourceResponse;
+
+import net.wequick.small.util.ZipArchive;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+
+/**
+ * This class serves the files of web bundles straight from the bundle archives, so that
+ * the bundles need not be extracted.
+ *
+ * <p>Each bundle is served at the origin <tt>http://[$pkg].small/</tt>, the requests to it
+ * are intercepted by {@link WebView} and answered with the entries of the archive:
+ * <ul>
+ *     <li>a STORED entry is read from a memory-mapped buffer</li>
+ *     <li>a DEFLATED entry is inflated while the WebView reads it</li>
+ *     <li>the small scripts and styles are cached in memory as they are requested repeatedly</li>
+ *     <li>the html pages get the Small bridge script at the head, so that the page can call
+ *     <tt>Small.invoke</tt> while loading</li>
+ * </ul>
+ *
+ * <p>The html pages extracted to the disk are intercepted as well to get the bridge script,
+ * the other extracted files are left to the WebView.
+ */
+public final class ArchiveAssetLoader {
+
+    private static final String TAG = "ArchiveAssetLoader";
+
+    private static final String SCHEME = "http";
+    private static final String HOST_SUFFIX = ".small";
+    private static final String INDEX_FILE_NAME = "index.html";
+
+    private static final int CACHE_SIZE = 2 * 1024 * 1024;
+    private static final int MAX_CACHE_ENTRY_SIZE = 128 * 1024;
+
+    /** The start tag of the injected script, marked to be injected only once */
+    private static final String BRIDGE_SCRIPT_START = "<script data-small-bridge>";
+    private static byte[] sBridgeScriptTag;
+
+    /** The canonical path of the extracted bundles, ended with the separator */
+    private static volatile String sExtractPath;
+
+    private static final ConcurrentHashMap<String, ZipArchive> sArchives =
+            new ConcurrentHashMap<String, ZipArchive>();
+    private static final LruCache<String, byte[]> sCache = new LruCache<String, byte[]>(CACHE_SIZE) {
+        @Override
+        protected int sizeOf(String key, byte[] value) {
+            return value.length;
+        }
+    };
+
+    private ArchiveAssetLoader() { }
+
+    /**
+     * Get the url to load <tt>path</tt> of the bundle, e.g. http://com.example.web.home.small/index.html
+     */
+    public static String getUrl(String packageName, String path) {
+        return SCHEME + "://" + packageName.toLowerCase() + HOST_SUFFIX + "/" + path;
+    }
+
+    /**
+     * Serve the files of bundle <tt>packageName</tt> from the <tt>archive</tt>, which is
+     * retained by this loader so that its owner can close it as usual
+     *
+     * @hide Only for Small API
+     */
+    public static boolean register(String packageName, ZipArchive archive) {
+        String host = packageName.toLowerCase() + HOST_SUFFIX;
+        ZipArchive registered = sArchives.get(host);
+        if (registered != null && registered.getPath().equals(archive.getPath())) {
+            return true;
+        }
+
+        try {
+            archive.retain();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to retain " + archive.getPath(), e);
+            return false;
+        }
+        registered = sArchives.put(host, archive);
+        if (registered != null) {
+            sCache.evictAll();
+            // The responses being read by the WebView have retained the archive themselves
+            closeQuietly(registered);
+        }
+        return true;
+    }
+
+    /**
+     * Inject the bridge script into the html pages extracted under <tt>basePath</tt>, which are
+     * loaded by <tt>file://</tt> urls while not in the archive mode
+     *
+     * @hide Only for Small API
+     */
+    public static void registerExtractPath(File basePath) {
+        try {
+            sExtractPath = basePath.getCanonicalPath() + File.separator;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to resolve " + basePath, e);
+        }
+    }
+
+    /** Check if the <tt>url</tt> is served by this loader */
+    static boolean isBundleUrl(String url) {
+        if (sArchives.isEmpty() || url == null) return false;
+
+        Uri uri = Uri.parse(url);
+        String host = uri.getHost();
+        return SCHEME.equals(uri.getScheme()) && host != null && sArchives.containsKey(host);
+    }
+
+    /**
+     * Load the file requested by <tt>url</tt>
+     *
+     * @return the response, or <tt>null</tt> if the url is not a registered bundle origin
+     */
+    static WebResourceResponse load(String url) {
+        if (url == null) return null;
+
+        Uri uri = Uri.parse(url);
+        if ("file".equals(uri.getScheme())) {
+            return loadExtractedPage(uri.getPath());
+        }
+
+        if (sArchives.isEmpty()) return null;
+        String host = uri.getHost();
+        if (host == null || !host.endsWith(HOST_SUFFIX)) return null;
+        if (!SCHEME.equals(uri.getScheme())) return null;
+
+        ZipArchive archive = obtainArchive(host);
+        if (archive == null) return null;
+
+        try {
+            return load(archive, host, uri.getPath());
+        } finally {
+            closeQuietly(archive);
+        }
+    }
+
+    //______________________________________________________________________________________________
+    // Private
+
+    /** Get the archive registered for <tt>host</tt> and retain it */
+    private static ZipArchive obtainArchive(String host) {
+        while (true) {
+            ZipArchive archive = sArchives.get(host);
+            if (archive == null) return null;
+
+            try {
+                return archive.retain();
+            } catch (IOException e) {
+                // Replaced and closed just now, take the new one
+                if (sArchives.get(host) == archive) return null;
+            }
+        }
+    }
+
+    private static void closeQuietly(ZipArchive archive) {
+        try {
+            archive.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static WebResourceResponse load(ZipArchive archive, String host, String path) {
+        if (path == null || path.length() == 0 || path.equals("/")) {
+            path = INDEX_FILE_NAME;
+        } else {
+            if (path.charAt(0) == '/') path = path.substring(1);
+            if (path.endsWith("/")) path += INDEX_FILE_NAME;
+        }
+
+        int index = archive.indexOf(path);
+        if (index < 0) {
+            Log.w(TAG, "Missing " + path + " in " + archive.getPath());
+            return null;
+        }
+
+        String mimeType = getMimeType(path);
+        String encoding = isText(mimeType) ? "UTF-8" : null;
+        try {
+            return new WebResourceResponse(mimeType, encoding,
+                    openEntry(archive, index, host + "/" + path, mimeType));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + path + " in " + archive.getPath(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Load the extracted html page at <tt>path</tt> with the bridge script, as the archive does,
+     * leaving the other files to the WebView
+     */
+    private static WebResourceResponse loadExtractedPage(String path) {
+        String root = sExtractPath;
+        if (root == null || path == null || !getMimeType(path).equals("text/html")) return null;
+
+        File file = new File(path);
+        byte[] html;
+        try {
+            if (!file.getCanonicalPath().startsWith(root) || !file.isFile()) return null;
+            html = readFully(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + path, e);
+            return null;
+        }
+        return new WebResourceResponse("text/html", "UTF-8",
+                new ByteArrayInputStream(injectBridgeScript(html)));
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < data.length) {
+                int n = in.read(data, offset, data.length - offset);
+                if (n < 0) throw new EOFException("Unexpected end of " + file);
+                offset += n;
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static InputStream openEntry(ZipArchive archive, int index, String key,
+                                         String mimeType) throws IOException {
+        byte[] data = sCache.get(key);
+        if (data != null) {
+            return new ByteArrayInputStream(data);
+        }
+
+        if (mimeType.equals("text/html")) {
+            return new ByteArrayInputStream(injectBridgeScript(archive.readFully(index)));
+        }
+
+        long size = archive.getSize(index);
+        boolean cacheable = size <= MAX_CACHE_ENTRY_SIZE
+                && (mimeType.equals("application/javascript") || mimeType.equals("text/css"));
+        if (cacheable) {
+            data = archive.readFully(index);
+            sCache.put(key, data);
+            return new ByteArrayInputStream(data);
+        }
+
+        if (archive.getMethod(index) == ZipEntry.STORED) {
+            // The mapping keeps valid after the archive is closed
+            return new ByteBufferInputStream(archive.map(index));
+        }
+
+        // Keep the archive open until the WebView finishes reading
+        final ZipArchive owner = archive.retain();
+        InputStream in;
+        try {
+            in = archive.getInputStream(index);
+        } catch (IOException e) {
+            closeQuietly(owner);
+            throw e;
+        }
+        return new FilterInputStream(in) {
+            private boolean mClosed;
+
+            @Override
+            public void close() throws IOException {
+                if (mClosed) return;
+                mClosed = true;
+                try {
+                    super.close();
+                } finally {
+                    closeQuietly(owner);
+                }
+            }
+        };
+    }
+
+    /**
+     * Insert the bridge script right after the &lt;head&gt; tag, or the &lt;html&gt; tag if
+     * there is no head, or the doctype if neither. Never before the doctype, which turns the
+     * page into quirks mode. Skipped if the page has already got one.
+     */
+    private static byte[] injectBridgeScript(byte[] html) {
+        byte[] tag = getBridgeScriptTag();
+        if (indexOfIgnoreCase(html, BRIDGE_SCRIPT_START, 0) >= 0) return html;
+
+        int offset = endOfTag(html, "<head");
+        if (offset < 0) offset = endOfTag(html, "<html");
+        if (offset < 0) offset = endOfTag(html, "<!doctype");
+        if (offset < 0) {
+            // Keep the byte order mark at the beginning
+            boolean bom = html.length >= 3 && (html[0] & 0xff) == 0xef
+                    && (html[1] & 0xff) == 0xbb && (html[2] & 0xff) == 0xbf;
+            offset = bom ? 3 : 0;
+        }
+
+        byte[] result = new byte[html.length + tag.length];
+        System.arraycopy(html, 0, result, 0, offset);
+        System.arraycopy(tag, 0, result, offset, tag.length);
+        System.arraycopy(html, offset, result, offset + tag.length, html.length - offset);
+        return result;
+    }
+
+    private static synchronized byte[] getBridgeScriptTag() {
+        if (sBridgeScriptTag == null) {
+            String tag = BRIDGE_SCRIPT_START + WebView.SMALL_INJECT_JS + "</script>";
+            try {
+                sBridgeScriptTag = tag.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+        return sBridgeScriptTag;
+    }
+
+    /** Find the start tag <tt>tagPrefix</tt> and return the offset after its '&gt;' */
+    private static int endOfTag(byte[] html, String tagPrefix) {
+        int from = 0;
+        while (true) {
+            int start = indexOfIgnoreCase(html, tagPrefix, from);
+            if (start < 0) return -1;
+
+            int next = start + tagPrefix.length();
+            if (next < html.length) {
+                int c = html[next];
+                // Not <header> or so on
+                if (c == '>' || c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '/') {
+                    for (int i = next; i < html.length; i++) {
+                        if (html[i] == '>') return i + 1;
+                    }
+                    return -1;
+                }
+            }
+            from = next;
+        }
+    }
+
+    /** Find the ascii <tt>s</tt> in <tt>data</tt> */
+    private static int indexOfIgnoreCase(byte[] data, String s, int from) {
+        int n = s.length();
+        for (int i = from, end = data.length - n; i <= end; i++) {
+            int j = 0;
+            for (; j < n; j++) {
+                int c = data[i + j];
+                if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+                if (c != s.charAt(j)) break;
+            }
+            if (j == n) return i;
+        }
+        return -1;
+    }
+
+    private static String getMimeType(String path) {
+        String ext = MimeTypeMap.getFileExtensionFromUrl(path);
+        if (ext == null || ext.length() == 0) {
+            int dot = path.lastIndexOf('.');
+            ext = (dot < 0) ? "" : path.substring(dot + 1);
+        }
+        ext = ext.toLowerCase();
+
+        // The types missing in the MimeTypeMap of some platforms
+        if (ext.equals("js")) return "application/javascript";
+        if (ext.equals("css")) return "text/css";
+        if (ext.equals("html") || ext.equals("htm")) return "text/html";
+        if (ext.equals("json")) return "application/json";
+        if (ext.equals("svg")) return "image/svg+xml";
+        if (ext.equals("woff")) return "application/font-woff";
+
+        String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(ext);
+        return (mimeType != null) ? mimeType : "application/octet-stream";
+    }
+
+    private static boolean isText(String mimeType) {
+        return mimeType.startsWith("text/")
+                || mimeType.equals("application/javascript")
+                || mimeType.equals("application/json")
+                || mimeType.equals("image/svg+xml");
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? (mBuffer.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!mBuffer.hasRemaining()) return -1;
+
+            len = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+}
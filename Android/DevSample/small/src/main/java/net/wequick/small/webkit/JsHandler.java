@@ -24,7 +24,24 @@ import java.util.Map;
  * This class do the native stuff for the registered Javascript method.
  *
  * @see net.wequick.small.Small#registerJsHandler(String, JsHandler)
+ * @see net.wequick.small.Small#registerJsHandler(String, JsHandler, int, int)
  */
 public interface JsHandler {
+    /**
+     * Run the handler on the javascript bridge thread, one call at a time for all handlers.
+     * The calls from a page prerendered by {@link WebViewPool} are deferred till the page is
+     * shown, and run on the main thread then.
+     */
+    int THREAD_BRIDGE = 0;
+    /** Run the handler on the main thread */
+    int THREAD_UI = 1;
+    /** Run the handler on the shared background thread pool */
+    int THREAD_BACKGROUND = 2;
+    /** Run the handler on its own thread, one call at a time */
+    int THREAD_SERIAL = 3;
+
+    /**
+     * @param context the activity showing the page
+     */
     void handle(Context context, Map<String, Object> parameters, JsResult result);
 }
\ No newline at end of file
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2015-present wequick.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package net.wequick.small.webkit;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs the registered {@link JsHandler}s on the thread each one asked for.
+ *
+ * <p>The calls of a handler are limited by its max concurrency, the extra calls wait in
+ * its own queue so that a slow handler won't hold the threads of the others. The calls whose
+ * {@link JsResult} has been cancelled while waiting are dropped. A call which misses a required
+ * parameter or throws is finished with an empty result, so that its javascript callback is
+ * always released.
+ */
+final class JsHandlerDispatcher {
+
+    private static final String TAG = "JsHandlerDispatcher";
+    private static final int BACKGROUND_POOL_SIZE = 4;
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    private static final ConcurrentHashMap<String, Registration> sRegistrations =
+            new ConcurrentHashMap<String, Registration>();
+    private static Executor sMainExecutor;
+    private static ThreadPoolExecutor sBackgroundExecutor;
+
+    private static final class Registration {
+        final JsHandler handler;
+        final Executor executor;
+        final ThreadPoolExecutor ownExecutor; // created for this handler only, or null
+        final JsHandlerMetrics metrics = new JsHandlerMetrics();
+
+        Registration(JsHandler handler, Executor executor, ThreadPoolExecutor ownExecutor) {
+            this.handler = handler;
+            this.executor = executor;
+            this.ownExecutor = ownExecutor;
+        }
+    }
+
+    private JsHandlerDispatcher() { }
+
+    /**
+     * Register <tt>handler</tt> for the javascript <tt>method</tt>
+     *
+     * @param threadMode one of the THREAD_* constants of {@link JsHandler}
+     * @param maxConcurrency the max count of the calls running at the same time, 0 for no limit.
+     *                       Ignored by {@link JsHandler#THREAD_BRIDGE} and
+     *                       {@link JsHandler#THREAD_SERIAL}.
+     */
+    static void register(String method, JsHandler handler, int threadMode, int maxConcurrency) {
+        Executor executor;
+        ThreadPoolExecutor ownExecutor = null;
+        switch (threadMode) {
+            case JsHandler.THREAD_UI:
+                executor = getMainExecutor();
+                break;
+            case JsHandler.THREAD_BACKGROUND:
+                executor = getBackgroundExecutor();
+                break;
+            case JsHandler.THREAD_SERIAL:
+                executor = ownExecutor = newThreadPool(1, "small-js-" + method);
+                maxConcurrency = 0;
+                break;
+            default:
+                executor = null; // run inline
+                maxConcurrency = 0;
+                break;
+        }
+        if (maxConcurrency > 0) {
+            executor = new LimitedExecutor(executor, maxConcurrency);
+        }
+
+        Registration old = sRegistrations.put(method,
+                new Registration(handler, executor, ownExecutor));
+        if (old != null && old.ownExecutor != null) {
+            // Let the queued calls finish, the shared executors are kept
+            old.ownExecutor.shutdown();
+        }
+    }
+
+    static JsHandlerMetrics getMetrics(String method) {
+        Registration registration = sRegistrations.get(method);
+        return (registration == null) ? null : registration.metrics;
+    }
+
+    /**
+     * Run the handler registered for <tt>method</tt>
+     *
+     * @return <tt>false</tt> if no handler registered
+     */
+    static boolean dispatch(final String method, final Context context,
+                            final JsParameters parameters, final JsResult result) {
+        final Registration registration = sRegistrations.get(method);
+        if (registration == null) return false;
+
+        result.setMetrics(registration.metrics);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                if (result.isCancelled()) return;
+
+                try {
+                    JsHandler handler = registration.handler;
+                    if (handler instanceof TypedJsHandler) {
+                        TypedJsHandler typedHandler = (TypedJsHandler) handler;
+                        String missing = typedHandler.getMissingParameter(parameters);
+                        if (missing != null) {
+                            Log.w(TAG, "Missing parameter '" + missing + "' for " + method);
+                            result.fail();
+                            return;
+                        }
+                        typedHandler.handle(context, parameters, result);
+                    } else {
+                        handler.handle(context, parameters.toMap(), result);
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to handle " + method, e);
+                    result.fail();
+                }
+            }
+        };
+        if (registration.executor == null) {
+            task.run();
+        } else {
+            try {
+                registration.executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // Re-registered just now and the own executor was shut down
+                Log.w(TAG, "Rejected to handle " + method, e);
+                result.fail();
+            }
+        }
+        return true;
+    }
+
+    //______________________________________________________________________________________________
+    // Private
+
+    private static synchronized Executor getMainExecutor() {
+        if (sMainExecutor == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            sMainExecutor = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            };
+        }
+        return sMainExecutor;
+    }
+
+    private static synchronized Executor getBackgroundExecutor() {
+        if (sBackgroundExecutor == null) {
+            sBackgroundExecutor = newThreadPool(BACKGROUND_POOL_SIZE, "small-js");
+        }
+        return sBackgroundExecutor;
+    }
+
+    private static ThreadPoolExecutor newThreadPool(int size, final String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(size, size,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, name + "-" + mCount.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Executor to run at most <tt>limit</tt> tasks at the same time on the <tt>target</tt>
+     */
+    private static final class LimitedExecutor implements Executor {
+
+        private final Executor mTarget;
+        private final int mLimit;
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
+        private int mRunning;
+
+        LimitedExecutor(Executor target, int limit) {
+            mTarget = target;
+            mLimit = limit;
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            synchronized (this) {
+                mTasks.offer(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            command.run();
+                        } finally {
+                            synchronized (LimitedExecutor.this) {
+                                mRunning--;
+                            }
+                            scheduleNext();
+                        }
+                    }
+                });
+            }
+            scheduleNext();
+        }
+
+        private void scheduleNext() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    if (mRunning >= mLimit) return;
+                    task = mTasks.poll();
+                    if (task == null) return;
+                    mRunning++;
+                }
+                mTarget.execute(task);
+            }
+        }
+    }
+}
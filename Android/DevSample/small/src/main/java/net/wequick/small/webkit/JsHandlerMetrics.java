@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015-present wequick.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package net.wequick.small.webkit;
+
+/**
+ * The latency statistics of a registered {@link JsHandler}. The latency of a call is measured
+ * from the javascript invocation to the {@link JsResult} finished or cancelled, including the
+ * time waiting for the handler's thread. Each call is counted as one of finished, cancelled
+ * or failed.
+ *
+ * @see net.wequick.small.Small#getJsHandlerMetrics(String)
+ */
+public final class JsHandlerMetrics {
+
+    private int mCallCount;
+    private int mFinishedCount;
+    private int mCancelledCount;
+    private int mFailedCount;
+    private long mTotalTime;
+    private long mMaxTime;
+
+    JsHandlerMetrics() { }
+
+    synchronized void onCall() {
+        mCallCount++;
+    }
+
+    synchronized void onFinished(long time) {
+        mFinishedCount++;
+        mTotalTime += time;
+        if (time > mMaxTime) mMaxTime = time;
+    }
+
+    synchronized void onCancelled() {
+        mCancelledCount++;
+    }
+
+    synchronized void onFailed() {
+        mFailedCount++;
+    }
+
+    public synchronized int getCallCount() {
+        return mCallCount;
+    }
+
+    public synchronized int getFinishedCount() {
+        return mFinishedCount;
+    }
+
+    public synchronized int getCancelledCount() {
+        return mCancelledCount;
+    }
+
+    /** The count of the calls which threw an exception or missed a required parameter */
+    public synchronized int getFailedCount() {
+        return mFailedCount;
+    }
+
+    /** The average latency of the finished calls in milliseconds */
+    public synchronized long getAverageTime() {
+        return (mFinishedCount == 0) ? 0 : mTotalTime / mFinishedCount;
+    }
+
+    /** The max latency of the finished calls in milliseconds */
+    public synchronized long getMaxTime() {
+        return mMaxTime;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "calls=" + mCallCount + ", finished=" + mFinishedCount
+                + ", cancelled=" + mCancelledCount + ", failed=" + mFailedCount
+                + ", avg=" + getAverageTime() + "ms, max=" + mMaxTime + "ms";
+    }
+}
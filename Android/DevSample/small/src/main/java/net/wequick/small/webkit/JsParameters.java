@@ -0,0 +1,543 @@
+/*
+ * Copyright 2015-present wequick.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package net.wequick.small.webkit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only view of the parameters passed by <tt>Small.invoke(method, parameters, callback)</tt>.
+ *
+ * <p>The json text is not parsed into objects. It's scanned once at the first access, which
+ * only records where each top-level value starts and ends, and the value is decoded by the typed
+ * getter when asked. A nested object is returned as another view of the same text.
+ *
+ * <p>The parameters already converted to a map (see {@link #toMap}) can also be viewed by
+ * {@link #wrap}, the values are converted by the getters in the same way.
+ *
+ * @see TypedJsHandler
+ */
+public final class JsParameters {
+
+    private static final JsParameters EMPTY = new JsParameters("{}", 0, 2);
+
+    private final String mJson;
+    private final int mStart;
+    private final int mEnd;
+
+    // [keyStart, keyEnd, valueStart, valueEnd] for each entry, the key excludes the quotes
+    private int[] mSpans;
+    private int mSize = -1;
+    private boolean mMalformed;
+
+    // The wrapped map and its keys, or null if viewing the json text
+    private final Map<String, Object> mMap;
+    private final String[] mKeys;
+
+    private JsParameters(String json, int start, int end) {
+        mJson = json;
+        mStart = start;
+        mEnd = end;
+        mMap = null;
+        mKeys = null;
+    }
+
+    private JsParameters(Map<String, Object> map) {
+        mJson = null;
+        mStart = mEnd = 0;
+        mMap = map;
+        mKeys = map.keySet().toArray(new String[map.size()]);
+        mSize = mKeys.length;
+    }
+
+    /** Create a view of the json object text, <tt>null</tt> for no parameters */
+    public static JsParameters parse(String json) {
+        if (json == null) return EMPTY;
+        return new JsParameters(json, 0, json.length());
+    }
+
+    /** Create a view of the parameters converted to a map, <tt>null</tt> for no parameters */
+    static JsParameters wrap(Map<String, Object> map) {
+        if (map == null) return EMPTY;
+        return new JsParameters(map);
+    }
+
+    public int size() {
+        scan();
+        return mSize;
+    }
+
+    public boolean has(String key) {
+        if (mMap != null) return mMap.containsKey(key);
+        return indexOf(key) >= 0;
+    }
+
+    /** The name of the <tt>index</tt>th parameter */
+    public String keyAt(int index) {
+        if (mMap != null) return mKeys[index];
+
+        scan();
+        int i = index << 2;
+        return decodeString(mSpans[i], mSpans[i + 1]);
+    }
+
+    /**
+     * Get the parameter as a string. The json string is unescaped, the other values are returned
+     * as their json text.
+     *
+     * @return the string, or <tt>null</tt> if missing or null
+     */
+    public String getString(String key) {
+        if (mMap != null) return mapValueToString(mMap.get(key));
+
+        int i = indexOf(key);
+        if (i < 0) return null;
+        return valueToString(mSpans[i + 2], mSpans[i + 3]);
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = getString(key);
+        return (value != null) ? value : defaultValue;
+    }
+
+    /**
+     * Get the parameter as an int, a numeric string is also accepted
+     *
+     * @return the value, or <tt>defaultValue</tt> if missing, not a number or out of int range
+     */
+    public int getInt(String key, int defaultValue) {
+        long value = getLong(key, Long.MIN_VALUE);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) return defaultValue;
+        return (int) value;
+    }
+
+    /** Get the parameter as a long, a numeric string is also accepted */
+    public long getLong(String key, long defaultValue) {
+        String s = mJson;
+        int start, end;
+        if (mMap != null) {
+            s = mapValueToString(mMap.get(key));
+            if (s == null) return defaultValue;
+            start = 0;
+            end = s.length();
+        } else {
+            int i = indexOf(key);
+            if (i < 0) return defaultValue;
+
+            start = mSpans[i + 2];
+            end = mSpans[i + 3];
+            if (s.charAt(start) == '"') {
+                start++;
+                end--;
+            }
+        }
+        // Fast path for the plain integers
+        long value = 0;
+        boolean negative = false;
+        int p = start;
+        if (p < end && s.charAt(p) == '-') {
+            negative = true;
+            p++;
+        }
+        if (p < end && end - p <= 18) {
+            for (; p < end; p++) {
+                char c = s.charAt(p);
+                if (c < '0' || c > '9') break;
+                value = value * 10 + (c - '0');
+            }
+            if (p == end) return negative ? -value : value;
+        }
+        double d = parseDouble(s, start, end);
+        return Double.isNaN(d) ? defaultValue : (long) d;
+    }
+
+    /** Get the parameter as a double, a numeric string is also accepted */
+    public double getDouble(String key, double defaultValue) {
+        String s = unquotedValue(key);
+        if (s == null) return defaultValue;
+
+        double d = parseDouble(s, 0, s.length());
+        return Double.isNaN(d) ? defaultValue : d;
+    }
+
+    /** Get the parameter as a boolean, the string "true" and "1" are also accepted */
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String s = unquotedValue(key);
+        if (s == null) return defaultValue;
+
+        if (s.equals("true") || s.equals("1")) return true;
+        if (s.equals("false") || s.equals("0")) return false;
+        return defaultValue;
+    }
+
+    /**
+     * Get the parameter as a string array, each element is converted as {@link #getString}.
+     *
+     * @return the array, or <tt>null</tt> if missing or not an array
+     */
+    public String[] getStringArray(String key) {
+        if (mMap != null) {
+            Object value = mMap.get(key);
+            if (value instanceof String[]) return (String[]) value;
+            if (value instanceof Collection) value = ((Collection<?>) value).toArray();
+            if (value instanceof Object[]) {
+                Object[] elements = (Object[]) value;
+                String[] strings = new String[elements.length];
+                for (int i = 0; i < elements.length; i++) {
+                    strings[i] = mapValueToString(elements[i]);
+                }
+                return strings;
+            }
+            if (!(value instanceof String)) return null;
+
+            String json = (String) value;
+            return new JsParameters(json, 0, json.length()).decodeStringArray(0, json.length());
+        }
+
+        int i = indexOf(key);
+        if (i < 0) return null;
+        return decodeStringArray(mSpans[i + 2], mSpans[i + 3]);
+    }
+
+    /**
+     * Get the nested object parameter
+     *
+     * @return a view of the object, or <tt>null</tt> if missing or not an object
+     */
+    @SuppressWarnings("unchecked")
+    public JsParameters getObject(String key) {
+        if (mMap != null) {
+            Object value = mMap.get(key);
+            if (value instanceof Map) return wrap((Map<String, Object>) value);
+            if (!(value instanceof String) || !((String) value).startsWith("{")) return null;
+            return parse((String) value);
+        }
+
+        int i = indexOf(key);
+        if (i < 0) return null;
+
+        int start = mSpans[i + 2];
+        if (mJson.charAt(start) != '{') return null;
+        return new JsParameters(mJson, start, mSpans[i + 3]);
+    }
+
+    /**
+     * Convert to the map passed to {@link JsHandler}, in the same shape as converted by
+     * <tt>JSONObject</tt>: the arrays are converted to <tt>String[]</tt> and the other values
+     * to <tt>String</tt>, the numbers and objects are normalized as <tt>JSONObject</tt> does.
+     * The map is empty if the json text is malformed.
+     */
+    public HashMap<String, Object> toMap() {
+        if (mMap != null) return new HashMap<String, Object>(mMap);
+
+        scan();
+        HashMap<String, Object> map = new HashMap<String, Object>(mSize * 2);
+        if (mMalformed) return map;
+
+        try {
+            for (int i = 0, N = mSize << 2; i < N; i += 4) {
+                String key = decodeString(mSpans[i], mSpans[i + 1]);
+                int start = mSpans[i + 2];
+                int end = mSpans[i + 3];
+                char c = mJson.charAt(start);
+                Object value;
+                if (c == '"') {
+                    value = decodeString(start + 1, end - 1);
+                } else if (c == '[') {
+                    JSONArray array = new JSONArray(mJson.substring(start, end));
+                    String[] strings = new String[array.length()];
+                    for (int j = 0; j < strings.length; j++) {
+                        strings[j] = String.valueOf(array.get(j));
+                    }
+                    value = strings;
+                } else {
+                    value = String.valueOf(new JSONTokener(mJson.substring(start, end))
+                            .nextValue());
+                }
+                map.put(key, value);
+            }
+        } catch (JSONException e) {
+            map.clear();
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        if (mMap != null) return new JSONObject(mMap).toString();
+        return mJson.substring(mStart, mEnd);
+    }
+
+    //______________________________________________________________________________________________
+    // Private
+
+    /** Find the entry by key, return the offset in spans, -1 if not found */
+    private int indexOf(String key) {
+        scan();
+        int keyLength = key.length();
+        for (int i = 0, N = mSize << 2; i < N; i += 4) {
+            int start = mSpans[i];
+            int end = mSpans[i + 1];
+            if (end - start == keyLength && mJson.regionMatches(start, key, 0, keyLength)) {
+                return i;
+            }
+            if (hasEscape(start, end) && key.equals(decodeString(start, end))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Record the spans of the top-level entries, stop at the first syntax error and mark
+     * the parameters as malformed
+     */
+    private void scan() {
+        if (mSize >= 0) return;
+
+        mSize = 0;
+        mSpans = new int[16];
+        mMalformed = true;
+        int p = skipWhitespace(mStart);
+        if (p >= mEnd || mJson.charAt(p) != '{') return;
+
+        p = skipWhitespace(p + 1);
+        if (p < mEnd && mJson.charAt(p) == '}') {
+            mMalformed = false;
+            return;
+        }
+        while (p < mEnd && mJson.charAt(p) == '"') {
+            int keyStart = p + 1;
+            int keyEnd = skipString(p) - 1;
+            if (keyEnd < keyStart) return;
+
+            p = skipWhitespace(keyEnd + 1);
+            if (p >= mEnd || mJson.charAt(p) != ':') return;
+
+            int valueStart = skipWhitespace(p + 1);
+            int valueEnd = skipValue(valueStart);
+            if (valueEnd <= valueStart) return;
+
+            int i = mSize << 2;
+            if (i + 4 > mSpans.length) {
+                int[] spans = new int[mSpans.length * 2];
+                System.arraycopy(mSpans, 0, spans, 0, i);
+                mSpans = spans;
+            }
+            mSpans[i] = keyStart;
+            mSpans[i + 1] = keyEnd;
+            mSpans[i + 2] = valueStart;
+            mSpans[i + 3] = valueEnd;
+            mSize++;
+
+            p = skipWhitespace(valueEnd);
+            if (p < mEnd && mJson.charAt(p) == '}') {
+                mMalformed = false;
+                return;
+            }
+            if (p >= mEnd || mJson.charAt(p) != ',') return;
+            p = skipWhitespace(p + 1);
+        }
+    }
+
+    private int skipWhitespace(int p) {
+        while (p < mEnd) {
+            char c = mJson.charAt(p);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') break;
+            p++;
+        }
+        return p;
+    }
+
+    /** Skip the string starts at <tt>p</tt>, return the index after the closing quote */
+    private int skipString(int p) {
+        for (p++; p < mEnd; p++) {
+            char c = mJson.charAt(p);
+            if (c == '\\') {
+                p++;
+            } else if (c == '"') {
+                return p + 1;
+            }
+        }
+        return -1;
+    }
+
+    /** Skip the value starts at <tt>p</tt>, return the index after it */
+    private int skipValue(int p) {
+        if (p >= mEnd) return -1;
+
+        char c = mJson.charAt(p);
+        if (c == '"') return skipString(p);
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            while (p < mEnd) {
+                c = mJson.charAt(p);
+                if (c == '"') {
+                    p = skipString(p);
+                    if (p < 0) return -1;
+                    continue;
+                }
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                    if (depth == 0) return p + 1;
+                }
+                p++;
+            }
+            return -1;
+        }
+        // Number, true, false or null
+        while (p < mEnd) {
+            c = mJson.charAt(p);
+            if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t'
+                    || c == '\n' || c == '\r') {
+                break;
+            }
+            p++;
+        }
+        return p;
+    }
+
+    /** Get the value text without quotes, <tt>null</tt> if missing */
+    private String unquotedValue(String key) {
+        if (mMap != null) return mapValueToString(mMap.get(key));
+
+        int i = indexOf(key);
+        if (i < 0) return null;
+
+        int start = mSpans[i + 2];
+        int end = mSpans[i + 3];
+        if (mJson.charAt(start) == '"') {
+            start++;
+            end--;
+        }
+        return mJson.substring(start, end);
+    }
+
+    /** Convert the value of the wrapped map as {@link #getString} */
+    private static String mapValueToString(Object value) {
+        if (value == null || value == JSONObject.NULL) return null;
+        if (value instanceof String) return (String) value;
+
+        if (value instanceof Object[]) {
+            value = Arrays.asList((Object[]) value);
+        }
+        if (value instanceof Collection) {
+            return new JSONArray((Collection) value).toString();
+        }
+        if (value instanceof Map) {
+            return new JSONObject((Map) value).toString();
+        }
+        return String.valueOf(value);
+    }
+
+    private String valueToString(int start, int end) {
+        if (mJson.charAt(start) == '"') {
+            return decodeString(start + 1, end - 1);
+        }
+        if (regionEquals(start, end, "null")) return null;
+        return mJson.substring(start, end);
+    }
+
+    private String[] decodeStringArray(int start, int end) {
+        if (mJson.charAt(start) != '[') return null;
+
+        List<String> elements = new ArrayList<String>();
+        int p = skipWhitespace(start + 1);
+        while (p < end && mJson.charAt(p) != ']') {
+            int valueEnd = skipValue(p);
+            if (valueEnd <= p) break;
+
+            elements.add(valueToString(p, valueEnd));
+            p = skipWhitespace(valueEnd);
+            if (p >= end || mJson.charAt(p) != ',') break;
+            p = skipWhitespace(p + 1);
+        }
+        return elements.toArray(new String[elements.size()]);
+    }
+
+    /** Unescape the string content between the quotes */
+    private String decodeString(int start, int end) {
+        int escape = mJson.indexOf('\\', start);
+        if (escape < 0 || escape >= end) {
+            return mJson.substring(start, end);
+        }
+
+        StringBuilder sb = new StringBuilder(end - start);
+        sb.append(mJson, start, escape);
+        for (int p = escape; p < end; p++) {
+            char c = mJson.charAt(p);
+            if (c != '\\' || p + 1 >= end) {
+                sb.append(c);
+                continue;
+            }
+            c = mJson.charAt(++p);
+            switch (c) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    if (p + 4 < end) {
+                        try {
+                            sb.append((char) Integer.parseInt(mJson.substring(p + 1, p + 5), 16));
+                            p += 4;
+                            break;
+                        } catch (NumberFormatException e) {
+                            // Keep as it is
+                        }
+                    }
+                    sb.append(c);
+                    break;
+                default: // '"', '\\', '/'
+                    sb.append(c);
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static double parseDouble(String s, int start, int end) {
+        if (start >= end) return Double.NaN;
+        try {
+            return Double.parseDouble(s.substring(start, end));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private boolean hasEscape(int start, int end) {
+        for (int p = start; p < end; p++) {
+            if (mJson.charAt(p) == '\\') return true;
+        }
+        return false;
+    }
+
+    private boolean regionEquals(int start, int end, String s) {
+        return end - start == s.length() && mJson.regionMatches(start, s, 0, s.length());
+    }
+}
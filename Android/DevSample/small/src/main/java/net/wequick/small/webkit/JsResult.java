@@ -16,6 +16,8 @@
 
 package net.wequick.small.webkit;
 
+import android.os.SystemClock;
+
 /**
  * An instance of this class is passed as a parameter in various {@link WebViewClient} action
  * notifications. The object is used as a handle onto the underlying JavaScript-originated request,
@@ -34,6 +36,10 @@ public class JsResult {
     }
 
     private OnFinishListener mFinishListener;
+    private JsHandlerMetrics mMetrics;
+    private long mStartTime;
+    private boolean mDone;
+    private volatile boolean mCancelled;
 
     /**
      * @hide Only for use by WebViewClient implementations
@@ -43,10 +49,57 @@ public class JsResult {
     }
 
     /**
-     * Send result to WebView
+     * Send result to WebView, only the first result is sent. Ignored if cancelled.
      * @param result
      */
     public void finish(Object result) {
+        synchronized (this) {
+            if (mDone) return;
+            mDone = true;
+        }
+        if (mMetrics != null) {
+            mMetrics.onFinished(SystemClock.elapsedRealtime() - mStartTime);
+        }
         mFinishListener.finish(result);
     }
+
+    /**
+     * Check if the WebView which requested this result has been destroyed or reused.
+     * A long running handler should check this and stop early.
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    void cancel() {
+        synchronized (this) {
+            if (mDone) return;
+            mDone = true;
+            mCancelled = true;
+        }
+        if (mMetrics != null) {
+            mMetrics.onCancelled();
+        }
+    }
+
+    /**
+     * Finish with an empty result as the handler failed, so that the javascript callback is
+     * still called and released
+     */
+    void fail() {
+        synchronized (this) {
+            if (mDone) return;
+            mDone = true;
+        }
+        if (mMetrics != null) {
+            mMetrics.onFailed();
+        }
+        mFinishListener.finish(null);
+    }
+
+    void setMetrics(JsHandlerMetrics metrics) {
+        mMetrics = metrics;
+        mStartTime = SystemClock.elapsedRealtime();
+        metrics.onCall();
+    }
 }
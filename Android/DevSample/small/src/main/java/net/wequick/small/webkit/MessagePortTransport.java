@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015-present wequick.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package net.wequick.small.webkit;
+
+import android.annotation.TargetApi;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.webkit.WebMessage;
+import android.webkit.WebMessagePort;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+/**
+ * This class carries the <tt>Small.invoke</tt> calls and their callbacks through a
+ * {@link WebMessagePort} channel instead of the javascript interface and the
+ * <tt>javascript:</tt> urls.
+ *
+ * <p>After the bridge script is injected, one port of a new channel is posted to the page
+ * with the message <tt>small:port</tt>. The port is posted to the origin of the page only,
+ * and the page takes only the first one posted by native (no source window). The page sends each call as <tt>[method,params,id]</tt>
+ * and receives each callback as <tt>[id,result]</tt>, both in json text.
+ * Before the port arrives, or on the WebView without message channels, the page keeps using
+ * the javascript interface.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+final class MessagePortTransport {
+
+    private static final String TAG = "MessagePortTransport";
+    static final String PORT_MESSAGE = "small:port";
+
+    interface Receiver {
+        void onInvoke(String method, String params, String callbackId);
+    }
+
+    private static Handler sHandler;
+
+    private final Receiver mReceiver;
+    private volatile WebMessagePort mPort;
+
+    MessagePortTransport(Receiver receiver) {
+        mReceiver = receiver;
+    }
+
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    /**
+     * Create a channel and post one of its ports to the page loaded in <tt>webView</tt>, only
+     * to the origin of the page so that it won't be received after navigated away
+     */
+    void open(android.webkit.WebView webView) {
+        close();
+
+        Uri targetOrigin = getOrigin(webView.getUrl());
+        if (targetOrigin == null) return; // e.g. file://, keep the javascript interface
+
+        WebMessagePort[] ports;
+        try {
+            ports = webView.createWebMessageChannel();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to create message channel", e);
+            return;
+        }
+        WebMessagePort port = ports[0];
+        // Receive the calls on a background thread like the javascript interface does
+        port.setWebMessageCallback(new WebMessagePort.WebMessageCallback() {
+            @Override
+            public void onMessage(WebMessagePort port, WebMessage message) {
+                receive(message.getData());
+            }
+        }, getHandler());
+        webView.postWebMessage(new WebMessage(PORT_MESSAGE, new WebMessagePort[]{ports[1]}),
+                targetOrigin);
+        mPort = port;
+    }
+
+    /** @return the <tt>scheme://host[:port]</tt> of an http(s) <tt>url</tt>, or null */
+    private static Uri getOrigin(String url) {
+        if (url == null) return null;
+
+        Uri uri = Uri.parse(url);
+        String scheme = uri.getScheme();
+        String authority = uri.getEncodedAuthority();
+        if (authority == null || authority.length() == 0) return null;
+        if (!"http".equals(scheme) && !"https".equals(scheme)) return null;
+
+        // Strip the user info if any
+        int at = authority.lastIndexOf('@');
+        if (at >= 0) authority = authority.substring(at + 1);
+        return Uri.parse(scheme + "://" + authority);
+    }
+
+    boolean isOpen() {
+        return mPort != null;
+    }
+
+    /**
+     * Send a callback to the page
+     *
+     * @return <tt>false</tt> if the port is not open
+     */
+    boolean send(String data) {
+        WebMessagePort port = mPort;
+        if (port == null) return false;
+
+        try {
+            port.postMessage(new WebMessage(data));
+            return true;
+        } catch (RuntimeException e) {
+            // Closed by the page
+            Log.w(TAG, "Failed to post message", e);
+            return false;
+        }
+    }
+
+    void close() {
+        WebMessagePort port = mPort;
+        if (port == null) return;
+
+        mPort = null;
+        try {
+            port.close();
+        } catch (RuntimeException e) {
+            // Ignored
+        }
+    }
+
+    private void receive(String data) {
+        if (data == null) return;
+
+        try {
+            JSONArray call = new JSONArray(data);
+            String method = call.getString(0);
+            String params = call.isNull(1) ? null : call.getString(1);
+            String callbackId = call.getString(2);
+            mReceiver.onInvoke(method, params, callbackId);
+        } catch (JSONException e) {
+            Log.w(TAG, "Bad message " + data);
+        }
+    }
+
+    private static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread("small-port");
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        return sHandler;
+    }
+}
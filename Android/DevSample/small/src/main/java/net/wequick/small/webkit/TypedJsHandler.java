@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015-present wequick.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package net.wequick.small.webkit;
+
+import android.content.Context;
+
+import java.util.Map;
+
+/**
+ * A {@link JsHandler} which reads the parameters by the typed getters of {@link JsParameters},
+ * so that nothing but the values it asks for are decoded.
+ *
+ * <p>The parameters the handler requires can be declared by the constructor, a call missing any
+ * of them is rejected before {@link #handle(Context, JsParameters, JsResult)}.
+ *
+ * <pre>
+ *     Small.registerJsHandler("share", new TypedJsHandler("title", "url") {
+ *         public void handle(Context context, JsParameters parameters, JsResult result) {
+ *             share(parameters.getString("title"), parameters.getString("url"));
+ *         }
+ *     });
+ * </pre>
+ */
+public abstract class TypedJsHandler implements JsHandler {
+
+    private final String[] mRequiredParameters;
+
+    protected TypedJsHandler(String... requiredParameters) {
+        mRequiredParameters = requiredParameters;
+    }
+
+    public abstract void handle(Context context, JsParameters parameters, JsResult result);
+
+    @Override
+    public final void handle(Context context, Map<String, Object> parameters, JsResult result) {
+        handle(context, JsParameters.wrap(parameters), result);
+    }
+
+    /**
+     * Get the name of the first required parameter missing in <tt>parameters</tt>
+     *
+     * @return the name, or <tt>null</tt> if all present
+     */
+    String getMissingParameter(JsParameters parameters) {
+        if (mRequiredParameters == null) return null;
+
+        for (String name : mRequiredParameters) {
+            if (!parameters.has(name)) return name;
+        }
+        return null;
+    }
+}
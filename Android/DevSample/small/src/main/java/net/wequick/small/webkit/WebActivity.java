@@ -48,6 +48,21 @@ import java.util.HashMap;
  */
 public class WebActivity extends AppCompatActivity {
 
+    /**
+     * The extra key of the navigation bar items collected at build time, as
+     * <tt>HashMap&lt;String, HashMap&lt;String, String&gt;&gt;</tt>
+     */
+    public static final String EXTRA_METAS = "small-metas";
+
+    /** The extra key of the url to load */
+    public static final String EXTRA_URL = "url";
+
+    /**
+     * The extra key to serve the page from {@link WebCache}, set for the web pages
+     * downgraded from the uris not matched by any bundle
+     */
+    public static final String EXTRA_USE_CACHE = "small-use-cache";
+
     private static SparseArray<CharSequence> sUrlTitles;
 
     private WebView mWebView;
@@ -55,6 +70,7 @@ public class WebActivity extends AppCompatActivity {
     private boolean mCanSetTitle = true;
     private boolean mFullscreen = false;
     private boolean mHasInitMenu = false;
+    private boolean mPrerendered = false;
     private Menu mOptionsMenu;
 
     @Override
@@ -99,16 +115,30 @@ public class WebActivity extends AppCompatActivity {
         wrapper.setGravity(Gravity.CENTER);
         setContentView(wrapper);
 
-        // Initialize webView
-        mWebView = new WebView(this);
+        // Initialize webView, take the prerendered or a pre-created one if available
+        mUrl = getIntent().getStringExtra(EXTRA_URL);
+        mWebView = WebViewPool.getInstance().acquire(this, mUrl);
+        mPrerendered = mWebView.hasLoadedUrl(mUrl);
         ViewGroup.LayoutParams layoutParams = new ViewGroup.LayoutParams(
                 ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT);
         wrapper.addView(mWebView, 0, layoutParams);
 
-        // Try to load title from cache
-        mUrl = getIntent().getStringExtra("url");
+        // Set up the navigation bar items early if they are collected at build time,
+        // otherwise they are queried from the page after loaded.
+        @SuppressWarnings("unchecked")
+        HashMap<String, HashMap<String, String>> metaContents =
+                (HashMap<String, HashMap<String, String>>)
+                        getIntent().getSerializableExtra(EXTRA_METAS);
+        if (metaContents != null) {
+            mWebView.setMetaContents(metaContents);
+        }
+
+        mWebView.setResponseCacheEnabled(getIntent().getBooleanExtra(EXTRA_USE_CACHE, false));
+
+        // Try to load title from the prerendered page or cache
         if (mCanSetTitle) {
-            CharSequence title = getCacheTitle(mUrl);
+            CharSequence title = mPrerendered ? mWebView.getTitle() : null;
+            if (title == null) title = getCacheTitle(mUrl);
             if (title != null) {
                 super.setTitle(title);
             }
@@ -118,6 +148,11 @@ public class WebActivity extends AppCompatActivity {
     @Override
     protected void onStart() {
         super.onStart();
+        if (mPrerendered) {
+            // Loaded and laid out offscreen, only reload at the next start
+            mPrerendered = false;
+            return;
+        }
         mWebView.loadUrl(mUrl);
     }
 
@@ -160,8 +195,8 @@ public class WebActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-//        String url = getIntent().getStringExtra("url");
-//        WebViewPool.getInstance().free(url);
+        WebViewPool.getInstance().release(mWebView);
+        mWebView = null;
     }
 
     @Override
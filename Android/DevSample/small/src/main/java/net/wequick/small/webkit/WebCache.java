@@ -0,0 +1,909 @@
+/*
+ * Copyright 2015-present wequick.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package net.wequick.small.webkit;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.Log;
+import android.webkit.CookieManager;
+import android.webkit.WebResourceResponse;
+
+import net.wequick.small.Small;
+import net.wequick.small.util.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A disk cache for the http(s) GET responses of the web pages which are not provided by any
+ * bundle, e.g. the pages downgraded from <tt>Small.openUri("https://...")</tt>.
+ *
+ * <ul>
+ *     <li>The responses are kept in a size-bounded directory, the least recently used ones
+ *     are evicted first.</li>
+ *     <li>A fresh response (by Cache-Control max-age, Expires or the Last-Modified heuristic)
+ *     is served without network.</li>
+ *     <li>A stale response is revalidated with If-None-Match and If-Modified-Since before
+ *     served, unless its <tt>stale-while-revalidate</tt> or the <tt>max-stale</tt> of the
+ *     request allows to serve it at once and revalidate in background. It's also served if
+ *     the network is unavailable, unless it <tt>must-revalidate</tt>.</li>
+ *     <li>The urls listed in the <tt>"prefetch"</tt> array of <tt>bundle.json</tt> are
+ *     downloaded in background after the bundles are loaded.</li>
+ * </ul>
+ *
+ * <p>The responses are keyed by the url and the cookies sent with it. The responses with
+ * <tt>Cache-Control: no-store</tt> or <tt>private</tt>, <tt>Set-Cookie</tt> or <tt>Vary</tt>,
+ * and the requests with <tt>Authorization</tt> are not cached. Redirections are left to the
+ * WebView, which can not be told by an intercepted response.
+ */
+public final class WebCache {
+
+    private static final String TAG = "WebCache";
+    private static final String CACHE_DIR_NAME = "small_web_cache";
+    private static final String META_EXTENSION = ".meta";
+    private static final String BODY_EXTENSION = ".body";
+    private static final int MAGIC_NUMBER = 0x53574332; // SWC2
+
+    private static final long DEFAULT_MAX_SIZE = 20 * 1024 * 1024;
+    private static final long MAX_HEURISTIC_AGE = 24 * 60 * 60 * 1000L;
+    private static final int CONNECT_TIMEOUT = 15 * 1000;
+    private static final int READ_TIMEOUT = 30 * 1000;
+    private static final int BACKGROUND_THREADS = 2;
+
+    /** The headers describing the transfer rather than the body, which is decoded */
+    private static final String[] TRANSFER_HEADERS = {
+            "Connection", "Content-Encoding", "Content-Length", "Keep-Alive", "Set-Cookie",
+            "Transfer-Encoding"
+    };
+
+    private static WebCache sInstance;
+
+    private final File mDir;
+    private final CookieStore mCookies;
+    private long mMaxSize = DEFAULT_MAX_SIZE;
+    private long mSize;
+    // Access ordered, the eldest is the least recently used
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final Set<String> mDownloadingKeys = new HashSet<String>();
+    private ExecutorService mExecutor;
+    private boolean mLoaded;
+
+    /** The cookies shared with the WebView */
+    interface CookieStore {
+        String getCookie(String url);
+        void setCookie(String url, String cookie);
+    }
+
+    private static final class Entry {
+        String key;
+        String url;
+        String mimeType;
+        String encoding;
+        String etag;
+        String lastModified;
+        long freshUntil;
+        /** Served while revalidating in background till then, by stale-while-revalidate */
+        long staleUntil;
+        boolean noCache;
+        boolean mustRevalidate;
+        Map<String, String> headers;
+        long size;
+    }
+
+    /** The response to the WebView, from the cache or the network */
+    static final class Response {
+        final int statusCode;
+        final String reasonPhrase;
+        final String mimeType;
+        final String encoding;
+        final Map<String, String> headers;
+        final InputStream body;
+
+        Response(int statusCode, String reasonPhrase, String mimeType, String encoding,
+                 Map<String, String> headers, InputStream body) {
+            this.statusCode = statusCode;
+            this.reasonPhrase = reasonPhrase;
+            this.mimeType = mimeType;
+            this.encoding = encoding;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    public static synchronized WebCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new WebCache(new File(Small.getContext().getCacheDir(), CACHE_DIR_NAME),
+                    new CookieStore() {
+                        @Override
+                        public String getCookie(String url) {
+                            return CookieManager.getInstance().getCookie(url);
+                        }
+
+                        @Override
+                        public void setCookie(String url, String cookie) {
+                            CookieManager.getInstance().setCookie(url, cookie);
+                        }
+                    });
+        }
+        return sInstance;
+    }
+
+    WebCache(File dir, CookieStore cookies) {
+        mDir = dir;
+        mCookies = cookies;
+    }
+
+    /** Set the max bytes of the cached responses */
+    public synchronized void setMaxSize(long maxSize) {
+        mMaxSize = maxSize;
+        if (mLoaded) trimToSize();
+    }
+
+    /**
+     * Download the <tt>urls</tt> in background if not cached or stale
+     */
+    public void prefetch(final List<String> urls) {
+        if (urls == null || urls.isEmpty()) return;
+
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                for (String url : urls) {
+                    if (!isHttpUrl(url)) continue;
+
+                    String cookie = mCookies.getCookie(url);
+                    String key = toKey(url, cookie);
+                    Entry entry = getEntry(key);
+                    if (entry != null && entry.freshUntil > System.currentTimeMillis()) continue;
+
+                    revalidateInBackground(key, url, cookie, null, entry);
+                }
+            }
+        });
+    }
+
+    /** Remove all the cached responses */
+    public synchronized void clear() {
+        ensureLoaded();
+        for (Entry entry : mEntries.values()) {
+            deleteFiles(entry.key);
+        }
+        mEntries.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Get the response of <tt>url</tt> from cache or network
+     *
+     * @param requestHeaders the headers of the WebView request, forwarded to the network
+     * @return the response, or <tt>null</tt> to let the WebView load it
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    WebResourceResponse load(String url, Map<String, String> requestHeaders) {
+        Response response = fetch(url, requestHeaders);
+        if (response == null) return null;
+
+        return new WebResourceResponse(response.mimeType, response.encoding,
+                response.statusCode, response.reasonPhrase, response.headers, response.body);
+    }
+
+    /**
+     * Get the response of <tt>url</tt> from cache or network
+     *
+     * @return the response, or <tt>null</tt> to let the WebView load it
+     */
+    Response fetch(String url, Map<String, String> requestHeaders) {
+        if (!isHttpUrl(url)) return null;
+        // Never mix up the responses of the users
+        if (getHeader(requestHeaders, "Authorization") != null) return null;
+
+        String cookie = mCookies.getCookie(url);
+        String key = toKey(url, cookie);
+        Entry entry = getEntry(key);
+        if (entry != null && !requiresRevalidation(entry, requestHeaders)) {
+            Response response = openCachedResponse(entry);
+            if (response != null) {
+                if (entry.freshUntil <= System.currentTimeMillis()) {
+                    // Stale but allowed, revalidate for the next time
+                    revalidateInBackground(key, url, cookie, requestHeaders, entry);
+                }
+                return response;
+            }
+            remove(key);
+            entry = null;
+        }
+
+        // Miss or stale, download and write to cache while the WebView is reading
+        HttpURLConnection conn = null;
+        try {
+            conn = openConnection(url, requestHeaders, cookie, entry);
+            int code = conn.getResponseCode();
+            saveCookies(url, conn);
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null) {
+                conn.disconnect();
+                updateValidators(entry, conn);
+                writeMetaQuietly(entry);
+                Response response = openCachedResponse(entry);
+                if (response == null) remove(key);
+                return response;
+            }
+            if (code < 200 || code >= 300 && code < 400 || code > 599) {
+                // Redirections can not be returned to the WebView, let it load again
+                conn.disconnect();
+                return null;
+            }
+
+            InputStream in;
+            if (code == HttpURLConnection.HTTP_OK) {
+                in = conn.getInputStream();
+                Entry newEntry = createEntry(key, url, requestHeaders, conn);
+                if (newEntry == null) {
+                    if (entry != null) remove(key);
+                } else if (beginDownload(key)) {
+                    in = new CachingInputStream(in, newEntry);
+                }
+            } else {
+                in = (code >= 400) ? conn.getErrorStream() : conn.getInputStream();
+                if (in == null) in = new ByteArrayInputStream(new byte[0]);
+            }
+            return new Response(code, getReasonPhrase(conn), getMimeType(conn),
+                    getEncoding(conn), getResponseHeaders(conn), in);
+        } catch (IOException e) {
+            if (conn != null) conn.disconnect();
+            if (entry != null && !entry.mustRevalidate) {
+                // Offline, serve the stale one
+                Response response = openCachedResponse(entry);
+                if (response != null) return response;
+            }
+            Log.w(TAG, "Failed to load " + url + ": " + e);
+            return null;
+        }
+    }
+
+    /** Check if the <tt>entry</tt> should be revalidated before served to the request */
+    private static boolean requiresRevalidation(Entry entry, Map<String, String> requestHeaders) {
+        String cacheControl = getHeader(requestHeaders, "Cache-Control");
+        if (hasDirective(cacheControl, "no-cache") || getSeconds(cacheControl, "max-age") == 0
+                || "no-cache".equalsIgnoreCase(getHeader(requestHeaders, "Pragma"))) {
+            return true; // Reloading
+        }
+
+        long now = System.currentTimeMillis();
+        if (entry.freshUntil > now) return false;
+        if (entry.noCache || entry.mustRevalidate) return true;
+        if (entry.staleUntil > now) return false;
+
+        if (!hasDirective(cacheControl, "max-stale")) return true;
+        long maxStale = getSeconds(cacheControl, "max-stale");
+        return maxStale >= 0 && now - entry.freshUntil > maxStale * 1000;
+    }
+
+    //______________________________________________________________________________________________
+    // Network
+
+    private static boolean isHttpUrl(String url) {
+        return url != null && (url.startsWith("http://") || url.startsWith("https://"));
+    }
+
+    private static HttpURLConnection openConnection(String url, Map<String, String> headers,
+                                                    String cookie, Entry validator)
+            throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        conn.setUseCaches(false);
+        // Or the body would be served under the original url
+        conn.setInstanceFollowRedirects(false);
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                conn.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+        if (cookie != null) {
+            conn.setRequestProperty("Cookie", cookie);
+        }
+        if (validator != null) {
+            if (validator.etag.length() != 0) {
+                conn.setRequestProperty("If-None-Match", validator.etag);
+            }
+            if (validator.lastModified.length() != 0) {
+                conn.setRequestProperty("If-Modified-Since", validator.lastModified);
+            }
+        }
+        return conn;
+    }
+
+    /** Keep the cookies of the WebView, as it never sees the headers of the response */
+    private void saveCookies(String url, HttpURLConnection conn) {
+        List<String> cookies = getHeaderValues(conn, "Set-Cookie");
+        if (cookies == null) return;
+
+        for (String cookie : cookies) {
+            mCookies.setCookie(url, cookie);
+        }
+    }
+
+    /**
+     * Create the entry for the response, <tt>null</tt> if it should not be cached
+     */
+    private static Entry createEntry(String key, String url, Map<String, String> requestHeaders,
+                                     HttpURLConnection conn) {
+        // Never cache the personal response
+        if (getHeaderValues(conn, "Set-Cookie") != null) return null;
+        if (getHeader(requestHeaders, "Authorization") != null) return null;
+
+        String cacheControl = conn.getHeaderField("Cache-Control");
+        if (hasDirective(cacheControl, "no-store") || hasDirective(cacheControl, "private")) {
+            return null;
+        }
+        // The body is decoded, so only the encoding is allowed to vary
+        String vary = conn.getHeaderField("Vary");
+        if (vary != null) {
+            for (String field : vary.split(",")) {
+                field = field.trim();
+                if (field.length() != 0 && !field.equalsIgnoreCase("Accept-Encoding")) {
+                    return null;
+                }
+            }
+        }
+
+        Entry entry = new Entry();
+        entry.key = key;
+        entry.url = url;
+        entry.mimeType = getMimeType(conn);
+        String encoding = getEncoding(conn);
+        entry.encoding = (encoding == null) ? "" : encoding;
+        entry.headers = getResponseHeaders(conn);
+        updateValidators(entry, conn);
+        return entry;
+    }
+
+    private static void updateValidators(Entry entry, HttpURLConnection conn) {
+        String etag = conn.getHeaderField("ETag");
+        if (etag != null) entry.etag = etag;
+        else if (entry.etag == null) entry.etag = "";
+
+        String lastModified = conn.getHeaderField("Last-Modified");
+        if (lastModified != null) entry.lastModified = lastModified;
+        else if (entry.lastModified == null) entry.lastModified = "";
+
+        String cacheControl = conn.getHeaderField("Cache-Control");
+        entry.noCache = hasDirective(cacheControl, "no-cache")
+                || "no-cache".equalsIgnoreCase(conn.getHeaderField("Pragma"));
+        entry.mustRevalidate = hasDirective(cacheControl, "must-revalidate");
+        entry.freshUntil = entry.noCache ? 0 : getFreshUntil(conn, cacheControl);
+        long staleWhileRevalidate = getSeconds(cacheControl, "stale-while-revalidate");
+        entry.staleUntil = (staleWhileRevalidate > 0 && !entry.noCache && !entry.mustRevalidate)
+                ? entry.freshUntil + staleWhileRevalidate * 1000 : entry.freshUntil;
+    }
+
+    private static long getFreshUntil(HttpURLConnection conn, String cacheControl) {
+        long now = System.currentTimeMillis();
+        long maxAge = getSeconds(cacheControl, "max-age");
+        if (maxAge >= 0) return now + maxAge * 1000;
+
+        long expires = conn.getHeaderFieldDate("Expires", 0);
+        if (expires > 0) return expires;
+
+        // Heuristic freshness: 10% of the time since last modified
+        long lastModified = conn.getHeaderFieldDate("Last-Modified", 0);
+        long date = conn.getHeaderFieldDate("Date", now);
+        if (lastModified > 0 && lastModified < date) {
+            return now + Math.min((date - lastModified) / 10, MAX_HEURISTIC_AGE);
+        }
+        return 0;
+    }
+
+    private static boolean hasDirective(String cacheControl, String name) {
+        return getDirective(cacheControl, name) != null;
+    }
+
+    /** Get the seconds of the directive <tt>name</tt>, -1 if absent or not a number */
+    private static long getSeconds(String cacheControl, String name) {
+        String value = getDirective(cacheControl, name);
+        if (value == null) return -1;
+
+        try {
+            return Math.max(0, Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Get the value of the directive <tt>name</tt>, empty if no value, null if absent */
+    private static String getDirective(String cacheControl, String name) {
+        if (cacheControl == null) return null;
+
+        for (String directive : cacheControl.split(",")) {
+            int eq = directive.indexOf('=');
+            String key = (eq < 0) ? directive : directive.substring(0, eq);
+            if (!key.trim().equalsIgnoreCase(name)) continue;
+
+            return (eq < 0) ? "" : directive.substring(eq + 1).trim().replace("\"", "");
+        }
+        return null;
+    }
+
+    private static String getHeader(Map<String, String> headers, String name) {
+        if (headers == null) return null;
+
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) return header.getValue();
+        }
+        return null;
+    }
+
+    private static List<String> getHeaderValues(HttpURLConnection conn, String name) {
+        for (Map.Entry<String, List<String>> header : conn.getHeaderFields().entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) return header.getValue();
+        }
+        return null;
+    }
+
+    /** Get the headers of the response to pass to the WebView, e.g. CORS and CSP */
+    private static Map<String, String> getResponseHeaders(HttpURLConnection conn) {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, List<String>> header : conn.getHeaderFields().entrySet()) {
+            String name = header.getKey();
+            if (name == null || isTransferHeader(name)) continue; // The status line
+
+            StringBuilder value = new StringBuilder();
+            for (String v : header.getValue()) {
+                if (value.length() != 0) value.append(", ");
+                value.append(v);
+            }
+            headers.put(name, value.toString());
+        }
+        return headers;
+    }
+
+    private static boolean isTransferHeader(String name) {
+        for (String header : TRANSFER_HEADERS) {
+            if (header.equalsIgnoreCase(name)) return true;
+        }
+        return false;
+    }
+
+    /** The reason phrase must be a non-empty ascii string for the WebView */
+    private static String getReasonPhrase(HttpURLConnection conn) throws IOException {
+        String message = conn.getResponseMessage();
+        if (message != null) {
+            message = message.trim();
+            boolean valid = message.length() != 0;
+            for (int i = 0; valid && i < message.length(); i++) {
+                char c = message.charAt(i);
+                valid = c >= 0x20 && c < 0x7f;
+            }
+            if (valid) return message;
+        }
+        return (conn.getResponseCode() < 400) ? "OK" : "Error";
+    }
+
+    private static String getMimeType(HttpURLConnection conn) {
+        String contentType = conn.getContentType();
+        if (contentType == null) return "application/octet-stream";
+
+        int semicolon = contentType.indexOf(';');
+        String mimeType = (semicolon < 0) ? contentType : contentType.substring(0, semicolon);
+        return mimeType.trim();
+    }
+
+    private static String getEncoding(HttpURLConnection conn) {
+        String contentType = conn.getContentType();
+        if (contentType == null) return null;
+
+        int index = contentType.toLowerCase(Locale.US).indexOf("charset=");
+        if (index < 0) return null;
+
+        String charset = contentType.substring(index + "charset=".length());
+        int semicolon = charset.indexOf(';');
+        if (semicolon >= 0) charset = charset.substring(0, semicolon);
+        return charset.trim().replace("\"", "");
+    }
+
+    private void revalidateInBackground(final String key, final String url, final String cookie,
+                                        final Map<String, String> headers, final Entry entry) {
+        if (!beginDownload(key)) return;
+
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    revalidate(key, url, cookie, headers, entry);
+                } finally {
+                    endDownload(key);
+                }
+            }
+        });
+    }
+
+    private void revalidate(String key, String url, String cookie, Map<String, String> headers,
+                            Entry entry) {
+        HttpURLConnection conn = null;
+        try {
+            conn = openConnection(url, headers, cookie, entry);
+            int code = conn.getResponseCode();
+            saveCookies(url, conn);
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null) {
+                updateValidators(entry, conn);
+                writeMeta(entry);
+                return;
+            }
+            if (code != HttpURLConnection.HTTP_OK) return;
+
+            Entry newEntry = createEntry(key, url, headers, conn);
+            if (newEntry == null) {
+                remove(key);
+                return;
+            }
+            InputStream in = new CachingInputStream(conn.getInputStream(), newEntry);
+            try {
+                byte[] buffer = new byte[8192];
+                while (in.read(buffer) != -1) {
+                    // Written to cache while reading
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to revalidate " + url + ": " + e);
+        } finally {
+            if (conn != null) conn.disconnect();
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (mExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(BACKGROUND_THREADS,
+                    BACKGROUND_THREADS, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            executor.allowCoreThreadTimeOut(true);
+            mExecutor = executor;
+        }
+        return mExecutor;
+    }
+
+    //______________________________________________________________________________________________
+    // Disk
+
+    private synchronized Entry getEntry(String key) {
+        ensureLoaded();
+        return mEntries.get(key);
+    }
+
+    private synchronized boolean beginDownload(String key) {
+        return mDownloadingKeys.add(key);
+    }
+
+    private synchronized void endDownload(String key) {
+        mDownloadingKeys.remove(key);
+    }
+
+    private synchronized void put(Entry entry) {
+        ensureLoaded();
+        Entry old = mEntries.put(entry.key, entry);
+        if (old != null) mSize -= old.size;
+        mSize += entry.size;
+        trimToSize();
+    }
+
+    private synchronized void remove(String key) {
+        ensureLoaded();
+        Entry old = mEntries.remove(key);
+        if (old != null) mSize -= old.size;
+        deleteFiles(key);
+    }
+
+    private synchronized void trimToSize() {
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            Entry eldest = it.next();
+            it.remove();
+            mSize -= eldest.size;
+            deleteFiles(eldest.key);
+        }
+    }
+
+    private void deleteFiles(String key) {
+        new File(mDir, key + META_EXTENSION).delete();
+        new File(mDir, key + BODY_EXTENSION).delete();
+    }
+
+    private Response openCachedResponse(Entry entry) {
+        InputStream body;
+        try {
+            body = new FileInputStream(new File(mDir, entry.key + BODY_EXTENSION));
+        } catch (IOException e) {
+            return null;
+        }
+        return new Response(HttpURLConnection.HTTP_OK, "OK", entry.mimeType, entry.encoding,
+                entry.headers, body);
+    }
+
+    /** Build the index at the first use, to keep the disk reading off the main thread */
+    private void ensureLoaded() {
+        if (mLoaded) return;
+
+        mLoaded = true;
+        if (!mDir.exists()) {
+            mDir.mkdirs();
+        }
+        loadEntries();
+    }
+
+    private void loadEntries() {
+        File[] files = mDir.listFiles();
+        if (files == null) return;
+
+        // Restore the LRU order by the modified time of the metas
+        List<File> metas = new ArrayList<File>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(META_EXTENSION)) {
+                metas.add(file);
+            } else if (!name.endsWith(BODY_EXTENSION)) {
+                file.delete(); // Temporary files
+            }
+        }
+        File[] sortedMetas = metas.toArray(new File[metas.size()]);
+        Arrays.sort(sortedMetas, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return (l < r) ? -1 : ((l == r) ? 0 : 1);
+            }
+        });
+
+        for (File file : sortedMetas) {
+            Entry entry = readMeta(file);
+            String name = file.getName();
+            String key = name.substring(0, name.length() - META_EXTENSION.length());
+            File body = new File(mDir, key + BODY_EXTENSION);
+            if (entry == null || !body.exists() || body.length() != entry.size) {
+                deleteFiles(key);
+                continue;
+            }
+            entry.key = key;
+            mEntries.put(key, entry);
+            mSize += entry.size;
+        }
+        trimToSize();
+    }
+
+    private static Entry readMeta(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC_NUMBER) return null;
+
+            Entry entry = new Entry();
+            entry.url = in.readUTF();
+            entry.mimeType = in.readUTF();
+            String encoding = in.readUTF();
+            entry.encoding = (encoding.length() == 0) ? null : encoding;
+            entry.etag = in.readUTF();
+            entry.lastModified = in.readUTF();
+            entry.freshUntil = in.readLong();
+            entry.staleUntil = in.readLong();
+            entry.noCache = in.readBoolean();
+            entry.mustRevalidate = in.readBoolean();
+            int headerCount = in.readInt();
+            entry.headers = new LinkedHashMap<String, String>();
+            for (int i = 0; i < headerCount; i++) {
+                entry.headers.put(in.readUTF(), in.readUTF());
+            }
+            entry.size = in.readLong();
+            return entry;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void writeMeta(Entry entry) throws IOException {
+        File file = new File(mDir, entry.key + META_EXTENSION);
+        File tempFile = FileUtils.getTempFile(file);
+        FileOutputStream fos = new FileOutputStream(tempFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        try {
+            out.writeInt(MAGIC_NUMBER);
+            out.writeUTF(entry.url);
+            out.writeUTF(entry.mimeType);
+            out.writeUTF(entry.encoding == null ? "" : entry.encoding);
+            out.writeUTF(entry.etag);
+            out.writeUTF(entry.lastModified);
+            out.writeLong(entry.freshUntil);
+            out.writeLong(entry.staleUntil);
+            out.writeBoolean(entry.noCache);
+            out.writeBoolean(entry.mustRevalidate);
+            out.writeInt(entry.headers.size());
+            for (Map.Entry<String, String> header : entry.headers.entrySet()) {
+                out.writeUTF(header.getKey());
+                out.writeUTF(header.getValue());
+            }
+            out.writeLong(entry.size);
+            out.flush();
+            FileUtils.commitTempFile(fos, tempFile, file);
+        } catch (IOException e) {
+            out.close();
+            tempFile.delete();
+            throw e;
+        }
+    }
+
+    private void writeMetaQuietly(Entry entry) {
+        try {
+            writeMeta(entry);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to update " + entry.url + ": " + e);
+        }
+    }
+
+    /** The responses vary with the cookies, which are sent to the server */
+    private static String toKey(String url, String cookie) {
+        String request = (cookie == null) ? url : url + "\n" + cookie;
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] digest = md.digest(request.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Stream to write the response to a temporary file while it's read, which is committed
+     * to the cache at the end of the response, or discarded if closed before that.
+     */
+    private final class CachingInputStream extends FilterInputStream {
+
+        private final Entry mEntry;
+        private final File mBodyFile;
+        private final File mTempFile;
+        private FileOutputStream mOut;
+        private long mSize;
+        private boolean mDone;
+
+        CachingInputStream(InputStream in, Entry entry) {
+            super(in);
+            mEntry = entry;
+            mBodyFile = new File(mDir, entry.key + BODY_EXTENSION);
+            mTempFile = FileUtils.getTempFile(mBodyFile);
+            try {
+                mOut = new FileOutputStream(mTempFile);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to cache " + entry.url + ": " + e);
+                mDone = true;
+                endDownload(entry.key);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return (n <= 0) ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n;
+            try {
+                n = in.read(b, off, len);
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+            if (mDone) return n;
+
+            if (n == -1) {
+                commit();
+            } else if (n > 0) {
+                try {
+                    mOut.write(b, off, n);
+                    mSize += n;
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to cache " + mEntry.url + ": " + e);
+                    abort();
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // The skipped data can not be cached
+            abort();
+            return in.skip(n);
+        }
+
+        @Override
+        public void close() throws IOException {
+            abort(); // No effect if committed
+            super.close();
+        }
+
+        private void commit() {
+            mDone = true;
+            try {
+                if (FileUtils.commitTempFile(mOut, mTempFile, mBodyFile)) {
+                    mEntry.size = mSize;
+                    writeMeta(mEntry);
+                    put(mEntry);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to cache " + mEntry.url + ": " + e);
+                remove(mEntry.key);
+            } finally {
+                endDownload(mEntry.key);
+            }
+        }
+
+        private void abort() {
+            if (mDone) return;
+
+            mDone = true;
+            try {
+                mOut.close();
+            } catch (IOException ignored) {
+            }
+            mTempFile.delete();
+            endDownload(mEntry.key);
+        }
+    }
+}
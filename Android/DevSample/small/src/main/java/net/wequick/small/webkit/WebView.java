@@ -15,20 +15,32 @@
  */
 package net.wequick.small.webkit;
 
+import android.annotation.TargetApi;
+import android.app.Activity;
 import android.support.v7.app.AlertDialog;
 import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.content.MutableContextWrapper;
+import android.content.pm.ApplicationInfo;
 import android.graphics.Bitmap;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.util.SparseArray;
+import android.view.Choreographer;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 import android.webkit.ConsoleMessage;
 import android.webkit.JavascriptInterface;
+import android.webkit.ValueCallback;
 import android.webkit.WebChromeClient;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebSettings;
 import android.widget.Toast;
 
@@ -37,10 +49,18 @@ import net.wequick.small.Small;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * <p>A View that displays web pages. This class is the basis upon which you
@@ -63,9 +83,21 @@ public class WebView extends android.webkit.WebView {
     private static final String SMALL_HOST_POP = "pop";
     private static final String SMALL_HOST_EXEC = "exec";
     private static final String SMALL_QUERY_KEY_RET = "ret";
+    private static final String SMALL_QUERY_KEY_ID = "id";
     private static final String JS_PREFIX = "javascript:";
-    /** Js scripts to make a bridge across Native and Web */
-    private static final String SMALL_INJECT_JS =
+    /**
+     * The reserved method to echo the parameters back in debuggable apps, for measuring the
+     * round trip time of <tt>Small.invoke</tt> on each transport (<tt>Small._p</tt> is set
+     * while using the message port).
+     */
+    private static final String ECHO_METHOD = "_small.echo";
+    /**
+     * Js scripts to make a bridge across Native and Web. It may be both prepended to the
+     * page by {@link ArchiveAssetLoader} and evaluated after loaded, so run only once.
+     */
+    static final String SMALL_INJECT_JS =
+            "if(!window._smallInjected){" +
+            "window._smallInjected=true;" +
             // Parse window close event
             "window._onclose=function(){" +
                 "if(typeof(onbeforeclose)=='function'){" +
@@ -89,16 +121,33 @@ public class WebView extends android.webkit.WebView {
             // Bridge
             "Small={" +
                 "_c:{}," +
+                "_i:0," +
                 // Native -> Web. t: the js callback function handle, r: callback result
                 "c:function(t,r){var c=this._c[t];if(!!c){c(r);this._c[t]=null;}}," +
+                // Send by message port if received, otherwise by javascript interface
+                "_p:null," +
+                "_s:function(m,p,t){" +
+                    "if(this._p)this._p.postMessage(JSON.stringify([m,p,t]));" +
+                    "else _Small.invoke(m,p,t);" +
+                "}," +
                 // Web -> Native. m: native method name, p: parameters, c: callback function
                 "invoke:function(m,p,c){" +
-                    "var t=new Date().getTime()+'';" +
+                    "var t=(++this._i)+'';" +
                     "this._c[t]=c;" +
-                    "if(!!p)_Small.invoke(m,JSON.stringify(p),t); " +
-                    "else _Small.invoke(m,null,t);" +
+                    "this._s(m,!!p?JSON.stringify(p):null,t);" +
                 "}" +
-            "};";
+            "};" +
+            // Receive the message port posted by native, which has no source window.
+            // Only the first one is taken so that nobody else can replace it.
+            "window.addEventListener('message',function(e){" +
+                "if(e.source!=null||Small._p)return;" +
+                "if(e.data!='" + MessagePortTransport.PORT_MESSAGE + "')return;" +
+                "if(!e.ports||!e.ports.length)return;" +
+                "var p=e.ports[0];" +
+                "p.onmessage=function(m){var d=JSON.parse(m.data);Small.c(d[0],d[1]);};" +
+                "Small._p=p;" +
+            "});" +
+            "}";
     /** Js scripts to get html meta data for configuring Native navigation bar */
     private static final String SMALL_GET_METAS_JS =
             "var ms=document.head.getElementsByTagName('meta');" +
@@ -111,13 +160,29 @@ public class WebView extends android.webkit.WebView {
     /** Js scripts to get window close result */
     private static final String SMALL_GET_CLOSERET_JS = "return window._onclose()";
 
-    private static ConcurrentHashMap<String, JsHandler> sJsHandlers;
-
-    private OnResultListener mOnResultListener = null;
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private SparseArray<OnResultListener> mResultListeners = new SparseArray<OnResultListener>();
+    private int mNextRequestId;
+    private final Object mScriptLock = new Object();
+    private StringBuilder mPendingScripts = new StringBuilder();
+    private boolean mFlushScheduled;
+    private final Set<JsResult> mPendingResults =
+            Collections.synchronizedSet(new HashSet<JsResult>());
+    /** The calls waiting for an activity while prerendered by {@link WebViewPool} */
+    private final List<Runnable> mDeferredCalls = new ArrayList<Runnable>();
     private String mTitle = null;
     private String mLoadingUrl = null;
     private boolean mInjected = false;
     private boolean mBlank;
+    /** Unloading the page by about:blank, see {@link #reset()} */
+    private boolean mResetting;
+    /** Clear the history of the reset page after the next page finished */
+    private boolean mClearHistory;
+    private volatile boolean mResponseCacheEnabled;
+    private SmallJsBridge mJsBridge;
+    private volatile MessagePortTransport mTransport;
+    private static boolean sMessagePortEnabled;
     private ProgressDialog mProgressDialog = null;
     private HashMap<String, Boolean> mHasStartedUrl = new HashMap<String, Boolean>();
     private HashMap<String, HashMap<String, String>> mMetaContents = null;
@@ -139,6 +204,11 @@ public class WebView extends android.webkit.WebView {
 
     @Override
     public void loadUrl(String url) {
+        if (mResetting) {
+            // Reused before about:blank finished, clear the history after this page instead
+            mResetting = false;
+            mClearHistory = true;
+        }
         mLoadingUrl = url;
         super.loadUrl(url);
     }
@@ -155,13 +225,40 @@ public class WebView extends android.webkit.WebView {
         super.loadUrl(JS_PREFIX + js);
     }
 
-    public void execJavascript(String js, OnResultListener listener) {
-        mOnResultListener = listener;
-        String js2Exec = "var ret='';try{ret=function(){" + js +
-                "}();}catch(e){} console.log('" +
-                SMALL_SCHEME + "://" + SMALL_HOST_EXEC + "?" + SMALL_QUERY_KEY_RET +
-                "='+encodeURIComponent(ret))";
-        loadJs(js2Exec);
+    /**
+     * Execute the function body <tt>js</tt> in current page, the returned value is passed to
+     * <tt>listener</tt> as a string. Must be called on the main thread.
+     */
+    public void execJavascript(String js, final OnResultListener listener) {
+        String fn = "function(){var ret='';try{ret=function(){" + js + "}();}catch(e){}" +
+                "return String(ret)}()";
+        if (Build.VERSION.SDK_INT >= 19) {
+            evaluateJavascript(fn, new ValueCallback<String>() {
+                @Override
+                public void onReceiveValue(String value) {
+                    if (listener != null) {
+                        listener.onResult(parseJsString(value));
+                    }
+                }
+            });
+            return;
+        }
+
+        // Send the result back by console message with the request id
+        int id = ++mNextRequestId;
+        if (listener != null) {
+            mResultListeners.put(id, listener);
+        }
+        loadJs("console.log('" + SMALL_SCHEME + "://" + SMALL_HOST_EXEC + "?" +
+                SMALL_QUERY_KEY_ID + "=" + id + "&" + SMALL_QUERY_KEY_RET +
+                "='+encodeURIComponent(" + fn + "))");
+    }
+
+    @Override
+    public void destroy() {
+        closeMessagePort();
+        cancelPendingResults();
+        super.destroy();
     }
 
     @Override
@@ -179,41 +276,283 @@ public class WebView extends android.webkit.WebView {
         execJavascript(SMALL_GET_CLOSERET_JS, listener);
     }
 
+    /**
+     * Pass the <tt>result</tt> to the js callback function. The callbacks are collected and
+     * evaluated at once in the next frame. Can be called on any thread.
+     */
     private void callbackJS(String functionId, Object result) {
-        if (result == null) {
-            loadJs("Small.c('" + functionId + "');");
+        String args = JSONObject.quote(functionId);
+        if (result != null) {
+            args += "," + toJson(result);
+        }
+        MessagePortTransport transport = mTransport;
+        if (transport != null && transport.send("[" + args + "]")) return;
+
+        postScript("Small.c(" + args + ");");
+    }
+
+    /** Inject the bridge, then open a message port to it */
+    private void injectWithMessagePort() {
+        evaluateJavascript(SMALL_INJECT_JS, new ValueCallback<String>() {
+            @Override
+            public void onReceiveValue(String value) {
+                openMessagePort();
+            }
+        });
+    }
+
+    private void openMessagePort() {
+        if (mTransport == null) {
+            mTransport = new MessagePortTransport(new MessagePortTransport.Receiver() {
+                @Override
+                public void onInvoke(String method, String params, String callbackId) {
+                    mJsBridge.invoke(method, params, callbackId);
+                }
+            });
+        }
+        mTransport.open(this);
+    }
+
+    private void closeMessagePort() {
+        if (mTransport != null) {
+            mTransport.close();
+        }
+    }
+
+    private void removeCallback(String functionId) {
+        postScript("Small._c[" + JSONObject.quote(functionId) + "]=null;");
+    }
+
+    private void postScript(String script) {
+        synchronized (mScriptLock) {
+            mPendingScripts.append(script);
+            if (mFlushScheduled) return;
+            mFlushScheduled = true;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            scheduleFlushScripts();
         } else {
-            // object to json string
-            String s;
-            if (result instanceof Integer) {
-                s = result.toString();
-                loadJs("Small.c('" + functionId + "'," + s + ");");
-            } else if (result instanceof String) {
-                s = "\"" + result.toString() + "\"";
-                loadJs("Small.c('" + functionId + "'," + s + ");");
-            } else if (result instanceof HashMap) {
-                JSONObject jsonObject = new JSONObject();
-                HashMap<String, Object> map = (HashMap) result;
-                for (HashMap.Entry<String, Object> entry : map.entrySet()) {
-                    try {
-                        jsonObject.put(entry.getKey(), entry.getValue());
-                    } catch (JSONException e) {
-                        // Ignored
-                    }
+            sMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    scheduleFlushScripts();
+                }
+            });
+        }
+    }
+
+    private void scheduleFlushScripts() {
+        if (Build.VERSION.SDK_INT >= 16) {
+            Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    flushScripts();
                 }
-                s = jsonObject.toString(); //
-                loadJs("var s='" + s + "';Small.c('" + functionId + "'," + "JSON.parse(s));");
+            });
+        } else {
+            sMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    flushScripts();
+                }
+            });
+        }
+    }
+
+    private void flushScripts() {
+        String scripts;
+        synchronized (mScriptLock) {
+            mFlushScheduled = false;
+            if (mPendingScripts.length() == 0) return;
+
+            scripts = mPendingScripts.toString();
+            mPendingScripts.setLength(0);
+        }
+        if (Build.VERSION.SDK_INT >= 19) {
+            evaluateJavascript(scripts, null);
+        } else {
+            loadJs(scripts);
+        }
+    }
+
+    /** Encode <tt>value</tt> as a json literal which can be embedded in scripts */
+    private static String toJson(Object value) {
+        Object json = wrapJson(value);
+        String s;
+        if (json instanceof String) {
+            s = JSONObject.quote((String) json);
+        } else if (json instanceof Number) {
+            try {
+                s = JSONObject.numberToString((Number) json);
+            } catch (JSONException e) {
+                s = "null"; // NaN or Infinity
             }
+        } else {
+            s = json.toString(); // JSONObject, JSONArray, Boolean or NULL
         }
+        // Line terminators are valid in json strings but not in js literals
+        return s.replace("\u2028", "\\u2028").replace("\u2029", "\\u2029");
     }
 
-    private void removeCallback(String functionId) {
-        loadJs("Small._c['" + functionId + "']=null;");
+    private static Object wrapJson(Object o) {
+        if (o == null) return JSONObject.NULL;
+        if (o instanceof JSONObject || o instanceof JSONArray || o == JSONObject.NULL
+                || o instanceof String || o instanceof Number || o instanceof Boolean) {
+            return o;
+        }
+        if (o instanceof Character) return o.toString();
+        if (o instanceof Map) {
+            JSONObject json = new JSONObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) o).entrySet()) {
+                try {
+                    json.put(String.valueOf(entry.getKey()), wrapJson(entry.getValue()));
+                } catch (JSONException e) {
+                    // Ignored, NaN or Infinity
+                }
+            }
+            return json;
+        }
+        if (o instanceof Collection) {
+            JSONArray json = new JSONArray();
+            for (Object e : (Collection<?>) o) {
+                json.put(wrapJson(e));
+            }
+            return json;
+        }
+        if (o.getClass().isArray()) {
+            JSONArray json = new JSONArray();
+            for (int i = 0, N = Array.getLength(o); i < N; i++) {
+                json.put(wrapJson(Array.get(o, i)));
+            }
+            return json;
+        }
+        return o.toString();
+    }
+
+    /** Decode the json string returned by evaluateJavascript */
+    private static String parseJsString(String value) {
+        if (value == null) return "";
+        try {
+            Object o = new JSONTokener(value).nextValue();
+            return (o == JSONObject.NULL) ? "" : o.toString();
+        } catch (JSONException e) {
+            return value;
+        }
+    }
+
+    private void cancelPendingResults() {
+        JsResult[] results;
+        synchronized (mPendingResults) {
+            results = mPendingResults.toArray(new JsResult[mPendingResults.size()]);
+            mPendingResults.clear();
+        }
+        for (JsResult result : results) {
+            result.cancel();
+        }
     }
 
     private WebActivity getActivity() {
+        Context context = getContext();
+        if (context instanceof MutableContextWrapper) {
+            // Pooled by WebViewPool
+            context = ((MutableContextWrapper) context).getBaseContext();
+        }
+        if (context instanceof WebActivity) {
+            return (WebActivity) context;
+        }
         View parent = (View) this.getParent();
-        return (WebActivity) parent.getContext();
+        if (parent == null) return null;
+
+        context = parent.getContext();
+        return (context instanceof WebActivity) ? (WebActivity) context : null;
+    }
+
+    /**
+     * Get the activity hosting this view, <tt>null</tt> while pooled by {@link WebViewPool}
+     */
+    private Context getHostContext() {
+        Context context = getContext();
+        if (context instanceof MutableContextWrapper) {
+            context = ((MutableContextWrapper) context).getBaseContext();
+            if (!(context instanceof Activity)) return null; // Prerendering
+        }
+        return context;
+    }
+
+    /**
+     * Run <tt>call</tt> now if hosted by an activity, or after {@link WebViewPool} gives this
+     * prerendered view to an activity
+     */
+    private void runWithHost(Runnable call) {
+        synchronized (mDeferredCalls) {
+            if (getHostContext() == null) {
+                mDeferredCalls.add(call);
+                return;
+            }
+        }
+        call.run();
+    }
+
+    /**
+     * Run the deferred calls, called on the main thread by {@link WebViewPool} after setting
+     * the activity
+     */
+    void onHostAttached() {
+        Runnable[] calls;
+        synchronized (mDeferredCalls) {
+            calls = mDeferredCalls.toArray(new Runnable[mDeferredCalls.size()]);
+            mDeferredCalls.clear();
+        }
+        for (Runnable call : calls) {
+            call.run();
+        }
+    }
+
+    /**
+     * Reset the states of current page for reusing by {@link WebViewPool}
+     */
+    void reset() {
+        stopLoading();
+        if (mProgressDialog != null) {
+            mProgressDialog.dismiss();
+            mProgressDialog = null;
+        }
+        mResultListeners.clear();
+        closeMessagePort();
+        cancelPendingResults();
+        synchronized (mScriptLock) {
+            mPendingScripts.setLength(0);
+        }
+        synchronized (mDeferredCalls) {
+            mDeferredCalls.clear();
+        }
+        mTitle = null;
+        mLoadingUrl = null;
+        mInjected = false;
+        mBlank = false;
+        mHasStartedUrl.clear();
+        mClearHistory = false;
+        mMetaContents = null;
+        mResponseCacheEnabled = false;
+        setVisibility(View.VISIBLE);
+        scrollTo(0, 0);
+
+        // Unload the page, the history is cleared after the blank page finished
+        mResetting = true;
+        super.loadUrl("about:blank");
+    }
+
+    /** Check if <tt>url</tt> has been loaded, e.g. prerendered by {@link WebViewPool} */
+    boolean hasLoadedUrl(String url) {
+        return url != null && url.equals(mLoadingUrl);
+    }
+
+    /**
+     * Serve the http(s) GET requests of the main frame from {@link WebCache}, available since
+     * Lollipop where the request method can be told.
+     */
+    void setResponseCacheEnabled(boolean enabled) {
+        mResponseCacheEnabled = enabled;
     }
 
     protected void removeFromParent() {
@@ -285,6 +624,8 @@ public class WebView extends android.webkit.WebView {
         public boolean onJsConfirm(android.webkit.WebView view, String url, String message,
                                    final android.webkit.JsResult result) {
             Context context = ((WebView) view).getActivity();
+            if (context == null) return false; // Prerendering
+
             AlertDialog.Builder dlg = new AlertDialog.Builder(context);
             dlg.setPositiveButton("OK", new DialogInterface.OnClickListener() {
                 @Override
@@ -324,6 +665,8 @@ public class WebView extends android.webkit.WebView {
             if (uri != null && null != uri.getScheme() && uri.getScheme().equals(SMALL_SCHEME))
             {
                 String host = uri.getHost();
+                if (host == null) return true;
+
                 String ret = uri.getQueryParameter(SMALL_QUERY_KEY_RET);
                 if (host.equals(SMALL_HOST_POP)) {
                     WebActivity activity = mWebView.getActivity();
@@ -331,8 +674,19 @@ public class WebView extends android.webkit.WebView {
                         activity.finish(ret);
                     }
                 } else if (host.equals(SMALL_HOST_EXEC)) {
-                    if (mWebView.mOnResultListener != null) {
-                        mWebView.mOnResultListener.onResult(ret);
+                    String id = uri.getQueryParameter(SMALL_QUERY_KEY_ID);
+                    if (id == null) return true;
+
+                    int requestId;
+                    try {
+                        requestId = Integer.parseInt(id);
+                    } catch (NumberFormatException e) {
+                        return true; // Not sent by us, ignore it
+                    }
+                    OnResultListener listener = mWebView.mResultListeners.get(requestId);
+                    if (listener != null) {
+                        mWebView.mResultListeners.remove(requestId);
+                        listener.onResult(ret != null ? ret : "");
                     }
                 }
                 return true;
@@ -394,18 +748,26 @@ public class WebView extends android.webkit.WebView {
         }
 
         @Override
-        public void onPageStarted(android.webkit.WebView view, String url, Bitmap favicon) {
+        public void onPageStarted(android.webkit.WebView view, final String url,
+                                  final Bitmap favicon) {
             super.onPageStarted(view, url, favicon);
 
-            WebView wv = (WebView) view;
+            final WebView wv = (WebView) view;
             wv.mHasStartedUrl.put(url, true);
+            // The port is closed by the page unloaded
+            wv.closeMessagePort();
 
             if (wv.mLoadingUrl != null && wv.mLoadingUrl.equals(url)) {
                 // reload by window.location.reload or something
                 wv.mInjected = false;
             }
             if (sWebViewClient != null && url.equals(wv.mLoadingUrl)) {
-                sWebViewClient.onPageStarted(wv.getActivity(), wv, url, favicon);
+                wv.runWithHost(new Runnable() {
+                    @Override
+                    public void run() {
+                        sWebViewClient.onPageStarted(wv.getHostContext(), wv, url, favicon);
+                    }
+                });
             }
         }
 
@@ -415,6 +777,18 @@ public class WebView extends android.webkit.WebView {
 
             WebView wv = (WebView) view;
             wv.mHasStartedUrl.remove(url);
+            if ("about:blank".equals(url) && !url.equals(wv.mLoadingUrl)) {
+                // Unloaded by `reset', or a late one after the next page started
+                if (wv.mResetting) {
+                    wv.mResetting = false;
+                    wv.clearHistory();
+                }
+                return;
+            }
+            if (wv.mClearHistory && url.equals(wv.mLoadingUrl)) {
+                wv.mClearHistory = false;
+                wv.clearHistory();
+            }
             if (wv.mBlank) {
                 wv.setVisibility(View.VISIBLE);
                 wv.mBlank = false;
@@ -438,26 +812,76 @@ public class WebView extends android.webkit.WebView {
             }
 
             if (!wv.mInjected) {
-                // Re-inject Small Js
-                wv.loadJs(SMALL_INJECT_JS);
+                boolean usePort = sMessagePortEnabled && MessagePortTransport.isSupported();
+                if (ArchiveAssetLoader.isBundleUrl(url)) {
+                    // Injected at the document start by ArchiveAssetLoader
+                    if (usePort) {
+                        wv.openMessagePort();
+                    }
+                } else if (usePort) {
+                    // Re-inject Small Js
+                    wv.injectWithMessagePort();
+                } else {
+                    // Re-inject Small Js
+                    wv.loadJs(SMALL_INJECT_JS);
+                }
                 wv.initMetas();
                 wv.mInjected = true;
             }
 
             if (sWebViewClient != null && url.equals(wv.mLoadingUrl)) {
-                sWebViewClient.onPageFinished(wv.getActivity(), wv, url);
+                final WebView fWebView = wv;
+                final String fUrl = url;
+                wv.runWithHost(new Runnable() {
+                    @Override
+                    public void run() {
+                        sWebViewClient.onPageFinished(fWebView.getHostContext(), fWebView, fUrl);
+                    }
+                });
             }
         }
 
         @Override
-        public void onReceivedError(android.webkit.WebView view, int errorCode,
-                                    String description, String failingUrl) {
+        public WebResourceResponse shouldInterceptRequest(android.webkit.WebView view,
+                                                          String url) {
+            // Called on a background thread
+            WebResourceResponse response = ArchiveAssetLoader.load(url);
+            if (response != null) return response;
+            return super.shouldInterceptRequest(view, url);
+        }
+
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        @Override
+        public WebResourceResponse shouldInterceptRequest(android.webkit.WebView view,
+                                                          WebResourceRequest request) {
+            // Called on a background thread
+            WebResourceResponse response = super.shouldInterceptRequest(view, request);
+            if (response != null) return response;
+
+            WebView wv = (WebView) view;
+            // Only the pages, the subresources and xhr are left to the http cache of the WebView
+            if (!wv.mResponseCacheEnabled || !request.isForMainFrame()
+                    || !"GET".equals(request.getMethod())) {
+                return null;
+            }
+            return WebCache.getInstance().load(request.getUrl().toString(),
+                    request.getRequestHeaders());
+        }
+
+        @Override
+        public void onReceivedError(android.webkit.WebView view, final int errorCode,
+                                    final String description, final String failingUrl) {
             super.onReceivedError(view, errorCode, description, failingUrl);
             Log.e("Web", "error: " + description);
-            WebView wv = (WebView) view;
+            final WebView wv = (WebView) view;
             if (sWebViewClient != null && failingUrl.equals(wv.mLoadingUrl)) {
-                Context context = wv.getActivity();
-                sWebViewClient.onReceivedError(context, wv, errorCode, description, failingUrl);
+                wv.runWithHost(new Runnable() {
+                    @Override
+                    public void run() {
+                        sWebViewClient.onReceivedError(wv.getHostContext(), wv, errorCode,
+                                description, failingUrl);
+                    }
+                });
             }
         }
     }
@@ -466,7 +890,8 @@ public class WebView extends android.webkit.WebView {
         WebSettings webSettings = this.getSettings();
         webSettings.setJavaScriptEnabled(true);
         webSettings.setUserAgentString(webSettings.getUserAgentString() + " Native");
-        this.addJavascriptInterface(new SmallJsBridge(), "_Small");
+        mJsBridge = new SmallJsBridge();
+        this.addJavascriptInterface(mJsBridge, "_Small");
 
         this.setWebChromeClient(new SmallWebChromeClient(this));
         this.setWebViewClient(new SmallWebViewClient());
@@ -489,30 +914,10 @@ public class WebView extends android.webkit.WebView {
                     Iterator<String> keys = json.keys();
                     while (keys.hasNext()) {
                         String name = keys.next();
-                        int barItemLoc = name.indexOf("-bar-item");
-                        if (barItemLoc > 0) {
-                            try {
-                                String content = json.getString(name);
-                                String[] attrs = content.split(",");
-                                HashMap<String, String> dict = new HashMap<String, String>();
-                                for (int i = 0; i < attrs.length; i++) {
-                                    String attr = attrs[i];
-                                    String key, value;
-                                    int eqLoc = attr.indexOf("=");
-                                    if (eqLoc < 0) { // Not found
-                                        key = "title"; // Default to title
-                                        value = attr;
-                                    } else {
-                                        key = attr.substring(0, eqLoc);
-                                        value = attr.substring(eqLoc + 1);
-                                    }
-                                    dict.put(key, value);
-                                }
-                                String pos = name.substring(0, barItemLoc);
-                                metaContents.put(pos, dict);
-                            } catch (JSONException e) {
-                                // Ignore
-                            }
+                        try {
+                            putMetaContent(metaContents, name, json.getString(name));
+                        } catch (JSONException e) {
+                            // Ignore
                         }
                     }
 
@@ -532,14 +937,81 @@ public class WebView extends android.webkit.WebView {
         });
     }
 
+    /** Use the meta contents collected at build time instead of querying the page */
+    void setMetaContents(HashMap<String, HashMap<String, String>> metaContents) {
+        mMetaContents = metaContents;
+    }
+
+    /**
+     * Parse the meta contents of <tt>page</tt> from the <tt>small.metas</tt> file packaged
+     * by the gradle plugin, in which each line is <tt>page\tname\tcontent</tt>
+     *
+     * @return the contents, or <tt>null</tt> if no bar item for the page
+     * @hide Only for Small API
+     */
+    public static HashMap<String, HashMap<String, String>> parseMetasFile(String text,
+                                                                          String page) {
+        HashMap<String, HashMap<String, String>> metaContents = null;
+        String[] lines = text.split("\n");
+        for (String line : lines) {
+            String[] fields = line.split("\t", 3);
+            if (fields.length != 3 || !fields[0].equals(page)) continue;
+
+            if (metaContents == null) {
+                metaContents = new HashMap<String, HashMap<String, String>>();
+            }
+            putMetaContent(metaContents, fields[1], fields[2]);
+        }
+        return metaContents;
+    }
+
+    /** Parse "*-bar-item":"content" into metaContents["*"] */
+    private static void putMetaContent(HashMap<String, HashMap<String, String>> metaContents,
+                                       String name, String content) {
+        int barItemLoc = name.indexOf("-bar-item");
+        if (barItemLoc <= 0) return;
+
+        String[] attrs = content.split(",");
+        HashMap<String, String> dict = new HashMap<String, String>();
+        for (int i = 0; i < attrs.length; i++) {
+            String attr = attrs[i];
+            String key, value;
+            int eqLoc = attr.indexOf("=");
+            if (eqLoc < 0) { // Not found
+                key = "title"; // Default to title
+                value = attr;
+            } else {
+                key = attr.substring(0, eqLoc);
+                value = attr.substring(eqLoc + 1);
+            }
+            dict.put(key, value);
+        }
+        String pos = name.substring(0, barItemLoc);
+        metaContents.put(pos, dict);
+    }
+
     /**
      * @hide Only for Small API
      */
     public static void registerJsHandler(String method, JsHandler handler) {
+        registerJsHandler(method, handler, JsHandler.THREAD_BRIDGE, 0);
+    }
+
+    /**
+     * @hide Only for Small API
+     */
+    public static void registerJsHandler(String method, JsHandler handler,
+                                         int threadMode, int maxConcurrency) {
         if (method == null || handler == null) return;
 
-        if (sJsHandlers == null) sJsHandlers = new ConcurrentHashMap<String, JsHandler>();
-        sJsHandlers.put(method, handler);
+        JsHandlerDispatcher.register(method, handler, threadMode, maxConcurrency);
+    }
+
+    /**
+     * @hide Only for Small API
+     */
+    public static JsHandlerMetrics getJsHandlerMetrics(String method) {
+        return JsHandlerDispatcher.getMetrics(method);
     }
 
     /**
@@ -547,47 +1019,36 @@ public class WebView extends android.webkit.WebView {
      */
     private class SmallJsBridge {
         @JavascriptInterface
-        public void invoke(String method, String params, final String callbackFunctionId) {
-            // JS object -> JSON -> HashMap
-            HashMap<String, Object> parameters = new HashMap<String, Object>();
-            if (params != null) {
-                try {
-                    JSONObject json = new JSONObject(params);
-                    Iterator<String> keys = json.keys();
-                    while (keys.hasNext()) {
-                        String key = keys.next();
-                        String value = json.getString(key);
-                        Object oValue = value;
-                        if (value.startsWith("[")) {
-                            JSONArray array = json.getJSONArray(key);
-                            String[] strs = new String[array.length()];
-                            for (int i = 0; i < array.length(); i++) {
-                                strs[i] = array.getString(i);
-                            }
-                            oValue = strs;
-                        }
-                        parameters.put(key, oValue);
-                    }
-                } catch (JSONException e) {
-                    // Ignored
+        public void invoke(final String method, String params, final String callbackFunctionId) {
+            // Decode the parameters lazily, only the values asked by the handler
+            final JsParameters parameters = JsParameters.parse(params);
+
+            // Wait for the activity to show the dialogs and so on if prerendering
+            runWithHost(new Runnable() {
+                @Override
+                public void run() {
+                    invoke(getHostContext(), method, parameters, callbackFunctionId);
                 }
-            }
+            });
+        }
 
-            Context context = WebView.this.getActivity();
+        private void invoke(Context context, String method, JsParameters parameters,
+                            final String callbackFunctionId) {
             if (internalInvoke(context, method, parameters, callbackFunctionId)) return;
 
-            // User custom events
-            if (sJsHandlers == null) return;
-            JsHandler handler = sJsHandlers.get(method);
-            if (handler == null) return;
-
-            JsResult jsResult = new JsResult(new JsResult.OnFinishListener() {
+            // User custom events, the result is cancelled if this view is destroyed or reused
+            final JsResult[] jsResult = new JsResult[1];
+            jsResult[0] = new JsResult(new JsResult.OnFinishListener() {
                 @Override
                 public void finish(Object result) {
+                    mPendingResults.remove(jsResult[0]);
                     callbackJS(callbackFunctionId, result);
                 }
             });
-            handler.handle(context, parameters, jsResult);
+            mPendingResults.add(jsResult[0]);
+            if (!JsHandlerDispatcher.dispatch(method, context, parameters, jsResult[0])) {
+                mPendingResults.remove(jsResult[0]);
+            }
         }
 
         /**
@@ -595,10 +1056,21 @@ public class WebView extends android.webkit.WebView {
          * @return true=handled
          */
         private boolean internalInvoke(Context context, String method,
-                                       HashMap<String, Object> parameters,
+                                       JsParameters parameters,
                                        final String callbackFunctionId) {
-            if (method.equals("confirm")) {
-                String[] btns = (String[]) parameters.get("buttons");
+            if (method.equals(ECHO_METHOD)) {
+                // Round trip for benchmarking the transports, only for debug builds
+                if (!isDebuggable()) return false;
+
+                callbackJS(callbackFunctionId, parameters.toString());
+                return true;
+            } else if (context == null) {
+                // Not able to show the dialogs, which is never expected as deferred
+                return method.equals("confirm") || method.equals("alert")
+                        || method.equals("hud") || method.equals("toast");
+            } else if (method.equals("confirm")) {
+                String[] btns = parameters.getStringArray("buttons");
+                if (btns == null) return true;
                 final int nBtn = btns.length;
                 if (nBtn < 1 || nBtn > 3) return true;
 
@@ -635,8 +1107,8 @@ public class WebView extends android.webkit.WebView {
                 };
 
                 AlertDialog.Builder builder = new AlertDialog.Builder(context);
-                builder.setTitle((String) parameters.get("title"));
-                builder.setMessage((String) parameters.get("message"));
+                builder.setTitle(parameters.getString("title"));
+                builder.setMessage(parameters.getString("message"));
                 builder.setCancelable(false);
                 switch (nBtn) {
                     case 1:
@@ -664,9 +1136,9 @@ public class WebView extends android.webkit.WebView {
                 return true;
             } else if (method.equals("alert")) {
                 final AlertDialog.Builder fBuilder = new AlertDialog.Builder(context)
-                        .setTitle((String) parameters.get("title"))
-                        .setMessage((String) parameters.get("message"))
-                        .setPositiveButton((String) parameters.get("ok"),
+                        .setTitle(parameters.getString("title"))
+                        .setMessage(parameters.getString("message"))
+                        .setPositiveButton(parameters.getString("ok"),
                                 new DialogInterface.OnClickListener() {
                                     @Override
                                     public void onClick(DialogInterface dialogInterface, int i) {
@@ -681,18 +1153,17 @@ public class WebView extends android.webkit.WebView {
                 });
                 return true;
             } else if (method.equals("hud")) {
-                String action = (String) parameters.get("action");
-                if (action.equals("show")) {
+                String action = parameters.getString("action");
+                if ("show".equals(action)) {
                     if (mProgressDialog != null) {
                         mProgressDialog.dismiss();
                     }
                     mProgressDialog = new ProgressDialog(context);
-                    mProgressDialog.setMessage((String) parameters.get("message"));
+                    mProgressDialog.setMessage(parameters.getString("message"));
                     mProgressDialog.show();
-                } else if (action.equals("hide")) {
+                } else if ("hide".equals(action)) {
                     if (mProgressDialog != null) {
-                        String sDelay = (String) parameters.get("delay");
-                        long delay = sDelay != null ? Integer.parseInt(sDelay) * 1000 : 0;
+                        long delay = parameters.getInt("delay", 0) * 1000;
                         postDelayed(new Runnable() {
                             @Override
                             public void run() {
@@ -703,9 +1174,8 @@ public class WebView extends android.webkit.WebView {
                 }
                 return true;
             } else if (method.equals("toast")) {
-                String sDelay = (String) parameters.get("delay");
-                String message = (String) parameters.get("message");
-                int delay = sDelay != null ? Integer.parseInt(sDelay) : 1;
+                String message = parameters.getString("message");
+                int delay = parameters.getInt("delay", 1);
                 if (delay <= 1) {
                     Toast.makeText(context, message, Toast.LENGTH_SHORT).show();
                 } else {
@@ -718,6 +1188,23 @@ public class WebView extends android.webkit.WebView {
     }
 
     private static WebViewClient sWebViewClient;
+    private static Boolean sDebuggable;
+
+    private static boolean isDebuggable() {
+        if (sDebuggable == null) {
+            Context context = Small.getContext();
+            sDebuggable = context != null && (context.getApplicationInfo().flags
+                    & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+        }
+        return sDebuggable;
+    }
+
+    /**
+     * @hide Only for Small API
+     */
+    public static void setMessagePortEnabled(boolean enabled) {
+        sMessagePortEnabled = enabled;
+    }
 
     /**
      * @hide Only for Small API
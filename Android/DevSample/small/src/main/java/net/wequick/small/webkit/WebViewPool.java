@@ -0,0 +1,320 @@
+/*
+ * Copyright 2015-present wequick.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package net.wequick.small.webkit;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.Intent;
+import android.content.MutableContextWrapper;
+import android.content.res.Configuration;
+import android.util.DisplayMetrics;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.util.Log;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * This class keeps a few {@link WebView}s created ahead of time for {@link WebActivity}.
+ *
+ * <p>The WebViews are created one by one while the main thread is idle, each on a
+ * {@link MutableContextWrapper} of the application so that it can be attached to any activity
+ * later. A released WebView is reset and returned to the pool if there is room, otherwise
+ * it's destroyed. The pool is emptied on memory pressure.
+ *
+ * <p>The entrance page of a web bundle can also be prerendered by
+ * {@link #prerender(Context, Intent)}: it's loaded and laid out offscreen while the main thread
+ * is idle, and handed to the {@link WebActivity} opening the same url, so that the page shows
+ * at once. At most {@link #setMaxPrerenderSize(int)} pages are kept, the least recently
+ * requested one is dropped first.
+ *
+ * <p>All the methods must be called on the main thread, except {@link #prepare(Context)} and
+ * {@link #prerender(Context, Intent)}.
+ */
+public final class WebViewPool {
+
+    private static final String TAG = "WebViewPool";
+    private static final int DEFAULT_MAX_SIZE = 2;
+    private static final int DEFAULT_MAX_PRERENDER_SIZE = 1;
+
+    private static WebViewPool sInstance;
+
+    private final List<WebView> mWebViews = new ArrayList<WebView>();
+    private int mMaxSize = DEFAULT_MAX_SIZE;
+    // Url to the prerendered WebView, access ordered, the eldest is dropped first
+    private final LinkedHashMap<String, WebView> mPrerenderedWebViews =
+            new LinkedHashMap<String, WebView>(4, 0.75f, true);
+    private int mMaxPrerenderSize = DEFAULT_MAX_PRERENDER_SIZE;
+    private Context mContext;
+    private boolean mFilling;
+
+    public static synchronized WebViewPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new WebViewPool();
+        }
+        return sInstance;
+    }
+
+    private WebViewPool() { }
+
+    /**
+     * Set the max count of the idle WebViews, 0 to disable pooling
+     */
+    public void setMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Set the max count of the prerendered pages, 0 to disable prerendering
+     */
+    public void setMaxPrerenderSize(int maxSize) {
+        mMaxPrerenderSize = maxSize;
+        trimPrerendered(maxSize);
+    }
+
+    /**
+     * Start to fill the pool while the main thread is idle
+     *
+     * @param context any context of the application
+     */
+    public void prepare(Context context) {
+        final Context app = context.getApplicationContext();
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                if (mContext == null) {
+                    mContext = app;
+                    registerMemoryCallbacks(app);
+                }
+                scheduleFill();
+            }
+        });
+    }
+
+    /**
+     * Load the page of <tt>intent</tt> into an offscreen WebView while the main thread is idle
+     *
+     * @param context any context of the application
+     * @param intent the intent to start {@link WebActivity}, e.g. by
+     *               <tt>Small.getIntentOfUri(uri, context)</tt>
+     */
+    public void prerender(Context context, final Intent intent) {
+        final String url = intent.getStringExtra(WebActivity.EXTRA_URL);
+        if (url == null) return;
+
+        final Context app = context.getApplicationContext();
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                if (mContext == null) {
+                    mContext = app;
+                    registerMemoryCallbacks(app);
+                }
+                if (mMaxPrerenderSize <= 0) return;
+                if (mPrerenderedWebViews.get(url) != null) return; // Touched
+
+                Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                    @Override
+                    public boolean queueIdle() {
+                        if (mMaxPrerenderSize > 0 && !mPrerenderedWebViews.containsKey(url)) {
+                            prerenderNow(url, intent);
+                        }
+                        return false;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Take a WebView from the pool, or create a new one if the pool is empty
+     *
+     * @param context the activity to host the WebView
+     */
+    public WebView acquire(Context context) {
+        return acquire(context, null);
+    }
+
+    /**
+     * Take the WebView prerendered with <tt>url</tt>, or any one from the pool
+     *
+     * @param context the activity to host the WebView
+     * @param url the url to be loaded, <tt>null</tt> if no need to take the prerendered one
+     */
+    public WebView acquire(Context context, String url) {
+        WebView webView = (url == null) ? null : mPrerenderedWebViews.remove(url);
+        int N = mWebViews.size();
+        if (webView != null) {
+            ((MutableContextWrapper) webView.getContext()).setBaseContext(context);
+            // Run the js calls made while prerendering
+            webView.onHostAttached();
+        } else if (N > 0) {
+            webView = mWebViews.remove(N - 1);
+            ((MutableContextWrapper) webView.getContext()).setBaseContext(context);
+        } else {
+            webView = new WebView(new MutableContextWrapper(context));
+        }
+        if (mContext == null) {
+            mContext = context.getApplicationContext();
+            registerMemoryCallbacks(mContext);
+        }
+        scheduleFill();
+        return webView;
+    }
+
+    /**
+     * Give back a WebView acquired by {@link #acquire(Context)}. It will be detached from
+     * the activity and reset, or be destroyed if the pool is full.
+     */
+    public void release(WebView webView) {
+        if (webView == null) return;
+
+        webView.removeFromParent();
+        Context context = webView.getContext();
+        if (!(context instanceof MutableContextWrapper)
+                || mWebViews.size() >= mMaxSize) {
+            webView.destroy();
+            return;
+        }
+
+        // Drop the reference to the activity
+        ((MutableContextWrapper) context).setBaseContext(mContext);
+        try {
+            webView.reset();
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to reset " + webView, e);
+            webView.destroy();
+            return;
+        }
+        mWebViews.add(webView);
+    }
+
+    /** Destroy all the idle and prerendered WebViews */
+    public void trim() {
+        trimToSize(0);
+        trimPrerendered(0);
+    }
+
+    //______________________________________________________________________________________________
+    // Private
+
+    private void trimToSize(int size) {
+        while (mWebViews.size() > size) {
+            mWebViews.remove(mWebViews.size() - 1).destroy();
+        }
+    }
+
+    private void trimPrerendered(int size) {
+        Iterator<WebView> it = mPrerenderedWebViews.values().iterator();
+        while (mPrerenderedWebViews.size() > size && it.hasNext()) {
+            WebView webView = it.next();
+            it.remove();
+            webView.destroy();
+        }
+    }
+
+    private void prerenderNow(String url, Intent intent) {
+        WebView webView;
+        int N = mWebViews.size();
+        try {
+            webView = (N > 0) ? mWebViews.remove(N - 1)
+                    : new WebView(new MutableContextWrapper(mContext));
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to create WebView", e);
+            return;
+        }
+
+        @SuppressWarnings("unchecked")
+        HashMap<String, HashMap<String, String>> metaContents =
+                (HashMap<String, HashMap<String, String>>)
+                        intent.getSerializableExtra(WebActivity.EXTRA_METAS);
+        if (metaContents != null) {
+            webView.setMetaContents(metaContents);
+        }
+        webView.setResponseCacheEnabled(
+                intent.getBooleanExtra(WebActivity.EXTRA_USE_CACHE, false));
+
+        // Lay out at the screen size, so that the page is rendered as shown
+        DisplayMetrics dm = mContext.getResources().getDisplayMetrics();
+        webView.measure(View.MeasureSpec.makeMeasureSpec(dm.widthPixels, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(dm.heightPixels, View.MeasureSpec.EXACTLY));
+        webView.layout(0, 0, dm.widthPixels, dm.heightPixels);
+        webView.loadUrl(url);
+
+        mPrerenderedWebViews.put(url, webView);
+        trimPrerendered(mMaxPrerenderSize);
+        scheduleFill();
+    }
+
+    private void scheduleFill() {
+        if (mFilling || mContext == null) return;
+        if (mWebViews.size() >= mMaxSize) return;
+
+        mFilling = true;
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                if (mWebViews.size() >= mMaxSize) {
+                    mFilling = false;
+                    return false;
+                }
+
+                // Create one at each idle time to keep the frames smooth
+                try {
+                    mWebViews.add(new WebView(new MutableContextWrapper(mContext)));
+                } catch (Exception e) {
+                    // The WebView provider may be missing or being updated
+                    Log.e(TAG, "Failed to create WebView", e);
+                    mFilling = false;
+                    return false;
+                }
+                boolean more = mWebViews.size() < mMaxSize;
+                mFilling = more;
+                return more;
+            }
+        });
+    }
+
+    private void registerMemoryCallbacks(Context app) {
+        if (Build.VERSION.SDK_INT < 14) return;
+
+        app.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                // Keep them while the app just goes to background
+                if (level >= TRIM_MEMORY_RUNNING_LOW && level != TRIM_MEMORY_UI_HIDDEN) {
+                    trim();
+                }
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) { }
+
+            @Override
+            public void onLowMemory() {
+                trim();
+            }
+        });
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2015-present wequick.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package net.wequick.small.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * The fixtures are compiled by aapt, taken from the framework resources of AOSP:
+ * <ul>
+ *     <li>storage_list.xml - res/xml/storage_list.xml</li>
+ *     <li>icon_menu_layout.xml - res/layout-port/icon_menu_layout.xml</li>
+ * </ul>
+ */
+public class AXmlParserTest {
+
+    private static final int ATTR_ID = 0x010100d0;
+    private static final int ATTR_LAYOUT_WIDTH = 0x010100f4;
+    private static final int ATTR_LAYOUT_HEIGHT = 0x010100f5;
+    private static final int ATTR_ROW_HEIGHT = 0x01010132;
+    private static final int ATTR_MAX_ROWS = 0x01010133;
+
+    @Test
+    public void walksTagsWithDepth() throws Exception {
+        AXmlParser parser = open("storage_list.xml");
+        assertEquals(AXmlParser.START_DOCUMENT, parser.getEventType());
+
+        assertEquals(AXmlParser.START_TAG, parser.next());
+        assertEquals("StorageList", parser.getName());
+        assertEquals(1, parser.getDepth());
+
+        assertEquals(AXmlParser.START_TAG, parser.next());
+        assertEquals("storage", parser.getName());
+        assertEquals(2, parser.getDepth());
+        assertEquals(3, parser.getAttributeCount());
+
+        assertEquals(AXmlParser.END_TAG, parser.next());
+        assertEquals("storage", parser.getName());
+        assertEquals(2, parser.getDepth());
+
+        assertEquals(AXmlParser.END_TAG, parser.next());
+        assertEquals("StorageList", parser.getName());
+        assertEquals(1, parser.getDepth());
+
+        assertEquals(AXmlParser.END_DOCUMENT, parser.next());
+        assertEquals(0, parser.getDepth());
+        assertEquals(AXmlParser.END_DOCUMENT, parser.next());
+    }
+
+    @Test
+    public void readsRawAttributeValues() throws Exception {
+        AXmlParser parser = open("storage_list.xml");
+        parser.next();
+        parser.next();
+
+        // android:mountPoint="/storage/sdcard"
+        assertEquals("mountPoint", parser.getAttributeName(0));
+        assertEquals(AXmlParser.TYPE_STRING, parser.getAttributeValueType(0));
+        assertEquals("/storage/sdcard", parser.getAttributeValue(0));
+
+        // android:storageDescription="@string/storage_usb", not resolved
+        assertEquals(AXmlParser.TYPE_REFERENCE, parser.getAttributeValueType(1));
+        assertEquals(0x01040488, parser.getAttributeValueData(1));
+        assertNull(parser.getAttributeValue(1));
+
+        // android:primary="true"
+        assertEquals(AXmlParser.TYPE_INT_BOOLEAN, parser.getAttributeValueType(2));
+        assertEquals(-1, parser.getAttributeValueData(2));
+    }
+
+    @Test
+    public void findsAttributesByResourceId() throws Exception {
+        AXmlParser parser = open("icon_menu_layout.xml");
+        assertEquals(AXmlParser.START_TAG, parser.next());
+        assertEquals("com.android.internal.view.menu.IconMenuView", parser.getName());
+        assertEquals(7, parser.getAttributeCount());
+
+        int index = parser.indexOfAttribute(ATTR_ID);
+        assertEquals(AXmlParser.TYPE_REFERENCE, parser.getAttributeValueType(index));
+        assertEquals(0x01020343, parser.getAttributeValueData(index));
+
+        // match_parent and wrap_content
+        index = parser.indexOfAttribute(ATTR_LAYOUT_WIDTH);
+        assertEquals(ATTR_LAYOUT_WIDTH, parser.getAttributeNameResource(index));
+        assertEquals(AXmlParser.TYPE_FIRST_INT, parser.getAttributeValueType(index));
+        assertEquals(-1, parser.getAttributeValueData(index));
+        index = parser.indexOfAttribute(ATTR_LAYOUT_HEIGHT);
+        assertEquals(-2, parser.getAttributeValueData(index));
+
+        // 66dip is a dimension but not an int
+        index = parser.indexOfAttribute(ATTR_ROW_HEIGHT);
+        assertEquals(0x05, parser.getAttributeValueType(index));
+
+        index = parser.indexOfAttribute(ATTR_MAX_ROWS);
+        assertEquals(3, parser.getAttributeValueData(index));
+
+        assertEquals(-1, parser.indexOfAttribute(0x01010000));
+        // Attributes with resource ids are not matched by name
+        assertEquals(-1, parser.indexOfAttribute("maxRows"));
+    }
+
+    @Test
+    public void readsUtf16StringsAndPlainAttributes() throws Exception {
+        AXmlParser parser = new AXmlParser(buildUtf16Manifest("com.example.\u4e2d\u6587"));
+        assertEquals(AXmlParser.START_TAG, parser.next());
+        assertEquals("manifest", parser.getName());
+
+        int index = parser.indexOfAttribute("package");
+        assertEquals(0, index);
+        assertEquals(0, parser.getAttributeNameResource(index));
+        assertEquals("com.example.\u4e2d\u6587", parser.getAttributeValue(index));
+
+        assertEquals(AXmlParser.END_TAG, parser.next());
+        assertEquals(AXmlParser.END_DOCUMENT, parser.next());
+    }
+
+    @Test
+    public void rejectsMalformedData() throws Exception {
+        try {
+            new AXmlParser("<manifest/>".getBytes("UTF-8"));
+            fail("Text xml should be rejected");
+        } catch (IOException expected) {
+        }
+
+        byte[] data = readFixture("storage_list.xml");
+        byte[] truncated = new byte[data.length - 40];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        AXmlParser parser = new AXmlParser(truncated);
+        try {
+            while (parser.next() != AXmlParser.END_DOCUMENT) ;
+            fail("Truncated chunk should be rejected");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsBadAttributeIndex() throws Exception {
+        AXmlParser parser = open("storage_list.xml");
+        parser.next();
+        parser.getAttributeValue(0); // StorageList has no attributes
+    }
+
+    //______________________________________________________________________________________________
+    // Private
+
+    private static AXmlParser open(String name) throws IOException {
+        return new AXmlParser(readFixture(name));
+    }
+
+    private static byte[] readFixture(String name) throws IOException {
+        InputStream in = AXmlParserTest.class.getResourceAsStream(name);
+        if (in == null) throw new IOException("Missing fixture " + name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Build <tt>&lt;manifest package="..."/&gt;</tt> with a UTF-16 string pool */
+    private static byte[] buildUtf16Manifest(String packageName) {
+        String[] strings = {"package", packageName, "manifest"};
+        ByteBuffer pool = ByteBuffer.allocate(512).order(ByteOrder.LITTLE_ENDIAN);
+        int stringsStart = 28 + strings.length * 4;
+        int offset = 0;
+        pool.position(28);
+        for (String s : strings) {
+            pool.putInt(offset);
+            offset += 2 + s.length() * 2 + 2;
+        }
+        for (String s : strings) {
+            pool.putShort((short) s.length());
+            for (int i = 0; i < s.length(); i++) pool.putChar(s.charAt(i));
+            pool.putShort((short) 0);
+        }
+        while (pool.position() % 4 != 0) pool.put((byte) 0);
+        int poolSize = pool.position();
+        pool.putShort(0, (short) 0x0001).putShort(2, (short) 28).putInt(4, poolSize)
+                .putInt(8, strings.length).putInt(12, 0).putInt(16, 0) // UTF-16
+                .putInt(20, stringsStart).putInt(24, 0);
+
+        int startSize = 16 + 20 + 20;
+        int endSize = 16 + 8;
+        int total = 8 + poolSize + startSize + endSize;
+        ByteBuffer buf = ByteBuffer.allocate(total).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putShort((short) 0x0003).putShort((short) 8).putInt(total);
+        buf.put(pool.array(), 0, poolSize);
+
+        // Start element: header, attrExt, one attribute
+        buf.putShort((short) 0x0102).putShort((short) 16).putInt(startSize).putInt(1).putInt(-1);
+        buf.putInt(-1).putInt(2).putShort((short) 20).putShort((short) 20)
+                .putShort((short) 1).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        buf.putInt(-1).putInt(0).putInt(1) // ns, name, rawValue
+                .putShort((short) 8).put((byte) 0).put((byte) AXmlParser.TYPE_STRING).putInt(1);
+
+        // End element
+        buf.putShort((short) 0x0103).putShort((short) 16).putInt(endSize).putInt(1).putInt(-1);
+        buf.putInt(-1).putInt(2);
+        return buf.array();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015-present wequick.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package net.wequick.small.webkit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JsParametersTest {
+
+    @Test
+    public void readsTypedValues() {
+        JsParameters p = JsParameters.parse("{\"s\":\"text\", \"i\" : 42 ,\"n\":-7,"
+                + "\"d\":1.5,\"b\":true,\"z\":null,\"q\":\"12\",\"f\":\"false\"}");
+        assertEquals(8, p.size());
+        assertEquals("text", p.getString("s"));
+        assertEquals(42, p.getInt("i", 0));
+        assertEquals(-7L, p.getLong("n", 0));
+        assertEquals(1.5, p.getDouble("d", 0), 0);
+        assertEquals(1, p.getInt("d", 0));
+        assertTrue(p.getBoolean("b", false));
+        assertNull(p.getString("z"));
+        assertEquals("fallback", p.getString("z", "fallback"));
+        assertEquals(12, p.getInt("q", 0));
+        assertFalse(p.getBoolean("f", true));
+        assertEquals("42", p.getString("i"));
+        assertEquals(3, p.getInt("missing", 3));
+        assertFalse(p.has("missing"));
+    }
+
+    @Test
+    public void keepsDefaultForIntOverflow() {
+        JsParameters p = JsParameters.parse("{\"big\":4294967297,\"max\":2147483647,"
+                + "\"min\":-2147483648,\"huge\":1e300,\"nan\":\"abc\"}");
+        assertEquals(-1, p.getInt("big", -1));
+        assertEquals(4294967297L, p.getLong("big", 0));
+        assertEquals(Integer.MAX_VALUE, p.getInt("max", 0));
+        assertEquals(Integer.MIN_VALUE, p.getInt("min", 0));
+        assertEquals(-1, p.getInt("huge", -1));
+        assertEquals(-1, p.getInt("nan", -1));
+    }
+
+    @Test
+    public void decodesEscapes() {
+        JsParameters p = JsParameters.parse("{\"a\\\"b\":\"q\\\"uote\\\\slash\\/\","
+                + "\"u\":\"\\u4e2d\\u6587\",\"c\":\"\\b\\f\\n\\r\\t\",\"k\\u0065y\":1}");
+        assertEquals("q\"uote\\slash/", p.getString("a\"b"));
+        assertEquals("\u4e2d\u6587", p.getString("u"));
+        assertEquals("\b\f\n\r\t", p.getString("c"));
+        assertEquals(1, p.getInt("key", 0));
+        assertEquals("a\"b", p.keyAt(0));
+    }
+
+    @Test
+    public void viewsNestedValues() {
+        JsParameters p = JsParameters.parse("{\"o\":{\"x\":{\"y\":\"}]\"},\"n\":[1,{\"z\":2}]},"
+                + "\"arr\":[\"a\", \"b,c\", null, 3],\"after\":true}");
+        assertEquals(3, p.size());
+        JsParameters o = p.getObject("o");
+        assertEquals("}]", o.getObject("x").getString("y"));
+        assertEquals("[1,{\"z\":2}]", o.getString("n"));
+        assertArrayEquals(new String[] {"a", "b,c", null, "3"}, p.getStringArray("arr"));
+        assertTrue(p.getBoolean("after", false));
+        assertNull(p.getObject("arr"));
+        assertNull(p.getStringArray("o"));
+    }
+
+    @Test
+    public void toleratesMalformedInput() {
+        assertEquals(0, JsParameters.parse(null).size());
+        assertEquals(0, JsParameters.parse("").size());
+        assertEquals(0, JsParameters.parse("[1,2]").size());
+        assertEquals(0, JsParameters.parse("{}").size());
+
+        // Keep the entries before the error
+        JsParameters p = JsParameters.parse("{\"a\":1,\"b\":\"unterminated}");
+        assertEquals(1, p.size());
+        assertEquals(1, p.getInt("a", 0));
+        assertNull(p.getString("b"));
+        assertEquals(0, p.toMap().size());
+
+        p = JsParameters.parse("{\"a\":1 \"b\":2}");
+        assertEquals(1, p.size());
+        assertEquals(0, p.toMap().size());
+
+        p = JsParameters.parse("{\"a\":{\"b\":[1,2}");
+        assertEquals(0, p.size());
+        assertNull(p.getObject("a"));
+    }
+
+    @Test
+    public void convertsToMapAsJsonObject() throws Exception {
+        String[] samples = {
+                "{}",
+                "{\"title\":\"Hello\",\"message\":\"Line\\nbreak \\u4e2d\"}",
+                "{\"i\":1,\"l\":12345678901,\"d\":1.50,\"e\":1e2,\"neg\":-0.5}",
+                "{\"b\":true,\"f\":false,\"z\":null}",
+                "{\"buttons\":[\"OK\",\"Cancel\"],\"empty\":[]}",
+                "{\"mixed\":[1, true, null, \"s\", {\"k\" : \"v\"}, [2]]}",
+                "{ \"o\" : { \"a\" : [ 1 , 2 ] , \"s\" : \"x/y\" } }",
+        };
+        for (String json : samples) {
+            Map<String, Object> expected = toMapByJsonObject(json);
+            Map<String, Object> actual = JsParameters.parse(json).toMap();
+            assertEquals(json, expected.keySet(), actual.keySet());
+            for (Map.Entry<String, Object> entry : expected.entrySet()) {
+                Object value = entry.getValue();
+                if (value instanceof String[]) {
+                    assertArrayEquals(json, (String[]) value,
+                            (String[]) actual.get(entry.getKey()));
+                } else {
+                    assertEquals(json, value, actual.get(entry.getKey()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void wrapsMap() {
+        HashMap<String, Object> map = JsParameters.parse("{\"i\":7,\"s\":\"text\","
+                + "\"a\":[\"x\",\"y\"],\"o\":{\"k\":3},\"z\":null}").toMap();
+        JsParameters p = JsParameters.wrap(map);
+        assertEquals(5, p.size());
+        assertEquals(7, p.getInt("i", 0));
+        assertEquals("text", p.getString("s"));
+        assertArrayEquals(new String[] {"x", "y"}, p.getStringArray("a"));
+        assertEquals(3, p.getObject("o").getInt("k", 0));
+        assertTrue(p.has("z"));
+        assertEquals(map, p.toMap());
+        assertEquals(0, JsParameters.wrap(null).size());
+    }
+
+    /** The conversion of the js bridge parameters before the lazy view */
+    private static Map<String, Object> toMapByJsonObject(String params) throws JSONException {
+        HashMap<String, Object> parameters = new HashMap<String, Object>();
+        JSONObject json = new JSONObject(params);
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            String value = String.valueOf(json.get(key));
+            Object oValue = value;
+            if (value.startsWith("[")) {
+                JSONArray array = json.getJSONArray(key);
+                String[] strs = new String[array.length()];
+                for (int i = 0; i < array.length(); i++) {
+                    strs[i] = String.valueOf(array.get(i));
+                }
+                oValue = strs;
+            }
+            parameters.put(key, oValue);
+        }
+        return parameters;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2015-present wequick.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package net.wequick.small.webkit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class WebCacheTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private WebCache mCache;
+    private final Map<String, String> mCookies = new HashMap<String, String>();
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new MockWebServer();
+        mServer.start();
+        mCache = new WebCache(mFolder.newFolder("cache"), new WebCache.CookieStore() {
+            @Override
+            public String getCookie(String url) {
+                return mCookies.get(url);
+            }
+
+            @Override
+            public void setCookie(String url, String cookie) {
+                mCookies.put(url, cookie);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void servesFreshResponseFromCache() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("hello")
+                .addHeader("Content-Type", "text/html; charset=utf-8")
+                .addHeader("Cache-Control", "max-age=60")
+                .addHeader("Access-Control-Allow-Origin", "*"));
+        String url = mServer.url("/page").toString();
+
+        WebCache.Response response = mCache.fetch(url, null);
+        assertEquals(200, response.statusCode);
+        assertEquals("text/html", response.mimeType);
+        assertEquals("utf-8", response.encoding);
+        assertEquals("hello", read(response));
+
+        response = mCache.fetch(url, null);
+        assertEquals(200, response.statusCode);
+        assertEquals("*", response.headers.get("Access-Control-Allow-Origin"));
+        assertEquals("hello", read(response));
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void revalidatesStaleResponse() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("hello")
+                .addHeader("ETag", "\"v1\"")
+                .addHeader("Cache-Control", "max-age=0"));
+        mServer.enqueue(new MockResponse().setResponseCode(304)
+                .addHeader("Cache-Control", "max-age=60"));
+        String url = mServer.url("/page").toString();
+
+        assertEquals("hello", read(mCache.fetch(url, null)));
+        WebCache.Response response = mCache.fetch(url, null);
+        assertEquals(200, response.statusCode);
+        assertEquals("hello", read(response));
+
+        mServer.takeRequest();
+        RecordedRequest request = mServer.takeRequest();
+        assertEquals("\"v1\"", request.getHeader("If-None-Match"));
+
+        // Fresh again by the 304
+        assertEquals("hello", read(mCache.fetch(url, null)));
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void neverServesNoCacheResponseWithoutRevalidation() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("v1")
+                .addHeader("ETag", "\"v1\"")
+                .addHeader("Cache-Control", "no-cache, max-age=60"));
+        mServer.enqueue(new MockResponse().setBody("v2")
+                .addHeader("ETag", "\"v2\"")
+                .addHeader("Cache-Control", "no-cache"));
+        String url = mServer.url("/page").toString();
+
+        assertEquals("v1", read(mCache.fetch(url, null)));
+        assertEquals("v2", read(mCache.fetch(url, null)));
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void servesStaleResponseWhileRevalidating() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("v1")
+                .addHeader("Cache-Control", "max-age=0, stale-while-revalidate=60"));
+        mServer.enqueue(new MockResponse().setBody("v2")
+                .addHeader("Cache-Control", "max-age=60"));
+        String url = mServer.url("/page").toString();
+
+        assertEquals("v1", read(mCache.fetch(url, null)));
+        assertEquals("v1", read(mCache.fetch(url, null)));
+        mServer.takeRequest();
+        // Revalidated in background
+        assertNotNull(mServer.takeRequest(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void servesStaleResponseIfOffline() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("hello")
+                .addHeader("Cache-Control", "no-cache"));
+        String url = mServer.url("/page").toString();
+
+        assertEquals("hello", read(mCache.fetch(url, null)));
+        mServer.shutdown();
+        assertEquals("hello", read(mCache.fetch(url, null)));
+    }
+
+    @Test
+    public void neverStoresPersonalResponse() throws Exception {
+        String[][] headers = {
+                {"Cache-Control", "no-store"},
+                {"Cache-Control", "private, max-age=60"},
+                {"Vary", "User-Agent"},
+                {"Set-Cookie", "id=1"},
+        };
+        for (String[] header : headers) {
+            mServer.enqueue(new MockResponse().setBody("v1").addHeader(header[0], header[1]));
+            mServer.enqueue(new MockResponse().setBody("v2").addHeader(header[0], header[1]));
+        }
+        String url = mServer.url("/page").toString();
+
+        for (String[] header : headers) {
+            mCookies.clear();
+            assertEquals(header[0], "v1", read(mCache.fetch(url, null)));
+            mCookies.clear();
+            assertEquals(header[0], "v2", read(mCache.fetch(url, null)));
+        }
+        assertEquals("id=1", mCookies.get(url));
+
+        Map<String, String> requestHeaders = new HashMap<String, String>();
+        requestHeaders.put("Authorization", "Basic dXNlcjpwYXNz");
+        assertNull(mCache.fetch(url, requestHeaders));
+    }
+
+    @Test
+    public void keysResponseByCookie() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("guest")
+                .addHeader("Cache-Control", "max-age=60"));
+        mServer.enqueue(new MockResponse().setBody("user")
+                .addHeader("Cache-Control", "max-age=60"));
+        String url = mServer.url("/page").toString();
+
+        assertEquals("guest", read(mCache.fetch(url, null)));
+        mCookies.put(url, "id=1");
+        assertEquals("user", read(mCache.fetch(url, null)));
+        assertNull(mServer.takeRequest().getHeader("Cookie"));
+        assertEquals("id=1", mServer.takeRequest().getHeader("Cookie"));
+    }
+
+    @Test
+    public void leavesRedirectionToWebView() throws Exception {
+        mServer.enqueue(new MockResponse().setResponseCode(302)
+                .addHeader("Location", "/other")
+                .addHeader("Cache-Control", "max-age=60"));
+        String url = mServer.url("/page").toString();
+
+        assertNull(mCache.fetch(url, null));
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void passesErrorResponseThrough() throws Exception {
+        mServer.enqueue(new MockResponse().setResponseCode(404).setBody("missing")
+                .addHeader("Content-Security-Policy", "default-src 'self'"));
+        mServer.enqueue(new MockResponse().setResponseCode(404).setBody("missing"));
+        String url = mServer.url("/page").toString();
+
+        WebCache.Response response = mCache.fetch(url, null);
+        assertEquals(404, response.statusCode);
+        assertEquals("default-src 'self'", response.headers.get("Content-Security-Policy"));
+        assertEquals("missing", read(response));
+        assertEquals(404, mCache.fetch(url, null).statusCode);
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    private static String read(WebCache.Response response) throws IOException {
+        InputStream in = response.body;
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}